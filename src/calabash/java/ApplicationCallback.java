@@ -0,0 +1,32 @@
+/**
+ * 
+ */
+package calabash.java;
+
+/**
+ * Gets notified when an operation submitted to {@link AsyncIOSApplication}
+ * completes. Register it with {@link ApplicationFuture#addCallback}.
+ * 
+ * @param <T>
+ *            Type of the result
+ */
+public interface ApplicationCallback<T> {
+
+	/**
+	 * This function gets called when the operation completed successfully
+	 * 
+	 * @param result
+	 *            Result of the operation
+	 */
+	void onSuccess(T result);
+
+	/**
+	 * This function gets called when the operation failed or was cancelled
+	 * 
+	 * @param cause
+	 *            Exception thrown by the operation, or
+	 *            {@link java.util.concurrent.CancellationException}
+	 */
+	void onFailure(Throwable cause);
+
+}
@@ -0,0 +1,92 @@
+/**
+ * 
+ */
+package calabash.java;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Result of an operation submitted to {@link AsyncIOSApplication}. Besides
+ * blocking in {@link #get()}, callbacks can be registered to get notified
+ * when the operation completes, so that a single thread can drive many
+ * applications without waiting on any of them.
+ * 
+ * @param <T>
+ *            Type of the result
+ */
+public final class ApplicationFuture<T> extends FutureTask<T> {
+
+	private final List<ApplicationCallback<? super T>> callbacks = new ArrayList<ApplicationCallback<? super T>>();
+
+	ApplicationFuture(Callable<T> callable) {
+		super(callable);
+	}
+
+	/**
+	 * Registers a callback which is called once the operation completes.
+	 * Callbacks run on the thread of the {@link AsyncIOSApplication}, so they
+	 * should not block. When the operation has already completed, the callback
+	 * is called right away on the calling thread.
+	 * 
+	 * @param callback
+	 *            Callback to notify
+	 * @return This future
+	 */
+	public ApplicationFuture<T> addCallback(ApplicationCallback<? super T> callback) {
+		if (callback == null)
+			throw new IllegalArgumentException("callback is required");
+
+		// get() can return before done() runs, so completion is checked with
+		// isDone() and not with a flag set in done()
+		synchronized (callbacks) {
+			if (!isDone()) {
+				callbacks.add(callback);
+				return this;
+			}
+		}
+		notify(callback);
+		return this;
+	}
+
+	@Override
+	protected void done() {
+		List<ApplicationCallback<? super T>> toNotify;
+		synchronized (callbacks) {
+			toNotify = new ArrayList<ApplicationCallback<? super T>>(callbacks);
+			callbacks.clear();
+		}
+		for (ApplicationCallback<? super T> callback : toNotify)
+			notify(callback);
+	}
+
+	private void notify(ApplicationCallback<? super T> callback) {
+		try {
+			T result;
+			try {
+				result = get();
+			} catch (ExecutionException e) {
+				callback.onFailure(e.getCause());
+				return;
+			} catch (CancellationException e) {
+				callback.onFailure(e);
+				return;
+			} catch (InterruptedException e) {
+				// Not reachable, the future is complete when notifying
+				Thread.currentThread().interrupt();
+				callback.onFailure(e);
+				return;
+			}
+			callback.onSuccess(result);
+		} catch (RuntimeException e) {
+			// Keeps a faulty callback from affecting other callbacks and the
+			// thread running the operations
+			CalabashLogger.error("Callback of an asynchronous operation failed", e);
+		}
+	}
+
+}
@@ -0,0 +1,26 @@
+/**
+ * 
+ */
+package calabash.java;
+
+/**
+ * Work executed against an {@link IOSApplication} by
+ * {@link AsyncIOSApplication}
+ * 
+ * @param <T>
+ *            Type of the result
+ */
+public interface ApplicationTask<T> {
+
+	/**
+	 * Implement this method and perform the operations on the application.
+	 * The task runs on the thread of the {@link AsyncIOSApplication}, after
+	 * the operations submitted before it.
+	 * 
+	 * @param application
+	 *            Application to work on
+	 * @return Result of the task
+	 * @throws Exception
+	 */
+	T run(IOSApplication application) throws Exception;
+}
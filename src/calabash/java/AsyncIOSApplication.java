@@ -0,0 +1,222 @@
+/**
+ *
+ */
+package calabash.java;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs operations on an {@link IOSApplication} without blocking the caller.
+ * Operations are executed one after another, in the order they were
+ * submitted, on a thread owned by this instance. The returned
+ * {@link ApplicationFuture} gives the result, or the failure wrapped in
+ * {@link java.util.concurrent.ExecutionException}. Callbacks registered on
+ * it are notified on completion, so one thread can keep several
+ * applications busy without blocking on any of them.
+ * <p>
+ * Eg:
+ * <pre>
+ * AsyncIOSApplication async = new AsyncIOSApplication(iosApplication);
+ * Future&lt;Void&gt; wait = async.waitForElementsExist(new String[] { &quot;button&quot; });
+ * Future&lt;UIElements&gt; labels = async.query(&quot;label&quot;);
+ * // do other work
+ * wait.get();
+ * labels.get();
+ * async.query(&quot;button&quot;).addCallback(new ApplicationCallback&lt;UIElements&gt;() {
+ * 	public void onSuccess(UIElements buttons) {
+ * 		// chain the next operation
+ * 	}
+ * 
+ * 	public void onFailure(Throwable cause) {
+ * 	}
+ * });
+ * async.shutdown();
+ * </pre>
+ *
+ */
+public final class AsyncIOSApplication {
+
+	private final IOSApplication application;
+	private final ExecutorService executor;
+
+	/**
+	 * Initializes a new instance of AsyncIOSApplication
+	 *
+	 * @param application
+	 *            Application to run the operations on
+	 */
+	public AsyncIOSApplication(IOSApplication application) {
+		if (application == null)
+			throw new IllegalArgumentException("application is required");
+		this.application = application;
+		this.executor = Executors
+				.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable,
+								"calabash-async-application");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Gets the application operations are executed on
+	 *
+	 * @return Application
+	 */
+	public IOSApplication getApplication() {
+		return application;
+	}
+
+	/**
+	 * Submits a task to be executed on the application. Use this for
+	 * operations which don't have an asynchronous counterpart, like the
+	 * operations on {@link UIElement}
+	 *
+	 * @param task
+	 *            Task to execute
+	 * @return Future which completes with the result of the task. Register
+	 *         an {@link ApplicationCallback} on it to get notified without
+	 *         blocking
+	 */
+	public <T> ApplicationFuture<T> submit(final ApplicationTask<T> task) {
+		ApplicationFuture<T> future = new ApplicationFuture<T>(
+				new Callable<T>() {
+					@Override
+					public T call() throws Exception {
+						return task.run(application);
+					}
+				});
+		executor.execute(future);
+		return future;
+	}
+
+	public ApplicationFuture<UIElements> query(final String query) {
+		return submit(new ApplicationTask<UIElements>() {
+			@Override
+			public UIElements run(IOSApplication application)
+					throws Exception {
+				return application.query(query);
+			}
+		});
+	}
+
+	public ApplicationFuture<QueryBatchResult> query(final QueryBatch batch) {
+		return submit(new ApplicationTask<QueryBatchResult>() {
+			@Override
+			public QueryBatchResult run(IOSApplication application)
+					throws Exception {
+				return application.query(batch);
+			}
+		});
+	}
+
+	public ApplicationFuture<Boolean> elementExists(final String query) {
+		return submit(new ApplicationTask<Boolean>() {
+			@Override
+			public Boolean run(IOSApplication application) throws Exception {
+				return application.elementExists(query);
+			}
+		});
+	}
+
+	public ApplicationFuture<Void> waitFor(final ICondition condition,
+			final WaitOptions options) {
+		return submit(new ApplicationTask<Void>() {
+			@Override
+			public Void run(IOSApplication application) throws Exception {
+				application.waitFor(condition, options);
+				return null;
+			}
+		});
+	}
+
+	public ApplicationFuture<Void> waitForElementsExist(String[] queries) {
+		return waitForElementsExist(queries, null);
+	}
+
+	public ApplicationFuture<Void> waitForElementsExist(final String[] queries,
+			final WaitOptions options) {
+		return submit(new ApplicationTask<Void>() {
+			@Override
+			public Void run(IOSApplication application) throws Exception {
+				application.waitForElementsExist(queries, options);
+				return null;
+			}
+		});
+	}
+
+	public ApplicationFuture<FirstMatch> waitForAny(String[] queries) {
+		return waitForAny(queries, null);
+	}
+
+	public ApplicationFuture<FirstMatch> waitForAny(final String[] queries,
+			final WaitOptions options) {
+		return submit(new ApplicationTask<FirstMatch>() {
+			@Override
+			public FirstMatch run(IOSApplication application) throws Exception {
+				return application.waitForAny(queries, options);
+			}
+		});
+	}
+
+	public ApplicationFuture<Void> waitForElementsToNotExist(String[] queries) {
+		return waitForElementsToNotExist(queries, null);
+	}
+
+	public ApplicationFuture<Void> waitForElementsToNotExist(final String[] queries,
+			final WaitOptions options) {
+		return submit(new ApplicationTask<Void>() {
+			@Override
+			public Void run(IOSApplication application) throws Exception {
+				application.waitForElementsToNotExist(queries, options);
+				return null;
+			}
+		});
+	}
+
+	public ApplicationFuture<Void> waitForKeyboard() {
+		return submit(new ApplicationTask<Void>() {
+			@Override
+			public Void run(IOSApplication application) throws Exception {
+				application.waitForKeyboard();
+				return null;
+			}
+		});
+	}
+
+	public ApplicationFuture<Void> sendToBackground(final int seconds) {
+		return submit(new ApplicationTask<Void>() {
+			@Override
+			public Void run(IOSApplication application) throws Exception {
+				application.sendToBackground(seconds);
+				return null;
+			}
+		});
+	}
+
+	public ApplicationFuture<Void> takeScreenshot(final File dir, final String fileName) {
+		return submit(new ApplicationTask<Void>() {
+			@Override
+			public Void run(IOSApplication application) throws Exception {
+				application.takeScreenshot(dir, fileName);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Stops accepting new operations. Operations already submitted are still
+	 * executed.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+}
@@ -0,0 +1,437 @@
+/**
+ *
+ */
+package calabash.java;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transport which caches the results of queries and element existence
+ * checks. Every operation which can change the UI starts a new epoch and
+ * the results cached in earlier epochs are not used any more. Results also
+ * expire after a time to live, as the UI can change on its own.
+ * <p>
+ * Caching is suspended while an action or a wait is in progress, so that
+ * conditions being waited for always see fresh results.
+ *
+ */
+public final class CachingTransport implements ITransport {
+
+	// Every key starts with its kind so that a query can never share a key
+	// with an existence check
+	private static final char QUERY_KEY = 'q';
+	private static final char EXISTS_KEY = 'e';
+
+	private final ITransport transport;
+	private final long timeToLiveInMs;
+	private final Map<String, CacheEntry> entries;
+	private long epoch = 0;
+	private int activeActions = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Initializes a new CachingTransport
+	 *
+	 * @param transport
+	 *            Transport to cache the results of
+	 * @param timeToLiveInMs
+	 *            Time after which a cached result is not used
+	 * @param maxEntries
+	 *            Maximum number of results to keep. Least recently used
+	 *            results are dropped first
+	 */
+	public CachingTransport(ITransport transport, long timeToLiveInMs,
+			final int maxEntries) {
+		if (transport == null)
+			throw new IllegalArgumentException("transport is required");
+		if (maxEntries <= 0)
+			throw new IllegalArgumentException("maxEntries should be positive");
+
+		this.transport = transport;
+		this.timeToLiveInMs = timeToLiveInMs;
+		this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	public List<?> query(String query, String... args)
+			throws CalabashException {
+		String key = key(QUERY_KEY, query, args);
+		Object cached = lookup(key);
+		if (cached != null)
+			return (List<?>) cached;
+
+		long startEpoch = currentEpoch();
+		List<?> result = transport.query(query, args);
+		store(key, result, startEpoch);
+		return result;
+	}
+
+	/**
+	 * Answers the queries of the batch from the cache where possible and
+	 * sends only the remaining ones to the application, as one batch
+	 */
+	public List<List<?>> query(QueryBatch batch) throws CalabashException {
+		List<List<?>> results = new ArrayList<List<?>>(batch.size());
+		List<Integer> missing = new ArrayList<Integer>();
+		QueryBatch uncached = new QueryBatch();
+		for (int i = 0; i < batch.size(); i++) {
+			List<?> cached = (List<?>) lookup(key(QUERY_KEY,
+					batch.getQuery(i), batch.getSelectors(i)));
+			results.add(cached);
+			if (cached == null) {
+				missing.add(i);
+				uncached.add(batch.getQuery(i), batch.getSelectors(i));
+			}
+		}
+		if (missing.isEmpty())
+			return results;
+
+		long startEpoch = currentEpoch();
+		List<List<?>> fetched = transport.query(uncached);
+		for (int i = 0; i < missing.size(); i++) {
+			int position = missing.get(i);
+			results.set(position, fetched.get(i));
+			store(key(QUERY_KEY, batch.getQuery(position),
+					batch.getSelectors(position)), fetched.get(i), startEpoch);
+		}
+		return results;
+	}
+
+	public boolean elementExists(String query) throws CalabashException {
+		String key = key(EXISTS_KEY, query);
+		Object cached = lookup(key);
+		if (cached != null)
+			return (Boolean) cached;
+
+		long startEpoch = currentEpoch();
+		boolean result = transport.elementExists(query);
+		store(key, result, startEpoch);
+		return result;
+	}
+
+	public String escapeQuotes(String source) throws CalabashException {
+		return transport.escapeQuotes(source);
+	}
+
+	public void touch(String query) throws CalabashException {
+		beginAction();
+		try {
+			transport.touch(query);
+		} finally {
+			endAction();
+		}
+	}
+
+	public void flash(String query) throws CalabashException {
+		transport.flash(query);
+	}
+
+	public void scroll(String query, Direction direction)
+			throws CalabashException {
+		beginAction();
+		try {
+			transport.scroll(query, direction);
+		} finally {
+			endAction();
+		}
+	}
+
+	public void swipe(String query, Direction direction, SwipeOptions options)
+			throws CalabashException {
+		beginAction();
+		try {
+			transport.swipe(query, direction, options);
+		} finally {
+			endAction();
+		}
+	}
+
+	public void pinch(String query, String inOrOut) throws CalabashException {
+		beginAction();
+		try {
+			transport.pinch(query, inOrOut);
+		} finally {
+			endAction();
+		}
+	}
+
+	public void rotate(String direction) throws CalabashException {
+		beginAction();
+		try {
+			transport.rotate(direction);
+		} finally {
+			endAction();
+		}
+	}
+
+	public void scrollToRow(String query, int row) throws CalabashException {
+		beginAction();
+		try {
+			transport.scrollToRow(query, row);
+		} finally {
+			endAction();
+		}
+	}
+
+	public void scrollToCell(String query, ScrollOptions options)
+			throws CalabashException {
+		beginAction();
+		try {
+			transport.scrollToCell(query, options);
+		} finally {
+			endAction();
+		}
+	}
+
+	public void scrollThroughEachCell(String query, ScrollOptions options,
+			CellIterator callback) throws CalabashException {
+		beginAction();
+		try {
+			transport.scrollThroughEachCell(query, options, callback);
+		} finally {
+			endAction();
+		}
+	}
+
+	public void enterText(String text) throws CalabashException {
+		beginAction();
+		try {
+			transport.enterText(text);
+		} finally {
+			endAction();
+		}
+	}
+
+	public void enterChar(String text) throws CalabashException {
+		beginAction();
+		try {
+			transport.enterChar(text);
+		} finally {
+			endAction();
+		}
+	}
+
+	public void done() throws CalabashException {
+		beginAction();
+		try {
+			transport.done();
+		} finally {
+			endAction();
+		}
+	}
+
+	public void start() throws CalabashException {
+		beginAction();
+		try {
+			transport.start();
+		} finally {
+			endAction();
+		}
+	}
+
+	public void exit() throws CalabashException {
+		beginAction();
+		try {
+			transport.exit();
+		} finally {
+			endAction();
+		}
+	}
+
+	public void sendAppToBackground(int seconds) throws CalabashException {
+		beginAction();
+		try {
+			transport.sendAppToBackground(seconds);
+		} finally {
+			endAction();
+		}
+	}
+
+	public void startRecording() throws CalabashException {
+		transport.startRecording();
+	}
+
+	public void stopRecording(String filename) throws CalabashException {
+		transport.stopRecording(filename);
+	}
+
+	public void playback(String recording, String query, Offset offset)
+			throws CalabashException {
+		beginAction();
+		try {
+			transport.playback(recording, query, offset);
+		} finally {
+			endAction();
+		}
+	}
+
+	public void takeScreenShot(File dir, String fileName)
+			throws CalabashException {
+		transport.takeScreenShot(dir, fileName);
+	}
+
+	public Object serverVersion() throws CalabashException {
+		return transport.serverVersion();
+	}
+
+	public Object clientVersion() throws CalabashException {
+		return transport.clientVersion();
+	}
+
+	public void waitFor(ICondition condition, WaitOptions options)
+			throws CalabashException, OperationTimedoutException {
+		beginAction();
+		try {
+			transport.waitFor(condition, options);
+		} finally {
+			endAction();
+		}
+	}
+
+	public void waitForElementsExist(String[] queries, WaitOptions options)
+			throws OperationTimedoutException, CalabashException {
+		beginAction();
+		try {
+			transport.waitForElementsExist(queries, options);
+		} finally {
+			endAction();
+		}
+	}
+
+	public void waitForElementsToNotExist(String[] queries, WaitOptions options)
+			throws OperationTimedoutException, CalabashException {
+		beginAction();
+		try {
+			transport.waitForElementsToNotExist(queries, options);
+		} finally {
+			endAction();
+		}
+	}
+
+	public void waitForKeyboard() throws CalabashException {
+		beginAction();
+		try {
+			transport.waitForKeyboard();
+		} finally {
+			endAction();
+		}
+	}
+
+	public void waitForNoneAnimating() throws CalabashException {
+		beginAction();
+		try {
+			transport.waitForNoneAnimating();
+		} finally {
+			endAction();
+		}
+	}
+
+	public void dispose() throws CalabashException {
+		synchronized (this) {
+			entries.clear();
+		}
+		transport.dispose();
+	}
+
+	/**
+	 * Drops all the cached results
+	 */
+	public synchronized void invalidate() {
+		epoch++;
+		entries.clear();
+	}
+
+	/**
+	 * Gets the number of lookups answered from the cache
+	 *
+	 * @return Hit count
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of lookups which went to the application
+	 *
+	 * @return Miss count
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * Resets the hit and miss counters
+	 */
+	public synchronized void resetStatistics() {
+		hits = 0;
+		misses = 0;
+	}
+
+	private synchronized Object lookup(String key) {
+		if (activeActions == 0) {
+			CacheEntry entry = entries.get(key);
+			if (entry != null && entry.epoch == epoch
+					&& System.nanoTime() - entry.expiresAt < 0) {
+				hits++;
+				return entry.value;
+			}
+		}
+		misses++;
+		return null;
+	}
+
+	private synchronized long currentEpoch() {
+		return epoch;
+	}
+
+	private synchronized void store(String key, Object value, long startEpoch) {
+		// Results which raced with an action are not cached
+		if (value == null || activeActions > 0 || startEpoch != epoch)
+			return;
+		entries.put(key, new CacheEntry(value, epoch, System.nanoTime()
+				+ timeToLiveInMs * 1000000L));
+	}
+
+	private synchronized void beginAction() {
+		activeActions++;
+		invalidate();
+	}
+
+	private synchronized void endAction() {
+		activeActions--;
+		invalidate();
+	}
+
+	private static String key(char kind, String query, String... args) {
+		StringBuilder key = new StringBuilder().append(kind).append(
+				query.trim());
+		if (args != null) {
+			for (String arg : args)
+				key.append('\u0000').append(arg);
+		}
+		return key.toString();
+	}
+
+	private static final class CacheEntry {
+		private final Object value;
+		private final long epoch;
+		private final long expiresAt;
+
+		CacheEntry(Object value, long epoch, long expiresAt) {
+			this.value = value;
+			this.epoch = epoch;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
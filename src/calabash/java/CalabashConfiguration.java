@@ -27,6 +27,17 @@ public final class CalabashConfiguration {
 	private String deviceTarget;
 	private boolean detectConnectedDevice;
 	private boolean debug;
+	private boolean nativeQueries;
+	private boolean settleDetection;
+	private long settlePollIntervalInMs = 100;
+	private boolean preWarm;
+	private boolean queryCache;
+	private boolean loadGemsFromClasspath;
+	private boolean precompiledGems;
+	private JRubyCompileMode jrubyCompileMode;
+	private Boolean invokeDynamic;
+	private long queryCacheTimeToLiveInMs = 1000;
+	private int queryCacheSize = 256;
 
 	/**
 	 * Gets the screenshots directory. If not set, this returns the current
@@ -365,4 +376,238 @@ public final class CalabashConfiguration {
 	public void setDebug(boolean value) {
 		this.debug = value;
 	}
+
+	/**
+	 * Gets a value indicating whether queries are sent directly to the
+	 * calabash server instead of going through the Ruby client
+	 * 
+	 * @return true if enabled, false otherwise
+	 */
+	public boolean getNativeQueries() {
+		return nativeQueries;
+	}
+
+	/**
+	 * Setting this will execute queries, element existence checks and
+	 * property selectors by talking to the calabash server at
+	 * {@link #getDeviceEndPoint()} directly from Java. Other operations still
+	 * go through the Ruby client.
+	 * 
+	 * @param value
+	 */
+	public void setNativeQueries(boolean value) {
+		this.nativeQueries = value;
+	}
+
+	/**
+	 * Gets a value indicating whether calabash waits for the UI to settle
+	 * after actions instead of pausing for a fixed time
+	 * 
+	 * @return true if enabled, false otherwise
+	 */
+	public boolean getSettleDetection() {
+		return settleDetection;
+	}
+
+	/**
+	 * Setting this will make calabash return from actions as soon as no views
+	 * are animating and the view hierarchy is stable. Pause time set using
+	 * {@link #setPauseTime(long)} becomes the upper bound for this wait.
+	 * 
+	 * @param value
+	 */
+	public void setSettleDetection(boolean value) {
+		this.settleDetection = value;
+	}
+
+	/**
+	 * Gets the interval in milliseconds between the checks for a settled UI
+	 * 
+	 * @return Interval in milliseconds
+	 */
+	public long getSettlePollInterval() {
+		return settlePollIntervalInMs;
+	}
+
+	/**
+	 * Sets the interval in milliseconds between the checks for a settled UI.
+	 * Default is 100 milliseconds
+	 * 
+	 * @param settlePollIntervalInMs
+	 *            Interval in milliseconds
+	 */
+	public void setSettlePollInterval(long settlePollIntervalInMs) {
+		this.settlePollIntervalInMs = settlePollIntervalInMs;
+	}
+
+	/**
+	 * Gets a value indicating whether the Ruby runtime is loaded in the
+	 * background while {@link CalabashRunner} is created
+	 * 
+	 * @return true if enabled, false otherwise
+	 */
+	public boolean getPreWarm() {
+		return preWarm;
+	}
+
+	/**
+	 * Setting this will boot JRuby and load the calabash gems on a background
+	 * thread as soon as {@link CalabashRunner} is created.
+	 * {@link CalabashRunner#setup()} and {@link CalabashRunner#start()} wait
+	 * for it to complete.
+	 * 
+	 * @param value
+	 */
+	public void setPreWarm(boolean value) {
+		this.preWarm = value;
+	}
+
+	/**
+	 * Gets a value indicating whether the gems are loaded from the class path
+	 * 
+	 * @return true if enabled, false otherwise
+	 */
+	public boolean getLoadGemsFromClasspath() {
+		return loadGemsFromClasspath;
+	}
+
+	/**
+	 * Setting this loads the calabash gems and the launcher straight from the
+	 * jar instead of extracting them to the temp directory first. The jar
+	 * should be built with <code>-Dgems.classpath=true</code>. Calabash setup
+	 * still extracts the gems as it copies files out of them. Starting the
+	 * application writes only the files of the gems which are not Ruby
+	 * scripts, like the scripts given to instruments, and the gems see them
+	 * through paths relative to their <code>__FILE__</code>
+	 * 
+	 * @param value
+	 */
+	public void setLoadGemsFromClasspath(boolean value) {
+		this.loadGemsFromClasspath = value;
+	}
+
+	/**
+	 * Gets a value indicating whether the gems compiled at build time are
+	 * loaded
+	 * 
+	 * @return true if enabled, false otherwise
+	 */
+	public boolean getPrecompiledGems() {
+		return precompiledGems;
+	}
+
+	/**
+	 * Setting this loads the gems from the JVM bytecode compiled when the jar
+	 * was built with <code>-Dgems.compile=true</code>, so that the Ruby code
+	 * is not parsed and interpreted at the start of every session. Paths
+	 * which the compiled scripts build from their <code>__FILE__</code> point
+	 * at the gem sources. Works with
+	 * {@link #setLoadGemsFromClasspath(boolean)} as well
+	 * 
+	 * @param value
+	 */
+	public void setPrecompiledGems(boolean value) {
+		this.precompiledGems = value;
+	}
+
+	/**
+	 * Gets the JRuby compile mode
+	 * 
+	 * @return Compile mode. null when JRuby's default is used
+	 */
+	public JRubyCompileMode getJRubyCompileMode() {
+		return jrubyCompileMode;
+	}
+
+	/**
+	 * Sets how JRuby compiles the Ruby code of every session.
+	 * {@link JRubyCompileMode#FORCE} compiles scripts before they run instead
+	 * of waiting for them to get hot. null uses JRuby's default
+	 * 
+	 * @param jrubyCompileMode
+	 */
+	public void setJRubyCompileMode(JRubyCompileMode jrubyCompileMode) {
+		this.jrubyCompileMode = jrubyCompileMode;
+	}
+
+	/**
+	 * Gets a value indicating whether JRuby compiles to invokedynamic
+	 * 
+	 * @return true or false, null when JRuby's default is used
+	 */
+	public Boolean getInvokeDynamic() {
+		return invokeDynamic;
+	}
+
+	/**
+	 * Sets whether the code compiled by JRuby uses invokedynamic. This is a
+	 * JVM wide setting which JRuby reads once, so it only takes effect when
+	 * set before the first Ruby runtime in the process is created. null uses
+	 * JRuby's default
+	 * 
+	 * @param value
+	 */
+	public void setInvokeDynamic(Boolean value) {
+		this.invokeDynamic = value;
+	}
+
+	/**
+	 * Gets a value indicating whether query results are cached till the next
+	 * action
+	 * 
+	 * @return true if enabled, false otherwise
+	 */
+	public boolean getQueryCache() {
+		return queryCache;
+	}
+
+	/**
+	 * Setting this will reuse the results of queries and element existence
+	 * checks till an action like touch, swipe or enterText is performed or
+	 * the results expire. See {@link CachingTransport}
+	 * 
+	 * @param value
+	 */
+	public void setQueryCache(boolean value) {
+		this.queryCache = value;
+	}
+
+	/**
+	 * Gets the time in milliseconds after which cached query results expire
+	 * 
+	 * @return Time to live in milliseconds
+	 */
+	public long getQueryCacheTimeToLive() {
+		return queryCacheTimeToLiveInMs;
+	}
+
+	/**
+	 * Sets the time in milliseconds after which cached query results expire.
+	 * Default is 1000 milliseconds
+	 * 
+	 * @param queryCacheTimeToLiveInMs
+	 *            Time to live in milliseconds
+	 */
+	public void setQueryCacheTimeToLive(long queryCacheTimeToLiveInMs) {
+		this.queryCacheTimeToLiveInMs = queryCacheTimeToLiveInMs;
+	}
+
+	/**
+	 * Gets the maximum number of cached query results
+	 * 
+	 * @return Maximum number of results
+	 */
+	public int getQueryCacheSize() {
+		return queryCacheSize;
+	}
+
+	/**
+	 * Sets the maximum number of cached query results. Default is 256
+	 * 
+	 * @param queryCacheSize
+	 *            Maximum number of results
+	 */
+	public void setQueryCacheSize(int queryCacheSize) {
+		this.queryCacheSize = queryCacheSize;
+	}
 }
@@ -11,10 +11,10 @@ import org.apache.log4j.RollingFileAppender;
 
 class CalabashLogger {
 
-	private static boolean shouldLog = false;
-	private static Logger log = null;
+	private static volatile boolean shouldLog = false;
+	private static volatile Logger log = null;
 
-	public static void initialize(CalabashConfiguration configuration)
+	public static synchronized void initialize(CalabashConfiguration configuration)
 			throws CalabashException {
 		if (configuration != null && configuration.isLoggingEnabled()) {
 			try {
@@ -2,28 +2,36 @@ package calabash.java;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Enumeration;
-import java.util.Map;
-import java.util.jar.Attributes;
-import java.util.jar.Manifest;
-
-import xmlwise.Plist;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Manages setting up calabash framework and launching the simulator
+ * <p>
+ * Several runners can be used concurrently in one JVM to drive multiple
+ * devices. Each runner should be given its own
+ * {@link CalabashConfiguration} with the device endpoint to talk to.
  * 
  */
 public class CalabashRunner {
 
+	// Avoids extracting the same gems twice when several runners are
+	// created concurrently. Other processes are handled by GemExtractor
+	private static final Object EXTRACTION_LOCK = new Object();
+
 	private final File pbxprojFile;
 	private final File projectDir;
 	private final CalabashWrapper calabashWrapper;
+	private final ITransport transport;
+	private final FutureTask<Void> preWarm;
+	private final CachingTransport queryCache;
+	private final CalabashConfiguration configuration;
+	private final StartupProfile startupProfile = new StartupProfile();
+	private final List<IOSApplication> applications = new ArrayList<IOSApplication>();
 
 	/**
 	 * Initializes CalabashRunner
@@ -81,11 +89,63 @@ public class CalabashRunner {
 		this.pbxprojFile = projectFile;
 		xcodeProjectDir.getName().replace(".xcodeproj", "");
 
-		File gemPath = extractGemsFromBundle();
-		calabashWrapper = new CalabashWrapper(gemPath, projectDir,
-				configuration);
+		this.configuration = configuration;
+		if (configuration != null && configuration.getLoadGemsFromClasspath()) {
+			StartupProfile.Measurement createRuntime = startupProfile
+					.begin(StartupProfile.CREATE_RUNTIME);
+			try {
+				calabashWrapper = new CalabashWrapper(new ClasspathGems(
+						ClasspathGems.DEFAULT_RESOURCE_DIR, Thread
+								.currentThread().getContextClassLoader()),
+						projectDir, configuration);
+			} finally {
+				createRuntime.end();
+			}
+		} else {
+			File gemPath = extractGemsFromBundle();
+			StartupProfile.Measurement createRuntime = startupProfile
+					.begin(StartupProfile.CREATE_RUNTIME);
+			try {
+				calabashWrapper = new CalabashWrapper(gemPath, projectDir,
+						configuration);
+			} finally {
+				createRuntime.end();
+			}
+		}
+		calabashWrapper.setStartupProfile(startupProfile);
+		ITransport deviceTransport = calabashWrapper;
+		if (configuration != null && configuration.getNativeQueries()) {
+			deviceTransport = new HttpTransport(
+					configuration.getDeviceEndPoint(), calabashWrapper,
+					configuration.getScreenshotsDirectory());
+			calabashWrapper.setSettleTransport(deviceTransport);
+		}
+		if (configuration != null && configuration.getQueryCache()) {
+			queryCache = new CachingTransport(deviceTransport,
+					configuration.getQueryCacheTimeToLive(),
+					configuration.getQueryCacheSize());
+			transport = queryCache;
+		} else {
+			queryCache = null;
+			transport = deviceTransport;
+		}
 
 		CalabashLogger.initialize(configuration);
+
+		if (configuration != null && configuration.getPreWarm()) {
+			preWarm = new FutureTask<Void>(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					calabashWrapper.preload();
+					return null;
+				}
+			});
+			Thread thread = new Thread(preWarm, "calabash-prewarm");
+			thread.setDaemon(true);
+			thread.start();
+		} else {
+			preWarm = null;
+		}
 	}
 
 	/**
@@ -94,175 +154,32 @@ public class CalabashRunner {
 	 * @return Collection of target names
 	 * @throws CalabashException
 	 */
-	@SuppressWarnings("unchecked")
 	public Collection<String> getTargets() throws CalabashException {
-		ArrayList<String> targets = new ArrayList<String>();
-
-		// Converting pbxproj file to XML so that we can make sense of it
-		File pbxProjXML = convertPbxProjectFileToXML();
-		Map<String, Object> pbxProjMap = null;
-		try {
-			pbxProjMap = Plist.load(pbxProjXML);
-		} catch (Exception e) {
-			throw new CalabashException(String.format(
-					"Failed to parse the plist content: %s", pbxProjXML), e);
-		}
-
-		if (pbxProjMap.get("objects") == null
-				|| !(pbxProjMap.get("objects") instanceof Map)) {
-			return targets;
-		}
-
-		// rootObject defines all the targets which will be an array of target
-		// IDs
-		// We pick each target ID and look that up in objects map to get the
-		// target name
-
-		Map<String, Object> objects = (Map<String, Object>) pbxProjMap
-				.get("objects");
-		String rootObjectId = (String) pbxProjMap.get("rootObject");
-		if (rootObjectId == null) {
-			return targets;
-		}
-
-		Map<String, Object> rootObject = (Map<String, Object>) objects
-				.get(rootObjectId);
-		Object object = rootObject.get("targets");
-		if (object == null || !(object instanceof ArrayList<?>)) {
-			return targets;
-		}
-
-		ArrayList<?> targetIds = (ArrayList<?>) object;
-		for (Object targetId : targetIds) {
-			if (objects.get(targetId) != null
-					&& objects.get(targetId) instanceof Map<?, ?>) {
-				Map<String, Object> target = (Map<String, Object>) objects
-						.get(targetId);
-				if (target.get("name") != null) {
-					targets.add(target.get("name").toString());
-				}
-			}
-		}
-
-		return targets;
+		return PbxProject.parse(pbxprojFile).getTargets();
 	}
 
-	private File convertPbxProjectFileToXML() throws CalabashException {
-		File xmlFile = null;
-		try {
-			xmlFile = File.createTempFile("calabash-ios", "temp");
-		} catch (IOException e) {
-			throw new CalabashException("Failed to make a temporay file", e);
-		}
-		String[] cmd = { "plutil", "-convert", "xml1", "-o",
-				xmlFile.getAbsolutePath(), pbxprojFile.getAbsolutePath() };
-		Process process = null;
-		try {
-			process = Runtime.getRuntime().exec(cmd);
-			int exitCode = process.waitFor();
-			if (exitCode != 0) {
-				String message = "";
-				InputStream errorStream = null;
-				try {
-					errorStream = process.getErrorStream();
-					message = Utils.toString(errorStream);
-				} finally {
-					if (errorStream != null)
-						errorStream.close();
-				}
-				throw new CalabashException(String.format(
-						"Failed to convert pbxproj file: %s. %s",
-						pbxprojFile.getAbsolutePath(), message));
-			}
-		} catch (IOException e) {
-			throw new CalabashException(String.format(
-					"Failed to convert pbxproj file: %s. %s",
-					pbxprojFile.getAbsolutePath(), e.getMessage()), e);
-		} catch (InterruptedException e) {
-			throw new CalabashException(String.format(
-					"Failed to convert pbxproj file: %s. %s",
-					pbxprojFile.getAbsolutePath(), e.getMessage()), e);
-		}
-
-		return xmlFile;
+	/**
+	 * Gets the project level build configurations in the XCode project, like
+	 * Debug and Release
+	 * 
+	 * @return Collection of build configuration names
+	 * @throws CalabashException
+	 */
+	public Collection<String> getBuildConfigurations()
+			throws CalabashException {
+		return PbxProject.parse(pbxprojFile).getBuildConfigurations();
 	}
 
 	private File extractGemsFromBundle() throws CalabashException {
-		File dir = getGemsExtractionDir();
-		File extracted = new File(dir, "extracted");
-		if (extracted.exists()) {
-			// Already extracted
-			return dir;
-		}
-
-		copyFileFromBundleTo("scripts", "launcher.rb", dir);
-		copyFileFromBundleTo("scripts", "gems.zip", dir);
+		StartupProfile.Measurement extract = startupProfile
+				.begin(StartupProfile.EXTRACT_GEMS);
 		try {
-			File gemszip = new File(dir, "gems.zip");
-			Utils.unzip(gemszip, dir);
-			gemszip.delete();
-			extracted.createNewFile();
-		} catch (Exception e) {
-			throw new CalabashException("Failed to unzip gems", e);
-		}
-
-		return dir;
-	}
-
-	private void copyFileFromBundleTo(String sourceDir, String fileName,
-			File outDir) throws CalabashException {
-		final ClassLoader classLoader = Thread.currentThread()
-				.getContextClassLoader();
-		InputStream stream = classLoader.getResourceAsStream(sourceDir + "/"
-				+ fileName);
-		if (stream == null)
-			throw new CalabashException(
-					String.format(
-							"Can't copy %s from the bundle. Make sure you are using the correct JAR file",
-							fileName), null);
-
-		try {
-			File file = new File(outDir, fileName);
-			file.createNewFile();
-			FileOutputStream outFile = new FileOutputStream(file);
-			byte[] buffer = new byte[10240];
-			int len;
-			while ((len = stream.read(buffer)) != -1) {
-				outFile.write(buffer, 0, len);
-			}
-			outFile.close();
-		} catch (IOException e) {
-			throw new CalabashException(
-					String.format(
-							"Can't copy %s from the bundle to %s. Failed to create destination file",
-							fileName, outDir.getAbsolutePath()), e);
-		}
-	}
-
-	private File getGemsExtractionDir() throws CalabashException {
-		try {
-			File tempFile = File.createTempFile("foo", "bar");
-			tempFile.delete();
-
-			File gemsDir = new File(tempFile.getParentFile(),
-					"calabash-ios-gems-" + getCurrentVersion());
-			if (!gemsDir.exists()) {
-				boolean created = gemsDir.mkdir();
-				if (!created)
-					throw new CalabashException(
-							"Can't create gems extraction directory. "
-									+ gemsDir.getAbsolutePath());
+			synchronized (EXTRACTION_LOCK) {
+				return new GemExtractor("scripts", new File(
+						System.getProperty("java.io.tmpdir"))).extract();
 			}
-
-			if (!gemsDir.isDirectory())
-				throw new CalabashException(String.format(
-						"Gems directory is invalid. %s is not a directory",
-						gemsDir.getAbsolutePath()));
-
-			return gemsDir;
-		} catch (IOException e) {
-			throw new CalabashException(
-					"Can't create gems extraction directory.", e);
+		} finally {
+			extract.end();
 		}
 	}
 
@@ -283,9 +200,24 @@ public class CalabashRunner {
 		if (this.pbxprojFile == null)
 			throw new CalabashException("Project path is not set");
 
-		if (isCalabashSetup())
+		if (checkCalabashSetup())
 			return;
 
+		if (configuration != null && configuration.getLoadGemsFromClasspath()) {
+			// Setup copies files out of the calabash gem, which needs the gems
+			// on disk. It is done once per project, so extracting is fine
+			CalabashWrapper setupWrapper = new CalabashWrapper(
+					extractGemsFromBundle(), projectDir, configuration);
+			setupWrapper.setStartupProfile(startupProfile);
+			try {
+				setupWrapper.setup(targetToDuplicate);
+			} finally {
+				setupWrapper.dispose();
+			}
+			return;
+		}
+
+		awaitPreWarm();
 		calabashWrapper.setup(targetToDuplicate);
 	}
 
@@ -297,24 +229,52 @@ public class CalabashRunner {
 	 * @throws CalabashException
 	 */
 	public IOSApplication start() throws CalabashException {
-		if (!isCalabashSetup()) {
+		if (!checkCalabashSetup()) {
 			String message = String.format("Calabash is not setup for %s",
 					this.pbxprojFile.getAbsolutePath());
 			CalabashLogger.error(message);
 			throw new CalabashException(message);
 		}
 
+		awaitPreWarm();
 		calabashWrapper.start();
-		return launchApplication();
+		IOSApplication application = launchApplication();
+		synchronized (applications) {
+			applications.add(application);
+		}
+		return application;
+	}
+
+	private void awaitPreWarm() throws CalabashException {
+		if (preWarm == null)
+			return;
+
+		try {
+			preWarm.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CalabashException(
+					"Interrupted while waiting for calabash to load", e);
+		} catch (ExecutionException e) {
+			// Loading is attempted again by the operation which needs it and
+			// that reports the failure
+			CalabashLogger.error("Pre-warming calabash failed", e.getCause());
+		}
 	}
 
 	/**
-	 * Releases resources associated with this runner
+	 * Releases resources associated with this runner and the applications it
+	 * started
 	 * 
 	 * @throws CalabashException
 	 */
 	public void dispose() throws CalabashException {
-		calabashWrapper.dispose();
+		synchronized (applications) {
+			for (IOSApplication application : applications)
+				application.dispose();
+			applications.clear();
+		}
+		transport.dispose();
 	}
 
 	/**
@@ -324,7 +284,7 @@ public class CalabashRunner {
 	 * @return
 	 */
 	protected IOSApplication launchApplication() {
-		return new IOSApplication(calabashWrapper);
+		return new IOSApplication(transport);
 	}
 
 	/**
@@ -344,50 +304,18 @@ public class CalabashRunner {
 	 * @throws CalabashException
 	 */
 	public boolean isCalabashSetup() throws CalabashException {
-		String[] cmd = { "grep", "calabash.framework",
-				pbxprojFile.getAbsolutePath() };
-		try {
-			Process process = Runtime.getRuntime().exec(cmd);
-			int exitCode = process.waitFor();
-			if (exitCode == 0)
-				return true;
-		} catch (IOException e) {
-			throw new CalabashException("Error checking calabash setup status",
-					e);
-		} catch (InterruptedException e) {
-			throw new CalabashException("Error checking calabash setup status",
-					e);
-		}
-
-		return false;
+		return PbxProject.parse(pbxprojFile).hasCalabashFramework();
 	}
 
-	private String getCurrentVersion() {
+	// Only the checks made while starting up are profiled
+	private boolean checkCalabashSetup() throws CalabashException {
+		StartupProfile.Measurement checkSetup = startupProfile
+				.begin(StartupProfile.CHECK_SETUP);
 		try {
-			Enumeration<URL> resources = getClass().getClassLoader()
-					.getResources("META-INF/MANIFEST.MF");
-			while (resources.hasMoreElements()) {
-				try {
-					Manifest manifest = new Manifest(resources.nextElement()
-							.openStream());
-					Attributes mainAttributes = manifest.getMainAttributes();
-					if (mainAttributes != null
-							&& "calabash-ios-java".equals(mainAttributes
-									.getValue("Project-Name"))) {
-						String value = mainAttributes
-								.getValue("Implementation-Version");
-						if (value != null)
-							return value;
-					}
-				} catch (Exception E) {
-					// ignore
-				}
-			}
-		} catch (Exception e) {
-			// ignore
+			return isCalabashSetup();
+		} finally {
+			checkSetup.end();
 		}
-
-		return "";
 	}
 
 	/**
@@ -398,4 +326,33 @@ public class CalabashRunner {
 	protected CalabashWrapper getCalabashWrapper() {
 		return calabashWrapper;
 	}
+
+	/**
+	 * Gets the wall time and allocations of the phases this runner went
+	 * through so far, like gem extraction, JRuby boot and application launch
+	 * 
+	 * @return Startup profile
+	 */
+	public StartupProfile getStartupProfile() {
+		return startupProfile;
+	}
+
+	/**
+	 * Gets the query cache used by the applications created by this runner.
+	 * This can be used to look at the hit and miss counts
+	 * 
+	 * @return Query cache, null if it is not enabled in the configuration
+	 */
+	public CachingTransport getQueryCache() {
+		return queryCache;
+	}
+
+	/**
+	 * Gets the transport used by the applications created by this runner
+	 * 
+	 * @return the transport
+	 */
+	protected ITransport getTransport() {
+		return transport;
+	}
 }
@@ -0,0 +1,180 @@
+/**
+ *
+ */
+package calabash.java;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static calabash.java.CalabashLogger.error;
+import static calabash.java.CalabashLogger.info;
+
+/**
+ * Talks to the calabash server running inside the application directly over
+ * HTTP. This avoids the round trip through the JRuby client for operations
+ * which are plain server requests.
+ *
+ */
+final class CalabashServerClient {
+
+	public static final String DEFAULT_END_POINT = "http://localhost:37265/";
+	private static final int CONNECT_TIMEOUT_IN_MS = 10000;
+	private static final int READ_TIMEOUT_IN_MS = 30000;
+	private static final String UTF_8 = "UTF-8";
+
+	private final String endPoint;
+
+	public CalabashServerClient(URI endPoint) {
+		String url = endPoint == null ? DEFAULT_END_POINT : endPoint
+				.toString();
+		this.endPoint = url.endsWith("/") ? url : url + "/";
+	}
+
+	/**
+	 * Runs the query on the server
+	 *
+	 * @param query
+	 *            Calabash query
+	 * @param selectors
+	 *            Optional property selectors applied on the query result
+	 * @return Query results. Elements are represented as {@link Map}
+	 * @throws CalabashException
+	 */
+	public List<?> query(String query, String... selectors)
+			throws CalabashException {
+		info("Executing query natively - %s", query);
+		Object[] arguments = selectors == null ? new Object[0] : selectors;
+		return map(query, "query", arguments);
+	}
+
+	/**
+	 * Checks if the query matches atleast one element
+	 *
+	 * @param query
+	 *            Calabash query
+	 * @return true if the element exists
+	 * @throws CalabashException
+	 */
+	public boolean elementExists(String query) throws CalabashException {
+		return !query(query).isEmpty();
+	}
+
+	/**
+	 * Runs the operation on every element matching the query. This is the
+	 * server side implementation of calabash's <code>map</code>
+	 *
+	 * @param query
+	 *            Calabash query
+	 * @param methodName
+	 *            Operation to perform
+	 * @param arguments
+	 *            Arguments to the operation
+	 * @return Results returned by the server
+	 * @throws CalabashException
+	 */
+	public List<?> map(String query, String methodName, Object... arguments)
+			throws CalabashException {
+		Map<String, Object> operation = new LinkedHashMap<String, Object>();
+		operation.put("method_name", methodName);
+		operation.put("arguments", Arrays.asList(arguments));
+
+		Map<String, Object> request = new LinkedHashMap<String, Object>();
+		request.put("query", query);
+		request.put("operation", operation);
+
+		Object response = Json.parse(post("map", Json.toJson(request)));
+		if (!(response instanceof Map<?, ?>))
+			throw new CalabashException(String.format(
+					"Unexpected response for '%s'. %s", query, response));
+
+		Map<?, ?> result = (Map<?, ?>) response;
+		if (!"SUCCESS".equals(result.get("outcome")))
+			throw new CalabashException(String.format(
+					"map %s, %s failed because: %s\n%s", query, methodName,
+					result.get("reason"), result.get("details")));
+
+		Object results = result.get("results");
+		if (!(results instanceof List<?>))
+			throw new CalabashException(String.format(
+					"Unexpected results for '%s'. %s", query, results));
+
+		return (List<?>) results;
+	}
+
+	/**
+	 * Gets the server version details
+	 *
+	 * @return Map with the server details
+	 * @throws CalabashException
+	 */
+	public Map<?, ?> serverVersion() throws CalabashException {
+		Object response = Json.parse(request("GET", "version", null));
+		if (!(response instanceof Map<?, ?>))
+			throw new CalabashException(String.format(
+					"Unexpected response for server version. %s", response));
+
+		return (Map<?, ?>) response;
+	}
+
+	private String post(String path, String body) throws CalabashException {
+		return request("POST", path, body);
+	}
+
+	private String request(String method, String path, String body)
+			throws CalabashException {
+		try {
+			// Streams are closed but the connection is not disconnected so
+			// that the underlying socket is kept alive for the next request
+			HttpURLConnection connection = (HttpURLConnection) new URL(
+					endPoint + path).openConnection();
+			connection.setConnectTimeout(CONNECT_TIMEOUT_IN_MS);
+			connection.setReadTimeout(READ_TIMEOUT_IN_MS);
+			connection.setRequestMethod(method);
+
+			if (body != null) {
+				connection.setDoOutput(true);
+				connection.setRequestProperty("Content-Type",
+						"application/json");
+				byte[] content = body.getBytes(UTF_8);
+				connection.setFixedLengthStreamingMode(content.length);
+				OutputStream out = connection.getOutputStream();
+				try {
+					out.write(content);
+				} finally {
+					out.close();
+				}
+			}
+
+			int status = connection.getResponseCode();
+			if (status != HttpURLConnection.HTTP_OK)
+				throw new CalabashException(String.format(
+						"Server at %s returned HTTP %d for %s", endPoint,
+						status, path));
+
+			InputStream in = connection.getInputStream();
+			try {
+				return Utils.toString(in, UTF_8);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			error("Request to %s%s failed", e, endPoint, path);
+			throw new CalabashException(String.format(
+					"Failed to reach calabash server at %s. %s", endPoint,
+					e.getMessage()), e);
+		}
+	}
+
+	public String getEndPoint() {
+		return endPoint;
+	}
+
+}
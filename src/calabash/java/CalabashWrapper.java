@@ -4,33 +4,54 @@
 package calabash.java;
 
 import org.jruby.RubyArray;
+import org.jruby.RubyInstanceConfig;
+import org.jruby.embed.EmbedEvalUnit;
 import org.jruby.embed.LocalContextScope;
 import org.jruby.embed.LocalVariableBehavior;
 import org.jruby.embed.PathType;
 import org.jruby.embed.ScriptingContainer;
+import org.jruby.javasupport.JavaEmbedUtils;
+import org.jruby.util.cli.Options;
 
 import java.io.File;
 import java.io.FileFilter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static calabash.java.CalabashLogger.error;
 import static calabash.java.CalabashLogger.info;
 
 /**
  * This is a one to one mapping with the Ruby calabash API
+ * <p>
+ * Each instance owns a separate Ruby runtime, so several wrappers can drive
+ * different devices concurrently from one JVM. Calls on the same instance
+ * are serialized as they share the Ruby variables used to pass arguments.
  *
  */
-public final class CalabashWrapper {
+public final class CalabashWrapper implements ITransport {
 
-	private final ScriptingContainer container = new ScriptingContainer(
-			LocalContextScope.SINGLETHREAD, LocalVariableBehavior.PERSISTENT);
+	private static final String INVOKE_DYNAMIC_PROPERTY = "jruby.compile.invokedynamic";
+	private final ScriptingContainer container;
 	private final File rbScriptsDir;
 	private final File projectDir;
 	private final File gemsDir;
+	private final ClasspathGems classpathGems;
+	private static final int BACKGROUND_RESUME_TIME_IN_MS = 2000;
 	private final CalabashConfiguration configuration;
+	private final Set<String> includedModules = new HashSet<String>();
+	private final Map<String, EmbedEvalUnit> compiledScripts = new HashMap<String, EmbedEvalUnit>();
+	private boolean calabashLoaded = false;
+	private boolean runtimeBooted = false;
+	private StartupProfile startupProfile = new StartupProfile();
+	private RubyMarshaller marshaller;
+	private SettleDetector settleDetector;
+	private Waiter waiter;
 	private long pauseTimeInMilliSec = 1000;
 	private boolean disposed = false;
 
@@ -44,28 +65,114 @@ public final class CalabashWrapper {
 
 		this.rbScriptsDir = rbScriptsDir;
 		this.gemsDir = new File(rbScriptsDir, "gems");
+		this.classpathGems = null;
 		this.projectDir = projectDir;
+		this.container = createContainer(configuration);
+		initialize();
+	}
+
+	/**
+	 * Initializes a wrapper which loads the gems and the launcher from the
+	 * class path instead of the file system
+	 */
+	CalabashWrapper(ClasspathGems classpathGems, File projectDir,
+			CalabashConfiguration configuration) throws CalabashException {
+		this.configuration = configuration;
+		if (!projectDir.isDirectory())
+			throw new CalabashException("Invalid project directory");
+
+		this.rbScriptsDir = null;
+		this.gemsDir = null;
+		this.classpathGems = classpathGems;
+		this.projectDir = projectDir;
+		this.container = createContainer(configuration);
+		initialize();
+	}
+
+	private static ScriptingContainer createContainer(
+			CalabashConfiguration configuration) {
+		if (configuration != null && configuration.getInvokeDynamic() != null)
+			setInvokeDynamic(configuration.getInvokeDynamic());
+
+		ScriptingContainer container = new ScriptingContainer(
+				LocalContextScope.SINGLETHREAD,
+				LocalVariableBehavior.PERSISTENT);
+		if (configuration != null && configuration.getJRubyCompileMode() != null)
+			container.setCompileMode(RubyInstanceConfig.CompileMode
+					.valueOf(configuration.getJRubyCompileMode().name()));
+		return container;
+	}
+
+	// JRuby reads this option once per JVM, so only the value in effect when
+	// the first runtime is created counts
+	private static synchronized void setInvokeDynamic(boolean value) {
+		System.setProperty(INVOKE_DYNAMIC_PROPERTY, String.valueOf(value));
+		if (Options.COMPILE_INVOKEDYNAMIC.load() != value)
+			info("JRuby is already initialized with %s=%s. Ignoring %s",
+					INVOKE_DYNAMIC_PROPERTY,
+					Options.COMPILE_INVOKEDYNAMIC.load(), value);
+	}
+
+	private void initialize() throws CalabashException {
 		this.initializeScriptingContainer();
 		if (configuration != null && configuration.getPauseTime() >= 0)
 			pauseTimeInMilliSec = configuration.getPauseTime();
+		if (configuration != null && configuration.getSettleDetection())
+			settleDetector = new SettleDetector(this,
+					configuration.getSettlePollInterval());
+		waiter = new Waiter(this, configuration != null ? configuration
+				.getScreenshotsDirectory() : null);
+	}
+
+	/**
+	 * Sets the transport used to check whether the UI settled after an
+	 * action. By default this wrapper itself is used.
+	 *
+	 * @param transport
+	 */
+	void setSettleTransport(ITransport transport) {
+		if (settleDetector != null)
+			settleDetector = new SettleDetector(transport,
+					configuration.getSettlePollInterval());
 	}
 
-	public void setup(String targetToDuplicate) throws CalabashException {
+	/**
+	 * Sets the profile in which the startup phases are recorded
+	 *
+	 * @param startupProfile
+	 */
+	void setStartupProfile(StartupProfile startupProfile) {
+		this.startupProfile = startupProfile;
+	}
+
+	public synchronized void setup(String targetToDuplicate) throws CalabashException {
 		try {
+			bootRuntime();
 			info("Setting up calabash for project: %s",
 					projectDir.getAbsolutePath());
-			info("Gems directory: %s", gemsDir.getAbsolutePath());
+			info("Gems directory: %s", getGemsDir());
 			info("Duplicating target: %s", targetToDuplicate == null ? ""
 					: targetToDuplicate);
 			container.put("ARGV",
 					new String[] { "setup", projectDir.getAbsolutePath() });
-			String calabashIOS = new File(getCalabashGemDirectory(),
-					"bin/calabash-ios").getAbsolutePath();
 			if (targetToDuplicate != null) {
 				container.put("cjTargetToDuplicate", targetToDuplicate);
 				container.runScriptlet("ENV['TARGET']=cjTargetToDuplicate");
 			}
-			container.runScriptlet(PathType.ABSOLUTE, calabashIOS);
+			StartupProfile.Measurement setup = startupProfile
+					.begin(StartupProfile.SETUP);
+			try {
+				if (classpathGems != null) {
+					container.runScriptlet(PathType.CLASSPATH, classpathGems
+							.getCalabashGemResource("bin/calabash-ios"));
+				} else {
+					String calabashIOS = new File(getCalabashGemDirectory(),
+							"bin/calabash-ios").getAbsolutePath();
+					container.runScriptlet(PathType.ABSOLUTE, calabashIOS);
+				}
+			} finally {
+				setup.end();
+			}
 		} catch (Exception e) {
 			error("Failed to setup calabash for project: %s", e,
 					projectDir.getAbsolutePath());
@@ -74,16 +181,40 @@ public final class CalabashWrapper {
 		}
 	}
 
-	public void start() throws CalabashException {
+	public synchronized void start() throws CalabashException {
 		try {
 			info("Starting the iOS application - %s",
 					projectDir.getAbsolutePath());
-			info("Gems directory: %s", gemsDir.getAbsolutePath());
+			info("Gems directory: %s", getGemsDir());
 
+			bootRuntime();
+			if (classpathGems != null)
+				classpathGems.extractResources(getResourcesBaseDir());
 						hackForFork();
-			String launcherScript = new File(rbScriptsDir, "launcher.rb")
-					.getAbsolutePath();
-			container.runScriptlet(PathType.ABSOLUTE, launcherScript);
+			// Required up front so that loading the launcher is not counted as
+			// part of the launch
+			StartupProfile.Measurement requireLauncher = startupProfile
+					.begin(StartupProfile.REQUIRE_LAUNCHER);
+			try {
+				container.runScriptlet("require 'calabash-cucumber/launcher'");
+			} finally {
+				requireLauncher.end();
+			}
+
+			StartupProfile.Measurement launch = startupProfile
+					.begin(StartupProfile.LAUNCH);
+			try {
+				if (classpathGems != null) {
+					container.runScriptlet(PathType.CLASSPATH,
+							classpathGems.getLauncherScript());
+				} else {
+					String launcherScript = new File(rbScriptsDir,
+							"launcher.rb").getAbsolutePath();
+					container.runScriptlet(PathType.ABSOLUTE, launcherScript);
+				}
+			} finally {
+				launch.end();
+			}
 		} catch (Exception e) {
 			error("Could not start the iOS application: %s ", e,
 					projectDir.getAbsolutePath());
@@ -119,7 +250,26 @@ public final class CalabashWrapper {
 		return message;
 	}
 
-	public RubyArray query(String query, String... args)
+	/**
+	 * Boots the Ruby runtime and loads the calabash gems so that the first
+	 * operation doesn't have to
+	 * 
+	 * @throws CalabashException
+	 */
+	public synchronized void preload() throws CalabashException {
+		ensureNotDisposed();
+		try {
+			info("Preloading calabash from %s", getGemsDir());
+			addRequiresAndIncludes("Calabash::Cucumber::Core",
+					"Calabash::Cucumber::Operations");
+		} catch (Exception e) {
+			error("Failed to preload calabash", e);
+			throw new CalabashException(String.format(
+					"Failed to preload calabash. %s", e.getMessage()));
+		}
+	}
+
+	public synchronized List<?> query(String query, String... args)
 			throws CalabashException {
 		ensureNotDisposed();
 		try {
@@ -130,11 +280,9 @@ public final class CalabashWrapper {
 
 			RubyArray queryResults = null;
 			if (args != null && args.length > 0)
-				queryResults = (RubyArray) container
-						.runScriptlet("query(cjQueryString, *cjQueryArgs)");
+				queryResults = (RubyArray) runCompiled("query(cjQueryString, *cjQueryArgs)");
 			else
-				queryResults = (RubyArray) container
-						.runScriptlet("query(cjQueryString)");
+				queryResults = (RubyArray) runCompiled("query(cjQueryString)");
 
 			return queryResults;
 		} catch (Exception e) {
@@ -144,13 +292,41 @@ public final class CalabashWrapper {
 		}
 	}
 
-	public String escapeQuotes(String source) throws CalabashException {
+	public synchronized List<List<?>> query(QueryBatch batch) throws CalabashException {
+		ensureNotDisposed();
+		try {
+			info("Executing batch of %d queries", batch.size());
+			addRequiresAndIncludes("Calabash::Cucumber::Core");
+			String[] queries = new String[batch.size()];
+			String[][] selectors = new String[batch.size()][];
+			for (int i = 0; i < batch.size(); i++) {
+				queries[i] = batch.getQuery(i);
+				selectors[i] = batch.getSelectors(i);
+			}
+			container.put("cjBatchQueries", queries);
+			container.put("cjBatchSelectors", selectors);
+
+			// All the queries are run with a single call into the Ruby client
+			RubyArray results = (RubyArray) runCompiled("cjBatchQueries.to_a.each_with_index.map { |q, i| query(q, *cjBatchSelectors[i]) }");
+			List<List<?>> batchResults = new ArrayList<List<?>>();
+			for (int i = 0; i < results.size(); i++) {
+				batchResults.add((List<?>) results.get(i));
+			}
+			return batchResults;
+		} catch (Exception e) {
+			error("Execution of query batch failed", e);
+			throw new CalabashException(String.format(
+					"Failed to execute query batch. %s", e.getMessage()));
+		}
+	}
+
+	public synchronized String escapeQuotes(String source) throws CalabashException {
 		try {
 			info("Escape quotes - %s", source);
             addRequiresAndIncludes("Calabash::Cucumber::Core",
 					"Calabash::Cucumber::Operations");
 			container.put("cjToEscape", source);
-			Object value = container.runScriptlet("escape_quotes(cjToEscape)");
+			Object value = runCompiled("escape_quotes(cjToEscape)");
 			if (value != null)
 				return value.toString();
 
@@ -162,13 +338,13 @@ public final class CalabashWrapper {
 		}
 	}
 
-	public void touch(String query) throws CalabashException {
+	public synchronized void touch(String query) throws CalabashException {
 		try {
 			info("Touching - %s", query);
             addRequiresAndIncludes("Calabash::Cucumber::Core",
 					"Calabash::Cucumber::Operations");
 			container.put("cjQueryString", query);
-			container.runScriptlet("touch(cjQueryString)");
+			runCompiled("touch(cjQueryString)");
 			pause();
 		} catch (Exception e) {
 			error("Failed to touch on: %s", e, query);
@@ -177,12 +353,12 @@ public final class CalabashWrapper {
 		}
 	}
 
-	public void flash(String query) throws CalabashException {
+	public synchronized void flash(String query) throws CalabashException {
 		try {
 			info("Flashing: %s", query);
             addRequiresAndIncludes("Calabash::Cucumber::Core");
 			container.put("cjQueryString", query);
-			container.runScriptlet("flash(cjQueryString)");
+			runCompiled("flash(cjQueryString)");
 		} catch (Exception e) {
 			error("Failed to flash on: %s", e, query);
 			throw new CalabashException(String.format(
@@ -190,14 +366,14 @@ public final class CalabashWrapper {
 		}
 	}
 
-	public void scroll(String query, Direction direction)
+	public synchronized void scroll(String query, Direction direction)
 			throws CalabashException {
 		try {
 			info("Scrolling: %s", query);
             addRequiresAndIncludes("Calabash::Cucumber::Core");
 			container.put("cjQueryString", query);
 			container.put("cjDirection", direction.getDirection());
-			container.runScriptlet("scroll(cjQueryString, cjDirection)");
+			runCompiled("scroll(cjQueryString, cjDirection)");
 			pause();
 		} catch (Exception e) {
 			error("Failed to scroll: %s", e, query);
@@ -206,24 +382,16 @@ public final class CalabashWrapper {
 		}
 	}
 
-	public void swipe(String query, Direction direction, SwipeOptions options)
+	public synchronized void swipe(String query, Direction direction, SwipeOptions options)
 			throws CalabashException {
 		try {
 			info("Swiping: %s, with options: %s", query,
 					options == null ? "null" : options.toString());
             addRequiresAndIncludes("Calabash::Cucumber::Core",
 					"Calabash::Cucumber::Operations");
-			container.put("cjQueryString", query);
 			container.put("cjDirection", direction.getDirection());
-			if (options != null) {
-				container.put("cjSwipeOptsString", options.toString());
-				container.runScriptlet("cjSwipeOpts = eval(cjSwipeOptsString)");
-				container.runScriptlet("cjSwipeOpts[:query] = cjQueryString");
-				container.runScriptlet("swipe(cjDirection, cjSwipeOpts)");
-			} else {
-				container
-						.runScriptlet("swipe(cjDirection, {:query => cjQueryString})");
-			}
+			container.put("cjSwipeOpts", marshaller().toHash(options, query));
+			runCompiled("swipe(cjDirection, cjSwipeOpts)");
 			pause();
 		} catch (Exception e) {
 			error("Failed to swipe: %s", e, query);
@@ -232,19 +400,14 @@ public final class CalabashWrapper {
 		}
 	}
 
-	public void pinch(String query, String inOrOut) throws CalabashException {
+	public synchronized void pinch(String query, String inOrOut) throws CalabashException {
 		try {
 			info("Pinching: %s. In or out: %s", query, inOrOut);
             addRequiresAndIncludes("Calabash::Cucumber::Core",
 					"Calabash::Cucumber::Operations");
-			container.put("cjInOrOut", inOrOut);
-			if (query != null) {
-				container.put("cjQueryString", query);
-				container
-						.runScriptlet("pinch(cjInOrOut.to_sym, {:query => cjQueryString})");
-			} else {
-				container.runScriptlet("pinch(cjInOrOut.to_sym, {})");
-			}
+			container.put("cjInOrOut", marshaller().toSymbol(inOrOut));
+			container.put("cjPinchOpts", marshaller().toSymbolHash("query", query));
+			runCompiled("pinch(cjInOrOut, cjPinchOpts)");
 			pause();
 		} catch (Exception e) {
 			error("Failed to pinch: %s", e, query);
@@ -253,13 +416,13 @@ public final class CalabashWrapper {
 		}
 	}
 
-	public void rotate(String direction) throws CalabashException {
+	public synchronized void rotate(String direction) throws CalabashException {
 		try {
 			info("Rotating to %s", direction);
             addRequiresAndIncludes("Calabash::Cucumber::Core",
 					"Calabash::Cucumber::TestsHelpers");
-			container.put("cjDirection", direction);
-			container.runScriptlet("rotate(cjDirection.to_sym)");
+			container.put("cjRotateDirection", marshaller().toSymbol(direction));
+			runCompiled("rotate(cjRotateDirection)");
 			pause();
 		} catch (Exception e) {
 			error("Failed to rotate to: %s", e, direction);
@@ -268,11 +431,11 @@ public final class CalabashWrapper {
 		}
 	}
 
-	public void exit() throws CalabashException {
+	public synchronized void exit() throws CalabashException {
 		try {
 			info("Exiting iOS application");
 						addRequiresAndIncludes("Calabash::Cucumber::Core");
-			container.runScriptlet("calabash_exit");
+			runCompiled("calabash_exit");
 		} catch (Exception e) {
 			error("Exiting iOS application failed.", e);
 			throw new CalabashException(String.format(
@@ -280,11 +443,11 @@ public final class CalabashWrapper {
 		}
 	}
 
-	public void startRecording() throws CalabashException {
+	public synchronized void startRecording() throws CalabashException {
 		try {
 			info("Starting recording");
             addRequiresAndIncludes("Calabash::Cucumber::Core");
-			container.runScriptlet("record_begin");
+			runCompiled("record_begin");
 		} catch (Exception e) {
 			error("Failed to start recording.", e);
 			throw new CalabashException(String.format(
@@ -292,12 +455,12 @@ public final class CalabashWrapper {
 		}
 	}
 
-	public void stopRecording(String filename) throws CalabashException {
+	public synchronized void stopRecording(String filename) throws CalabashException {
 		try {
 			info("Stopping recording");
             addRequiresAndIncludes("Calabash::Cucumber::Core");
 			container.put("cjFileName", filename);
-			container.runScriptlet("record_end cjFileName");
+			runCompiled("record_end cjFileName");
 		} catch (Exception e) {
 			error("Failed to stop recording.", e);
 			throw new CalabashException(String.format(
@@ -305,31 +468,16 @@ public final class CalabashWrapper {
 		}
 	}
 
-	public void playback(String recording, String query, Offset offset)
+	public synchronized void playback(String recording, String query, Offset offset)
 			throws CalabashException {
 		try {
 			info("Playback: %s", recording);
             addRequiresAndIncludes("Calabash::Cucumber::Core",
 					"Calabash::Cucumber::Operations");
 			container.put("cjRecording", recording);
-			if (query != null && offset != null) {
-				container.put("cjQuery", query);
-				container.put("cjOffsetX", offset.getX());
-				container.put("cjOffsetY", offset.getY());
-				container
-						.runScriptlet("playback cjRecording, :query => cjQuery, :offset => {:x => cjOffsetX, :y => cjOffsetY}");
-			} else if (query != null) {
-				container.put("cjQuery", query);
-				container
-						.runScriptlet("playback cjRecording, :query => cjQuery");
-			} else if (offset != null) {
-				container.put("cjOffsetX", offset.getX());
-				container.put("cjOffsetY", offset.getY());
-				container
-						.runScriptlet("playback cjRecording, :offset => {:x => cjOffsetX, :y => cjOffsetY}");
-			} else {
-				container.runScriptlet("playback cjRecording, {}");
-			}
+			container.put("cjPlaybackOpts",
+					marshaller().toPlaybackHash(query, offset));
+			runCompiled("playback(cjRecording, cjPlaybackOpts)");
 		} catch (Exception e) {
 			error("Failed to stop recording.", e);
 			throw new CalabashException(String.format(
@@ -337,36 +485,35 @@ public final class CalabashWrapper {
 		}
 	}
 
-	public Object serverVersion() throws CalabashException {
+	public synchronized Object serverVersion() throws CalabashException {
 		try {
             addRequiresAndIncludes("Calabash::Cucumber::Core");
-			return container.runScriptlet("server_version");
+			return runCompiled("server_version");
 		} catch (Exception e) {
 			throw new CalabashException(String.format(
 					"Failed to check server version. %s", e.getMessage()));
 		}
 	}
 
-	public Object clientVersion() throws CalabashException {
+	public synchronized Object clientVersion() throws CalabashException {
 		try {
             addRequiresAndIncludes("Calabash::Cucumber::Core");
-			return container.runScriptlet("client_version");
+			return runCompiled("client_version");
 		} catch (Exception e) {
 			throw new CalabashException(String.format(
 					"Failed to check client version. %s", e.getMessage()));
 		}
 	}
 
-	public void takeScreenShot(File dir, String fileName)
+	public synchronized void takeScreenShot(File dir, String fileName)
 			throws CalabashException {
 		try {
 			info("Taking screenshot");
             addRequiresAndIncludes("Calabash::Cucumber::Core",
 					"Calabash::Cucumber::TestsHelpers");
-			container.put("cjPrefix", dir.getAbsolutePath() + "/");
-			container.put("cjFileName", fileName);
-			container
-					.runScriptlet("screenshot_embed(options={:prefix => cjPrefix, :name => cjFileName})");
+			container.put("cjScreenshotOpts", marshaller().toSymbolHash(
+					"prefix", dir.getAbsolutePath() + "/", "name", fileName));
+			runCompiled("screenshot_embed(cjScreenshotOpts)");
 		} catch (Exception e) {
 			error("Failed to take screenshot.", e);
 			throw new CalabashException(String.format(
@@ -374,14 +521,14 @@ public final class CalabashWrapper {
 		}
 	}
 
-	public boolean elementExists(String query) throws CalabashException {
+	public synchronized boolean elementExists(String query) throws CalabashException {
 		ensureNotDisposed();
 		try {
 			info("Checking element exists: %s", query);
             addRequiresAndIncludes("Calabash::Cucumber::Core",
 					"Calabash::Cucumber::TestsHelpers");
 			container.put("cjQuery", query);
-			Object result = container.runScriptlet("element_exists(cjQuery)");
+			Object result = runCompiled("element_exists(cjQuery)");
 			return (Boolean) result;
 		} catch (Exception e) {
 			error("Failed to check element exists.", e);
@@ -390,13 +537,13 @@ public final class CalabashWrapper {
 		}
 	}
 
-	public void enterText(String text) throws CalabashException {
+	public synchronized void enterText(String text) throws CalabashException {
 		try {
 			info("Entering text - %s", text);
             addRequiresAndIncludes("Calabash::Cucumber::Core",
 					"Calabash::Cucumber::KeyboardHelpers");
 			container.put("cjTextToEnter", text);
-			container.runScriptlet("keyboard_enter_text(cjTextToEnter)");
+			runCompiled("keyboard_enter_text(cjTextToEnter)");
 			pause();
 		} catch (Exception e) {
 			error("Failed to enter text: %s", e, text);
@@ -405,13 +552,13 @@ public final class CalabashWrapper {
 		}
 	}
 
-	public void enterChar(String text) throws CalabashException {
+	public synchronized void enterChar(String text) throws CalabashException {
 		try {
 			info("Entering character '%s'", text);
             addRequiresAndIncludes("Calabash::Cucumber::Core",
 					"Calabash::Cucumber::KeyboardHelpers");
 			container.put("cjCharToEnter", text);
-			container.runScriptlet("keyboard_enter_char(cjCharToEnter)");
+			runCompiled("keyboard_enter_char(cjCharToEnter)");
 			pause();
 		} catch (Exception e) {
 			error("Failed to enter character: %s", e, text);
@@ -420,11 +567,11 @@ public final class CalabashWrapper {
 		}
 	}
 
-	public void done() throws CalabashException {
+	public synchronized void done() throws CalabashException {
 		try {
 			info("Pressing done button");
             addRequiresAndIncludes("Calabash::Cucumber::Core");
-			container.runScriptlet("done");
+			runCompiled("done");
 		} catch (Exception e) {
 			error("Failed to press done button", e);
 			throw new CalabashException(String.format(
@@ -432,13 +579,18 @@ public final class CalabashWrapper {
 		}
 	}
 
-	public void sendAppToBackground(int seconds) throws CalabashException {
+	public synchronized void sendAppToBackground(int seconds) throws CalabashException {
 		try {
 			info("Sending application to background for '%d' seconds", seconds);
             addRequiresAndIncludes("Calabash::Cucumber::Core");
 			container.put("cjSeconds", seconds);
-			container.runScriptlet("send_app_to_background(cjSeconds)");
-			pause((seconds + 2) * 1000);
+			runCompiled("send_app_to_background(cjSeconds)");
+			if (settleDetector != null) {
+				pause(seconds * 1000);
+				settleDetector.awaitSettled(BACKGROUND_RESUME_TIME_IN_MS);
+			} else {
+				pause(seconds * 1000 + BACKGROUND_RESUME_TIME_IN_MS);
+			}
 		} catch (Exception e) {
 			error("Failed to send application to background", e);
 			throw new CalabashException(String.format(
@@ -447,81 +599,36 @@ public final class CalabashWrapper {
 		}
 	}
 
+	// Waits poll from Java and do not hold the lock between attempts, so
+	// the condition can use this wrapper from other threads as well
 	public void waitForKeyboard() throws CalabashException {
-		try {
-			info("Waiting for keyboard to showup");
-            addRequiresAndIncludes("Calabash::Cucumber::Core",
-					"Calabash::Cucumber::KeyboardHelpers");
-			container.runScriptlet("wait_for_keyboard");
-		} catch (Exception e) {
-			error("Failed to wait for keyboard", e);
-			throw new CalabashException(String.format(
-					"Failed to wait for keyboard. %s", e.getMessage()));
-		}
+		info("Waiting for keyboard to showup");
+		waiter.waitForKeyboard();
 	}
 
 	public void waitFor(ICondition condition, WaitOptions options)
 			throws CalabashException, OperationTimedoutException {
-		try {
-			info("Waiting for condition");
-            addRequiresAndIncludes("Calabash::Cucumber::Core",
-					"Calabash::Cucumber::WaitHelpers");
-			container.put("cjWaitCondition", condition);
-			String waitOptionsHash = getWaitOptionsHash(options);
-			if (waitOptionsHash == null)
-				container.runScriptlet("wait_for { cjWaitCondition.test }");
-			else {
-				container.runScriptlet(String.format(
-						"wait_for(%s) { cjWaitCondition.test }",
-						waitOptionsHash));
-			}
-		} catch (Exception e) {
-			handleWaitException(e, options);
-		}
+		info("Waiting for condition");
+		waiter.waitFor(condition, options);
 	}
 
 	public void waitForElementsExist(String[] queries, WaitOptions options)
 			throws OperationTimedoutException, CalabashException {
-		try {
-            addRequiresAndIncludes("Calabash::Cucumber::Core",
-					"Calabash::Cucumber::WaitHelpers");
-			container.put("cjWaitQueries", queries);
-			String waitOptionsHash = getWaitOptionsHash(options);
-			if (waitOptionsHash == null)
-				container
-						.runScriptlet("wait_for_elements_exist(cjWaitQueries.to_a)");
-			else
-				container.runScriptlet(String.format(
-						"wait_for_elements_exist(cjWaitQueries.to_a, %s)",
-						waitOptionsHash));
-		} catch (Exception e) {
-			handleWaitException(e, options);
-		}
+		waiter.waitForElementsExist(queries, options);
 	}
 
 	public void waitForElementsToNotExist(String[] queries, WaitOptions options)
 			throws OperationTimedoutException, CalabashException {
-		try {
-            addRequiresAndIncludes("Calabash::Cucumber::Core",
-					"Calabash::Cucumber::WaitHelpers");
-			container.put("cjWaitQueries", queries);
-			String waitOptionsHash = getWaitOptionsHash(options);
-			if (waitOptionsHash == null)
-				container.runScriptlet("wait_for_elements_do_not_exist(cjWaitQueries.to_a)");
-			else
-                container.runScriptlet(String.format("wait_for_elements_do_not_exist(cjWaitQueries.to_a, %s)", waitOptionsHash));
-        } catch (Exception e) {
-            handleWaitException(e, options);
-		}
+		waiter.waitForElementsToNotExist(queries, options);
 	}
 
-	public void scrollToRow(String query, int row) throws CalabashException {
+	public synchronized void scrollToRow(String query, int row) throws CalabashException {
 		try {
 			info("Scrolling to row '%d' for query - %s", row, query);
 						addRequiresAndIncludes("Calabash::Cucumber::Core");
 			container.put("cjQueryString", query);
 			container.put("cjRow", row);
-			container.runScriptlet("scroll_to_row(cjQueryString, cjRow)");
+			runCompiled("scroll_to_row(cjQueryString, cjRow)");
 			pause();
 		} catch (Exception e) {
 			error("Failed to scroll to row '%d' for query - %s", e, row, query);
@@ -531,13 +638,13 @@ public final class CalabashWrapper {
 		}
 	}
 
-	public void scrollToCell(String query, ScrollOptions options)
+	public synchronized void scrollToCell(String query, ScrollOptions options)
 			throws CalabashException {
 		try {
 			info("Scrolling to a cell for query - %s", query);
 						addRequiresAndIncludes("Calabash::Cucumber::Core");
-			container.runScriptlet(String.format("scroll_to_cell(%s)",
-					getScrollOptionsHash(query, options)));
+			container.put("cjScrollOpts", marshaller().toHash(query, options));
+			runCompiled("scroll_to_cell(cjScrollOpts)");
 			pause();
 		} catch (Exception e) {
 			error("Failed to scroll to a cell for query - %s", e, query);
@@ -547,19 +654,19 @@ public final class CalabashWrapper {
 		}
 	}
 
-	public void scrollThroughEachCell(String query, ScrollOptions options,
+	public synchronized void scrollThroughEachCell(String query, ScrollOptions options,
 			CellIterator callback) throws CalabashException {
 		try {
 			info("Starting to scroll through each cells for query - %s", query);
 						addRequiresAndIncludes("Calabash::Cucumber::Core");
 			container.put("cjCallback", new ScrollThroughEachCellCallback(
 					callback, this));
-			String scrollOptionsHash = getScrollOptionsHash(query, options);
-			String script = "each_cell(%s) do |row, sec|\n"
+			container.put("cjScrollOpts", marshaller().toHash(query, options));
+			String script = "each_cell(cjScrollOpts) do |row, sec|\n"
 					+ "q = \"tableViewCell indexPath:#{row},#{sec} label\"\n"
 					+ "element = query(q)\n"
 					+ "cjCallback.onEachCell(row, sec, q, element)\n" + "end";
-			container.runScriptlet(String.format(script, scrollOptionsHash));
+			runCompiled(script);
 		} catch (Exception e) {
 			error("Failed to scroll through each cells for query - %s", e,
 					query);
@@ -569,56 +676,19 @@ public final class CalabashWrapper {
 		}
 	}
 
-	private void handleWaitException(Exception e, WaitOptions options)
-			throws OperationTimedoutException, CalabashException {
-		if (e.toString().contains("Calabash::Cucumber::WaitHelpers::WaitError")) {
-			String message = null;
-			if (options != null)
-				message = options.getTimeoutMessage();
-
-			error("Timedout waiting");
-			throw new OperationTimedoutException(
-					message == null ? "Timed out waiting..." : message);
-		} else {
-			error("Failed to wait for condition. %s", e, e.getMessage());
-			throw new CalabashException(String.format(
-					"Failed to wait for condition. %s", e.getMessage()));
-		}
+	private RubyMarshaller marshaller() {
+		if (marshaller == null)
+			marshaller = new RubyMarshaller(container.getProvider()
+					.getRuntime());
+		return marshaller;
 	}
 
-	private String getWaitOptionsHash(WaitOptions options) {
-		if (options == null)
-			return null;
-		else {
-			container.put("cjWaitTimeout", options.getTimeoutInSec());
-			container.put("cjWaitRetryFreq", options.getRetryFreqInSec());
-			container.put("cjWaitPostTimeout", options.getPostTimeoutInSec());
-			container.put("cjWaitTimeoutMessage", options.getTimeoutMessage());
-			container.put("cjWaitShouldTakeScreenshot",
-					options.shouldScreenshotOnError());
-			return "{:timeout => cjWaitTimeout, :retry_frequency => cjWaitRetryFreq, :post_timeout => cjWaitPostTimeout, :timeout_message => cjWaitTimeoutMessage, :screenshot_on_error => cjWaitShouldTakeScreenshot}";
-		}
-	}
-
-	private String getScrollOptionsHash(String query, ScrollOptions options) {
-		container.put("cjQueryString", query);
-		if (options != null) {
-			container.put("cjScrollRow", options.getRow());
-			container.put("cjScrollSection", options.getSection());
-			container.put("cjScrollPosition", options.getDirection()
-					.getDirection());
-			container.put("cjScrollAnimate", options.shouldAnimate());
-			return "{:query => cjQueryString, :row => cjScrollRow, :section => cjScrollSection, :scroll_position => cjScrollPosition.to_sym, :animate => cjScrollAnimate}";
-		}
-		return "{:query => cjQueryString}";
-	}
-
-	public void waitForNoneAnimating() throws CalabashException {
+	public synchronized void waitForNoneAnimating() throws CalabashException {
 		try {
 			info("Waiting for all the animations to finish");
 						addRequiresAndIncludes("Calabash::Cucumber::Core",
 					"Calabash::Cucumber::WaitHelpers");
-			container.runScriptlet("wait_for_none_animating");
+			runCompiled("wait_for_none_animating");
 		} catch (Exception e) {
 			error("Error waiting for all the animations to finish", e);
 			throw new CalabashException(String.format("Failed to wait. %s",
@@ -626,37 +696,171 @@ public final class CalabashWrapper {
 		}
 	}
 
-	private void addRequiresAndIncludes(String... modules) {
-		StringBuilder script = new StringBuilder(
-				"require 'calabash-cucumber'\n");
+	// Scripts are parsed once and the parsed unit is reused for subsequent
+	// calls. Values are passed using persistent variables which are injected
+	// every time the unit runs. All variables referred by the script should
+	// be set before the first run so that the parser treats them as local
+	// variables.
+	private Object runCompiled(String script) {
+		EmbedEvalUnit unit = compiledScripts.get(script);
+		if (unit == null) {
+			unit = container.parse(script);
+			compiledScripts.put(script, unit);
+		}
+		return JavaEmbedUtils.rubyToJava(unit.run());
+	}
+
+	private void bootRuntime() throws CalabashException {
+		if (runtimeBooted)
+			return;
+
+		// The container creates the runtime on first use
+		StartupProfile.Measurement boot = startupProfile
+				.begin(StartupProfile.BOOT_JRUBY);
+		try {
+			container.getProvider().getRuntime();
+		} finally {
+			boot.end();
+		}
+		redirectGemDirectories();
+		runtimeBooted = true;
+	}
+
+	// Gems find their scripts and resources relative to __FILE__ and hand them
+	// to processes like instruments. That doesn't work when __FILE__ is a
+	// classpath: URL, or a .class file under aot/, which has no resources
+	// next to it. Such directories are mapped to the gem sources on disk. In
+	// class path mode that is the copy which start() writes with
+	// ClasspathGems.extractResources, and requires of Ruby files through it
+	// go back to the class path, as only the other files are written
+	private void redirectGemDirectories() throws CalabashException {
+		boolean precompiled = configuration != null
+				&& configuration.getPrecompiledGems();
+		List<String> gemDirs = new ArrayList<String>();
+		List<String> requireDirs = new ArrayList<String>();
+		if (classpathGems != null) {
+			String classpathDir = classpathGems.location() + "/gems/";
+			String resourcesDir = new File(classpathGems
+					.getResourcesDir(getResourcesBaseDir()), "gems")
+					.getAbsolutePath()
+					+ "/";
+			gemDirs.add(classpathDir);
+			gemDirs.add(resourcesDir);
+			if (precompiled) {
+				gemDirs.add(classpathGems.location() + "/aot/gems/");
+				gemDirs.add(resourcesDir);
+			}
+			requireDirs.add(resourcesDir);
+			requireDirs.add(classpathDir);
+		} else if (precompiled) {
+			gemDirs.add(new File(rbScriptsDir, "aot/gems").getAbsolutePath()
+					+ "/");
+			gemDirs.add(gemsDir.getAbsolutePath() + "/");
+		} else {
+			return;
+		}
+
+		container.put("$cj_gem_dirs", gemDirs.toArray(new String[0]));
+		container.put("$cj_require_dirs", requireDirs.toArray(new String[0]));
+		String script = "$cj_gem_dirs = $cj_gem_dirs.to_a.each_slice(2).to_a\n"
+				+ "$cj_require_dirs = $cj_require_dirs.to_a.each_slice(2).to_a\n"
+				+ "module CalabashJava\n"
+				+ "  def self.map_path(dirs, path)\n"
+				+ "    return path unless path.is_a?(String)\n"
+				+ "    dirs.each do |from, to|\n"
+				+ "      return to + path[from.length..-1] if path.start_with?(from)\n"
+				+ "    end\n"
+				+ "    path\n"
+				+ "  end\n"
+				+ "end\n"
+				+ "class << File\n"
+				+ "  alias_method :cj_gem_dirname, :dirname\n"
+				+ "  alias_method :cj_gem_expand_path, :expand_path\n"
+				+ "  def dirname(path)\n"
+				+ "    CalabashJava.map_path($cj_gem_dirs, cj_gem_dirname(path))\n"
+				+ "  end\n"
+				+ "  def expand_path(path, *dir)\n"
+				+ "    cj_gem_expand_path(CalabashJava.map_path($cj_gem_dirs, path), *dir.map { |d| CalabashJava.map_path($cj_gem_dirs, d) })\n"
+				+ "  end\n"
+				+ "end\n"
+				// JRuby 1.7.5 can't bind a compiled 'def require' in FORCE
+				// compile mode, so it is defined with a block
+				+ "module Kernel\n"
+				+ "  alias_method :cj_gem_require, :require\n"
+				+ "  define_method(:require) do |path|\n"
+				+ "    cj_gem_require(CalabashJava.map_path($cj_require_dirs, path))\n"
+				+ "  end\n"
+				+ "  private :require\n"
+				+ "end\n";
+		container.runScriptlet(script);
+	}
+
+	private static File getResourcesBaseDir() {
+		return new File(System.getProperty("java.io.tmpdir"));
+	}
+
+	// Requiring calabash, including modules and defining methods are done
+	// only once per container. Re-evaluating them on every call is costly and
+	// re-defining methods invalidates JRuby's method caches.
+	private void addRequiresAndIncludes(String... modules)
+			throws CalabashException {
+		bootRuntime();
+		StringBuilder script = new StringBuilder();
+		if (!calabashLoaded)
+			script.append("require 'calabash-cucumber'\n");
+
 		for (String module : modules) {
+			if (includedModules.contains(module))
+				continue;
 			script.append("include " + module);
 			script.append("\n");
 		}
 
-		// HACK - Calabash ruby calls embed method when there is a error.
-		// This is from cucumber and won't be available in the Jruby
-		// environment. So just defining a function to suppress the error
-		if (configuration != null
-				&& configuration.getScreenshotListener() != null) {
-			container.put("@cjScreenshotCallback",
-					configuration.getScreenshotListener());
-			script.append("def embed(path,image_type,file_name)\n @cjScreenshotCallback.screenshotTaken(path, image_type, file_name)\n end\n");
-		} else {
-			script.append("def embed(path,image_type,file_name)\nend\n");
+		if (!calabashLoaded) {
+			// HACK - Calabash ruby calls embed method when there is a error.
+			// This is from cucumber and won't be available in the Jruby
+			// environment. So just defining a function to suppress the error
+			if (configuration != null
+					&& configuration.getScreenshotListener() != null) {
+				container.put("@cjScreenshotCallback",
+						configuration.getScreenshotListener());
+				script.append("def embed(path,image_type,file_name)\n @cjScreenshotCallback.screenshotTaken(path, image_type, file_name)\n end\n");
+			} else {
+				script.append("def embed(path,image_type,file_name)\nend\n");
+			}
 		}
 
-		container.runScriptlet(script.toString());
+		if (script.length() == 0)
+			return;
+
+		if (calabashLoaded) {
+			container.runScriptlet(script.toString());
+		} else {
+			StartupProfile.Measurement require = startupProfile
+					.begin(StartupProfile.REQUIRE_CALABASH);
+			try {
+				container.runScriptlet(script.toString());
+			} finally {
+				require.end();
+			}
+		}
+		calabashLoaded = true;
+		for (String module : modules) {
+			includedModules.add(module);
+		}
 	}
 
 	public String getGemsDir() {
+		if (classpathGems != null)
+			return classpathGems.location();
 		return gemsDir.getAbsolutePath();
 	}
 
-	public void dispose() throws CalabashException {
+	public synchronized void dispose() throws CalabashException {
 		try {
 						container.getProvider().getRuntime().tearDown(true);
 			container.terminate();
+			compiledScripts.clear();
 			disposed = true;
 		} catch (Throwable e) {
 			error("Failed to dispose container. ", e);
@@ -666,19 +870,31 @@ public final class CalabashWrapper {
 	}
 
 	private final void initializeScriptingContainer() throws CalabashException {
-		// We manage JRuby home to work around a bug in JRuby
-		// (https://github.com/jruby/jruby/issues/1051)
-		container.setHomeDirectory(new File(rbScriptsDir, "jruby.home")
-				.getAbsolutePath());
+		if (classpathGems != null) {
+			container.setClassLoader(classpathGems.getClassLoader());
+			String home = classpathGems.getJRubyHome();
+			if (home != null)
+				container.setHomeDirectory(home);
+		} else {
+			// We manage JRuby home to work around a bug in JRuby
+			// (https://github.com/jruby/jruby/issues/1051)
+			container.setHomeDirectory(new File(rbScriptsDir, "jruby.home")
+					.getAbsolutePath());
+		}
 
+		// Defaults come first and the process environment overrides them.
+		// Values configured for this session, like DEVICE_ENDPOINT, are put
+		// last so that they win over the process environment
 		HashMap<String, String> environmentVariables = new HashMap<String, String>();
 		environmentVariables.put("PROJECT_DIR", projectDir.getAbsolutePath());
 		environmentVariables.put("HOME", System.getProperty("user.home"));
 		environmentVariables.put("DETECT_CONNECTED_DEVICE", "0");
-		if (configuration != null) {
+		if (configuration != null)
 			environmentVariables.put("SCREENSHOT_PATH", configuration
 					.getScreenshotsDirectory().getAbsolutePath() + "/");
+		environmentVariables.putAll(System.getenv());
 
+		if (configuration != null) {
 			if (configuration.getDevice() != null
 					&& configuration.getDevice().length() != 0)
 				environmentVariables.put("DEVICE", configuration.getDevice());
@@ -725,19 +941,29 @@ public final class CalabashWrapper {
 			}
 		}
 
-		// Adding all system defined env variables
-		environmentVariables.putAll(System.getenv());
-
 		container.setEnvironment(environmentVariables);
 
-		// Load paths points to the gem directory
-		container.getLoadPaths().addAll(getLoadPaths());
+		// Load paths points to the gem directory. Compiled scripts come first
+		// as JRuby loads the first match of a require
+		boolean precompiled = configuration != null
+				&& configuration.getPrecompiledGems();
+		if (classpathGems != null) {
+			if (precompiled)
+				container.getLoadPaths().addAll(
+						classpathGems.getPrecompiledLoadPaths());
+			container.getLoadPaths().addAll(classpathGems.getLoadPaths());
+		} else {
+			if (precompiled)
+				container.getLoadPaths().addAll(
+						getLoadPaths(new File(rbScriptsDir, "aot/gems")));
+			container.getLoadPaths().addAll(getLoadPaths(gemsDir));
+		}
 
 		// No stderr
 		container.setErrorWriter(new StringWriter());
 	}
 
-	private List<String> getLoadPaths() throws CalabashException {
+	private List<String> getLoadPaths(File gemsDir) throws CalabashException {
 		ArrayList<String> loadPaths = new ArrayList<String>();
 		File[] gems = gemsDir.listFiles(new FileFilter() {
 
@@ -781,7 +1007,14 @@ public final class CalabashWrapper {
 		return calabashGemPath[0];
 	}
 
+	// When settle detection is enabled, pause time is the upper bound and
+	// this returns as soon as the UI settles
 	private void pause() {
+		if (settleDetector != null) {
+			settleDetector.awaitSettled(pauseTimeInMilliSec);
+			return;
+		}
+
 		try {
 			Thread.sleep(pauseTimeInMilliSec);
 		} catch (InterruptedException e) {
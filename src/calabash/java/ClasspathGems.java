@@ -0,0 +1,321 @@
+/**
+ *
+ */
+package calabash.java;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import static calabash.java.CalabashLogger.info;
+
+/**
+ * Locates gems which are packaged unpacked inside the jar, so that JRuby can
+ * load them through <code>classpath:</code> load paths without extracting
+ * anything. Build the jar with <code>-Dgems.classpath=true</code> to
+ * include them.
+ *
+ */
+final class ClasspathGems {
+
+	static final String DEFAULT_RESOURCE_DIR = "scripts/bundle";
+	private static final String RESOURCES_PREFIX = "calabash-ios-resources-";
+
+	private final String resourceDir;
+	private final ClassLoader classLoader;
+	private SortedMap<String, String> resources;
+
+	/**
+	 * @param resourceDir
+	 *            Class path directory containing launcher.rb, gems and
+	 *            optionally jruby.home
+	 * @param classLoader
+	 *            Class loader which can see the resources
+	 */
+	public ClasspathGems(String resourceDir, ClassLoader classLoader) {
+		this.resourceDir = resourceDir;
+		this.classLoader = classLoader;
+	}
+
+	public ClassLoader getClassLoader() {
+		return classLoader;
+	}
+
+	/**
+	 * Gets the class path resource of the launcher script
+	 */
+	public String getLauncherScript() {
+		return resourceDir + "/launcher.rb";
+	}
+
+	/**
+	 * Gets the JRuby home to use
+	 *
+	 * @return Home inside the bundle, null when the bundle doesn't have one
+	 *         and JRuby's own should be used
+	 */
+	public String getJRubyHome() {
+		if (classLoader.getResource(resourceDir + "/jruby.home/") == null)
+			return null;
+		return "classpath:/" + resourceDir + "/jruby.home";
+	}
+
+	/**
+	 * Gets the load paths for the lib directory of every gem
+	 *
+	 * @throws CalabashException
+	 *             If the bundle is not on the class path or has no gems
+	 */
+	public Set<String> getLoadPaths() throws CalabashException {
+		return getLoadPaths("gems");
+	}
+
+	/**
+	 * Gets the load paths for the compiled lib directory of every gem. The
+	 * jar should be built with <code>-Dgems.compile=true</code>
+	 *
+	 * @throws CalabashException
+	 *             If the bundle has no compiled gems
+	 */
+	public Set<String> getPrecompiledLoadPaths() throws CalabashException {
+		return getLoadPaths("aot/gems");
+	}
+
+	private Set<String> getLoadPaths(String gemsDir) throws CalabashException {
+		Set<String> loadPaths = new TreeSet<String>();
+		for (String gem : getGemNames(gemsDir))
+			loadPaths.add(String.format("classpath:/%s/%s/%s/lib",
+					resourceDir, gemsDir, gem));
+		return loadPaths;
+	}
+
+	/**
+	 * Gets the class path resource of a file in the calabash-cucumber gem
+	 *
+	 * @param path
+	 *            Path relative to the gem directory
+	 */
+	public String getCalabashGemResource(String path)
+			throws CalabashException {
+		String calabashGem = null;
+		for (String gem : getGemNames("gems")) {
+			if (!gem.startsWith("calabash-cucumber"))
+				continue;
+			if (calabashGem != null)
+				throw new CalabashException(String.format(
+						"Multiple matches for 'calabash-cucumber' in the gempath : %s",
+						location()));
+			calabashGem = gem;
+		}
+
+		if (calabashGem == null)
+			throw new CalabashException(String.format(
+					"Error finding 'calabash-cucumber' in the gempath : %s",
+					location()));
+		return String.format("%s/gems/%s/%s", resourceDir, calabashGem, path);
+	}
+
+	/**
+	 * Gets the directory to which {@link #extractResources(File)} writes the
+	 * files of the gems which are not Ruby scripts. It is named after the
+	 * size and CRC, or the size and modification time on an exploded class
+	 * path, of those files, so it is written once per bundle and machine.
+	 *
+	 * @param baseDir
+	 *            Directory in which the resources directories are created
+	 * @return Directory which contains a <code>gems</code> directory laid out
+	 *         like the one on the class path
+	 */
+	public File getResourcesDir(File baseDir) throws CalabashException {
+		MessageDigest digest = GemExtractor.createDigest();
+		try {
+			for (Map.Entry<String, String> resource : getResources()
+					.entrySet())
+				digest.update(String.format("%s:%s\n", resource.getKey(),
+						resource.getValue()).getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new CalabashException("UTF-8 is not available", e);
+		}
+		return new File(baseDir, RESOURCES_PREFIX + GemExtractor.toHex(digest));
+	}
+
+	/**
+	 * Writes the files of the gems which are not Ruby scripts, like
+	 * run_loop's <code>scripts</code> and calabash-cucumber's
+	 * <code>resources</code>, to {@link #getResourcesDir(File)} unless they
+	 * are already there. Launching hands such files to other processes, like
+	 * instruments, which can't read them from the class path.
+	 *
+	 * @param baseDir
+	 *            Directory in which the resources directories are created
+	 * @return The resources directory
+	 * @throws CalabashException
+	 *             If a file can't be written
+	 */
+	public File extractResources(File baseDir) throws CalabashException {
+		File resourcesDir = getResourcesDir(baseDir);
+		if (resourcesDir.isDirectory())
+			return resourcesDir;
+
+		long start = System.currentTimeMillis();
+		File staging = GemExtractor.createStagingDir(RESOURCES_PREFIX, baseDir);
+		try {
+			for (String name : getResources().keySet()) {
+				String resource = resourceDir + "/gems/" + name;
+				InputStream in = classLoader.getResourceAsStream(resource);
+				if (in == null)
+					throw new CalabashException(String.format(
+							"Can't read %s from the class path", resource));
+				try {
+					GemExtractor.extractFile(in, new File(staging, "gems/"
+							+ name));
+				} catch (IOException e) {
+					throw new CalabashException(String.format(
+							"Can't write %s to %s", resource,
+							staging.getAbsolutePath()), e);
+				}
+			}
+
+			if (!staging.renameTo(resourcesDir) && !resourcesDir.isDirectory())
+				throw new CalabashException(String.format(
+						"Can't move extracted resources from %s to %s",
+						staging.getAbsolutePath(),
+						resourcesDir.getAbsolutePath()));
+		} finally {
+			// Left behind when another process renamed first
+			if (staging.exists())
+				GemExtractor.delete(staging);
+		}
+
+		info("Extracted gem resources to %s in %d ms",
+				resourcesDir.getAbsolutePath(), System.currentTimeMillis()
+						- start);
+		return resourcesDir;
+	}
+
+	/**
+	 * Gets a description of where the gems are loaded from
+	 */
+	public String location() {
+		return "classpath:/" + resourceDir;
+	}
+
+	// Paths relative to the gems directory of the files which are not Ruby
+	// scripts, mapped to their size and CRC or modification time
+	private synchronized SortedMap<String, String> getResources()
+			throws CalabashException {
+		if (resources != null)
+			return resources;
+
+		SortedMap<String, String> found = new TreeMap<String, String>();
+		String gemsPrefix = resourceDir + "/gems/";
+		try {
+			URLConnection connection = getLauncher().openConnection();
+			if (connection instanceof JarURLConnection) {
+				JarFile jar = ((JarURLConnection) connection).getJarFile();
+				Enumeration<JarEntry> entries = jar.entries();
+				while (entries.hasMoreElements()) {
+					JarEntry entry = entries.nextElement();
+					String name = entry.getName();
+					if (name.startsWith(gemsPrefix) && !entry.isDirectory()
+							&& !name.endsWith(".rb"))
+						found.put(name.substring(gemsPrefix.length()),
+								String.format("%d:%x", entry.getSize(),
+										entry.getCrc()));
+				}
+			} else {
+				File dir = new File(new File(connection.getURL().toURI())
+						.getParentFile(), "gems");
+				listResources(dir, "", found);
+			}
+		} catch (IOException e) {
+			throw new CalabashException("Failed to list gem resources in "
+					+ location(), e);
+		} catch (URISyntaxException e) {
+			throw new CalabashException("Failed to list gem resources in "
+					+ location(), e);
+		}
+		resources = found;
+		return resources;
+	}
+
+	private static void listResources(File dir, String path,
+			SortedMap<String, String> found) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (file.isDirectory())
+				listResources(file, path + file.getName() + "/", found);
+			else if (!file.getName().endsWith(".rb"))
+				found.put(path + file.getName(), String.format("%d:%x",
+						file.length(), file.lastModified()));
+		}
+	}
+
+	private Set<String> getGemNames(String gemsDir) throws CalabashException {
+		URL launcher = getLauncher();
+		Set<String> gems = new TreeSet<String>();
+		String gemsPrefix = resourceDir + "/" + gemsDir + "/";
+		try {
+			URLConnection connection = launcher.openConnection();
+			if (connection instanceof JarURLConnection) {
+				JarFile jar = ((JarURLConnection) connection).getJarFile();
+				Enumeration<JarEntry> entries = jar.entries();
+				while (entries.hasMoreElements()) {
+					String name = entries.nextElement().getName();
+					if (!name.startsWith(gemsPrefix))
+						continue;
+					int end = name.indexOf('/', gemsPrefix.length());
+					if (end > gemsPrefix.length())
+						gems.add(name.substring(gemsPrefix.length(), end));
+				}
+			} else {
+				// Exploded class path, like the classes directory in a build
+				File dir = new File(new File(launcher.toURI())
+						.getParentFile(), gemsDir);
+				String[] names = dir.list();
+				if (names != null) {
+					for (String name : names) {
+						if (new File(dir, name).isDirectory())
+							gems.add(name);
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new CalabashException("Failed to list gems in "
+					+ location(), e);
+		} catch (URISyntaxException e) {
+			throw new CalabashException("Failed to list gems in "
+					+ location(), e);
+		}
+
+		if (gems.isEmpty())
+			throw new CalabashException(String.format(
+					"Couldn't find any gems inside %s/%s", location(), gemsDir));
+		return gems;
+	}
+
+	private URL getLauncher() throws CalabashException {
+		URL launcher = classLoader.getResource(getLauncherScript());
+		if (launcher == null)
+			throw new CalabashException(String.format(
+					"Can't find %s on the class path. Build the jar with -Dgems.classpath=true",
+					getLauncherScript()));
+		return launcher;
+	}
+}
@@ -0,0 +1,216 @@
+/**
+ *
+ */
+package calabash.java;
+
+import java.util.Map;
+
+import static calabash.java.Utils.getIntFromHash;
+import static calabash.java.Utils.getStringFromHash;
+
+/**
+ * Immutable copy of the properties of an element taken when the query
+ * results arrive. Geometry is kept in primitive fields and the hash is
+ * computed once, so the snapshot doesn't hold on to the query results.
+ *
+ */
+public final class ElementSnapshot {
+
+	// Marks a missing coordinate. Calabash reports integral coordinates
+	private static final int MISSING = Integer.MIN_VALUE;
+
+	private final String elementClass;
+	private final String id;
+	private final String label;
+	private final String description;
+	private final boolean hasRect;
+	private final int x;
+	private final int y;
+	private final int width;
+	private final int height;
+	private final int centerX;
+	private final int centerY;
+	private final int frameX;
+	private final int frameY;
+	private final int frameWidth;
+	private final int frameHeight;
+	private final int hash;
+
+	/**
+	 * Number of values {@link #copyGeometry(int[], int)} writes
+	 */
+	static final int GEOMETRY_SIZE = 10;
+
+	/**
+	 * Creates a snapshot from an element returned by a query
+	 *
+	 * @param data
+	 *            Element properties
+	 */
+	public ElementSnapshot(Map<?, ?> data) {
+		elementClass = internClassName(getStringFromHash(data, "class"));
+		id = getStringFromHash(data, "id");
+		label = getStringFromHash(data, "label");
+		description = getStringFromHash(data, "description");
+
+		Map<?, ?> rect = getMap(data, "rect");
+		hasRect = rect != null;
+		x = getInt(rect, "x");
+		y = getInt(rect, "y");
+		width = getInt(rect, "width");
+		height = getInt(rect, "height");
+		centerX = getInt(rect, "center_x");
+		centerY = getInt(rect, "center_y");
+
+		Map<?, ?> frame = getMap(data, "frame");
+		frameX = getInt(frame, "x");
+		frameY = getInt(frame, "y");
+		frameWidth = getInt(frame, "width");
+		frameHeight = getInt(frame, "height");
+
+		hash = computeHash();
+	}
+
+	/**
+	 * Recreates a snapshot from values stored by {@link TreeSnapshot}
+	 */
+	ElementSnapshot(String elementClass, String id, String label,
+			String description, boolean hasRect, int[] geometry, int offset) {
+		this.elementClass = elementClass;
+		this.id = id;
+		this.label = label;
+		this.description = description;
+		this.hasRect = hasRect;
+		x = geometry[offset];
+		y = geometry[offset + 1];
+		width = geometry[offset + 2];
+		height = geometry[offset + 3];
+		centerX = geometry[offset + 4];
+		centerY = geometry[offset + 5];
+		frameX = geometry[offset + 6];
+		frameY = geometry[offset + 7];
+		frameWidth = geometry[offset + 8];
+		frameHeight = geometry[offset + 9];
+		hash = computeHash();
+	}
+
+	public String getElementClass() {
+		return elementClass;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	/**
+	 * Gets the rectangle
+	 *
+	 * @return Rectangle, null if the element has none
+	 */
+	public Rect getRect() {
+		if (!hasRect)
+			return null;
+		return new Rect(box(x), box(y), box(width), box(height), box(centerX),
+				box(centerY));
+	}
+
+	/**
+	 * Gets the rectangle representing frame
+	 *
+	 * @return Rectangle
+	 */
+	public Rect getFrame() {
+		return new Rect(box(frameX), box(frameY), box(frameWidth),
+				box(frameHeight), null, null);
+	}
+
+	boolean hasRect() {
+		return hasRect;
+	}
+
+	/**
+	 * Copies rect and frame into the array as primitive values
+	 */
+	void copyGeometry(int[] target, int offset) {
+		target[offset] = x;
+		target[offset + 1] = y;
+		target[offset + 2] = width;
+		target[offset + 3] = height;
+		target[offset + 4] = centerX;
+		target[offset + 5] = centerY;
+		target[offset + 6] = frameX;
+		target[offset + 7] = frameY;
+		target[offset + 8] = frameWidth;
+		target[offset + 9] = frameHeight;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (!(o instanceof ElementSnapshot))
+			return false;
+
+		ElementSnapshot other = (ElementSnapshot) o;
+		return hash == other.hash && hasRect == other.hasRect
+				&& x == other.x && y == other.y && width == other.width
+				&& height == other.height && centerX == other.centerX
+				&& centerY == other.centerY && frameX == other.frameX
+				&& frameY == other.frameY && frameWidth == other.frameWidth
+				&& frameHeight == other.frameHeight
+				&& equal(elementClass, other.elementClass)
+				&& equal(id, other.id) && equal(label, other.label)
+				&& equal(description, other.description);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	private int computeHash() {
+		int result = hasRect ? 1 : 0;
+		int[] geometry = { x, y, width, height, centerX, centerY, frameX,
+				frameY, frameWidth, frameHeight };
+		for (int value : geometry)
+			result = 31 * result + value;
+		String[] strings = { elementClass, id, label, description };
+		for (String value : strings)
+			result = 31 * result + (value != null ? value.hashCode() : 0);
+		return result;
+	}
+
+	// Class names repeat across elements. The JVM string pool shares them and,
+	// unlike a map of our own, lets go of the ones no longer referenced
+	private static String internClassName(String name) {
+		return name == null ? null : name.intern();
+	}
+
+	private static Map<?, ?> getMap(Map<?, ?> data, String key) {
+		Object value = data == null ? null : data.get(key);
+		return value instanceof Map<?, ?> ? (Map<?, ?>) value : null;
+	}
+
+	private static int getInt(Map<?, ?> map, String key) {
+		if (map == null)
+			return MISSING;
+		Integer value = getIntFromHash(map, key);
+		return value != null ? value : MISSING;
+	}
+
+	private static Integer box(int value) {
+		return value == MISSING ? null : value;
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,45 @@
+/**
+ *
+ */
+package calabash.java;
+
+/**
+ * Result of {@link IOSApplication#waitForAny(String[], WaitOptions)}
+ *
+ */
+public final class FirstMatch {
+
+	private final int index;
+	private final String query;
+	private final UIElements elements;
+
+	public FirstMatch(int index, String query, UIElements elements) {
+		this.index = index;
+		this.query = query;
+		this.elements = elements;
+	}
+
+	/**
+	 * Gets the position of the matched query in the array passed to
+	 * waitForAny
+	 *
+	 * @return Index of the query
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	public String getQuery() {
+		return query;
+	}
+
+	/**
+	 * Gets the elements returned by the matched query
+	 *
+	 * @return Elements, never empty
+	 */
+	public UIElements getElements() {
+		return elements;
+	}
+
+}
@@ -0,0 +1,376 @@
+/**
+ *
+ */
+package calabash.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static calabash.java.CalabashLogger.info;
+
+/**
+ * Extracts the gems bundled in the jar. The extraction directory is named
+ * after a hash of the bundled files, so a new bundle never reuses a stale
+ * directory and an unchanged bundle is extracted once per machine.
+ * <p>
+ * Files are unpacked in parallel into a private staging directory which is
+ * then renamed to the final name. Renaming a directory is atomic on the same
+ * file system, so processes racing on one machine either see a complete
+ * directory or none at all.
+ *
+ */
+final class GemExtractor {
+
+	private static final String PREFIX = "calabash-ios-gems-";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final String[] BUNDLED_FILES = { "launcher.rb", "gems.zip" };
+	// 32 and 64 bit Mach-O in both byte orders, and universal binaries
+	private static final int[] MACH_O_MAGIC = { 0xfeedface, 0xcefaedfe,
+			0xfeedfacf, 0xcffaedfe, 0xcafebabe };
+
+	private final String resourceDir;
+	private final File baseDir;
+
+	/**
+	 * @param resourceDir
+	 *            Class path directory with launcher.rb and gems.zip
+	 * @param baseDir
+	 *            Directory in which the gems directories are created
+	 */
+	public GemExtractor(String resourceDir, File baseDir) {
+		this.resourceDir = resourceDir;
+		this.baseDir = baseDir;
+	}
+
+	/**
+	 * Gets the directory with the extracted gems, extracting them if needed
+	 *
+	 * @return Gems directory containing launcher.rb
+	 * @throws CalabashException
+	 *             If the bundled files are missing or extraction fails
+	 */
+	public File extract() throws CalabashException {
+		File gemsDir = new File(baseDir, PREFIX + hashBundledFiles());
+		if (gemsDir.isDirectory())
+			return gemsDir;
+
+		long start = System.currentTimeMillis();
+		File staging = createStagingDir(PREFIX, baseDir);
+		try {
+			for (String fileName : BUNDLED_FILES)
+				copyResource(fileName, new File(staging, fileName));
+			File gemsZip = new File(staging, "gems.zip");
+			unzip(gemsZip, staging);
+			gemsZip.delete();
+
+			if (!staging.renameTo(gemsDir) && !gemsDir.isDirectory())
+				throw new CalabashException(String.format(
+						"Can't move extracted gems from %s to %s",
+						staging.getAbsolutePath(), gemsDir.getAbsolutePath()));
+		} finally {
+			// Left behind when another process renamed first
+			if (staging.exists())
+				delete(staging);
+		}
+
+		info("Extracted gems to %s in %d ms", gemsDir.getAbsolutePath(),
+				System.currentTimeMillis() - start);
+		return gemsDir;
+	}
+
+	/**
+	 * Unpacks the zip file using a thread per processor
+	 *
+	 * @param zip
+	 *            Zip file
+	 * @param destination
+	 *            Existing directory
+	 * @throws CalabashException
+	 *             If an entry can't be extracted or points outside the
+	 *             destination
+	 */
+	static void unzip(File zip, File destination) throws CalabashException {
+		ZipFile zipFile = null;
+		ExecutorService executor = null;
+		try {
+			zipFile = new ZipFile(zip);
+			String root = destination.getCanonicalPath() + File.separator;
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				File target = new File(destination, entry.getName());
+				if (!(target.getCanonicalPath() + File.separator)
+						.startsWith(root))
+					throw new CalabashException(String.format(
+							"Zip entry %s is outside the destination",
+							entry.getName()));
+
+				if (entry.isDirectory())
+					makeDirectory(target);
+				else
+					tasks.add(extractEntry(zipFile, entry, target));
+			}
+
+			executor = Executors.newFixedThreadPool(Runtime.getRuntime()
+					.availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "calabash-unzip");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			for (Future<Void> future : executor.invokeAll(tasks))
+				future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof CalabashException)
+				throw (CalabashException) e.getCause();
+			throw new CalabashException(String.format("Failed to unzip %s. %s",
+					zip.getAbsolutePath(), e.getCause().getMessage()),
+					e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CalabashException("Interrupted while unzipping "
+					+ zip.getAbsolutePath());
+		} catch (IOException e) {
+			throw new CalabashException(String.format("Failed to unzip %s. %s",
+					zip.getAbsolutePath(), e.getMessage()), e);
+		} finally {
+			if (executor != null)
+				executor.shutdownNow();
+			if (zipFile != null) {
+				try {
+					zipFile.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	private static Callable<Void> extractEntry(final ZipFile zipFile,
+			final ZipEntry entry, final File target) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				extractFile(zipFile.getInputStream(entry), target);
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Writes a file of a gem, creating its directory and marking it
+	 * executable when it is in <code>bin</code> or
+	 * {@link #isExecutable(File)} recognizes it
+	 */
+	static void extractFile(InputStream in, File target) throws IOException {
+		makeDirectory(target.getParentFile());
+		copy(in, target);
+		// java.util.zip doesn't expose unix permissions, so files which can
+		// be executed are recognized by their header
+		if (target.getParentFile().getName().equals("bin")
+				|| isExecutable(target))
+			target.setExecutable(true, false);
+	}
+
+	/**
+	 * Checks whether the file is a script starting with <code>#!</code> or a
+	 * Mach-O binary, like run_loop's <code>scripts/udidetect</code>
+	 */
+	static boolean isExecutable(File file) throws IOException {
+		byte[] header = new byte[4];
+		InputStream in = new FileInputStream(file);
+		int length = 0;
+		try {
+			int read;
+			while (length < header.length
+					&& (read = in.read(header, length, header.length - length)) != -1)
+				length += read;
+		} finally {
+			close(in);
+		}
+
+		if (length >= 2 && header[0] == '#' && header[1] == '!')
+			return true;
+		if (length < 4)
+			return false;
+		int magic = ((header[0] & 0xff) << 24) | ((header[1] & 0xff) << 16)
+				| ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+		for (int machO : MACH_O_MAGIC) {
+			if (magic == machO)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Hashes the bundled files. Inside a jar, the size and CRC recorded for
+	 * each file in the jar's central directory are hashed, so that a warm
+	 * start doesn't read the whole bundle. Files on an exploded class path,
+	 * like a build directory, are hashed by their contents.
+	 */
+	private String hashBundledFiles() throws CalabashException {
+		MessageDigest digest = createDigest();
+
+		for (String fileName : BUNDLED_FILES) {
+			try {
+				URLConnection connection = getResource(fileName)
+						.openConnection();
+				if (connection instanceof JarURLConnection) {
+					JarEntry entry = ((JarURLConnection) connection)
+							.getJarEntry();
+					digest.update(String.format("%s:%d:%x\n", fileName,
+							entry.getSize(), entry.getCrc()).getBytes("UTF-8"));
+				} else {
+					hashContents(connection.getInputStream(), digest);
+				}
+			} catch (IOException e) {
+				throw new CalabashException(String.format(
+						"Can't read %s from the bundle", fileName), e);
+			}
+		}
+
+		return toHex(digest);
+	}
+
+	static MessageDigest createDigest() throws CalabashException {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new CalabashException("SHA-1 is not available", e);
+		}
+	}
+
+	static String toHex(MessageDigest digest) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest())
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+
+	private static void hashContents(InputStream stream, MessageDigest digest)
+			throws IOException {
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = stream.read(buffer)) != -1)
+				digest.update(buffer, 0, read);
+		} finally {
+			close(stream);
+		}
+	}
+
+	static File createStagingDir(String prefix, File baseDir)
+			throws CalabashException {
+		try {
+			File staging = File.createTempFile(prefix, ".tmp", baseDir);
+			if (!staging.delete() || !staging.mkdir())
+				throw new CalabashException(
+						"Can't create gems extraction directory. "
+								+ staging.getAbsolutePath());
+			return staging;
+		} catch (IOException e) {
+			throw new CalabashException(
+					"Can't create gems extraction directory in "
+							+ baseDir.getAbsolutePath(), e);
+		}
+	}
+
+	private void copyResource(String fileName, File target)
+			throws CalabashException {
+		try {
+			copy(openResource(fileName), target);
+		} catch (IOException e) {
+			throw new CalabashException(
+					String.format(
+							"Can't copy %s from the bundle to %s. Failed to create destination file",
+							fileName, target.getParent()), e);
+		}
+	}
+
+	private URL getResource(String fileName) throws CalabashException {
+		URL resource = Thread.currentThread().getContextClassLoader()
+				.getResource(resourceDir + "/" + fileName);
+		if (resource == null)
+			throw new CalabashException(
+					String.format(
+							"Can't copy %s from the bundle. Make sure you are using the correct JAR file",
+							fileName), null);
+		return resource;
+	}
+
+	private InputStream openResource(String fileName) throws CalabashException {
+		try {
+			return new BufferedInputStream(getResource(fileName).openStream(),
+					BUFFER_SIZE);
+		} catch (IOException e) {
+			throw new CalabashException(String.format(
+					"Can't read %s from the bundle", fileName), e);
+		}
+	}
+
+	private static void copy(InputStream in, File target) throws IOException {
+		OutputStream out = null;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(target),
+					BUFFER_SIZE);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				out.write(buffer, 0, read);
+		} finally {
+			close(in);
+			if (out != null)
+				out.close();
+		}
+	}
+
+	private static void makeDirectory(File dir) throws IOException {
+		// Another task might create it at the same time
+		if (!dir.mkdirs() && !dir.isDirectory())
+			throw new IOException("Can't create directory "
+					+ dir.getAbsolutePath());
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+
+	private static void close(InputStream stream) {
+		try {
+			stream.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+}
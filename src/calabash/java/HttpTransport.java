@@ -0,0 +1,266 @@
+/**
+ *
+ */
+package calabash.java;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Transport which talks to the calabash server directly over HTTP for
+ * queries, element existence checks, flash and server version. Waits poll
+ * those natively. All other operations are delegated to the fallback
+ * transport, usually the {@link CalabashWrapper}.
+ *
+ */
+public final class HttpTransport implements ITransport {
+
+	private static final int BATCH_THREADS = 4;
+
+	private final CalabashServerClient client;
+	private final ITransport fallback;
+	private final Waiter waiter;
+	private ExecutorService batchExecutor;
+
+	/**
+	 * Initializes a new HttpTransport
+	 *
+	 * @param endPoint
+	 *            Calabash server endpoint. When null, http://localhost:37265
+	 *            is used
+	 * @param fallback
+	 *            Transport used for the operations which are not supported
+	 *            natively
+	 */
+	public HttpTransport(URI endPoint, ITransport fallback) {
+		this(endPoint, fallback, null);
+	}
+
+	/**
+	 * Initializes a new HttpTransport
+	 *
+	 * @param endPoint
+	 *            Calabash server endpoint. When null, http://localhost:37265
+	 *            is used
+	 * @param fallback
+	 *            Transport used for the operations which are not supported
+	 *            natively
+	 * @param screenshotsDirectory
+	 *            Directory for the screenshots taken when a wait times out.
+	 *            When null, the current working directory is used
+	 */
+	public HttpTransport(URI endPoint, ITransport fallback,
+			File screenshotsDirectory) {
+		if (fallback == null)
+			throw new IllegalArgumentException("fallback transport is required");
+		this.client = new CalabashServerClient(endPoint);
+		this.fallback = fallback;
+		this.waiter = new Waiter(this, screenshotsDirectory);
+	}
+
+	public List<?> query(String query, String... args)
+			throws CalabashException {
+		return client.query(query, args);
+	}
+
+	/**
+	 * The calabash server accepts one query per request. Queries in the batch
+	 * are issued concurrently so that the batch costs roughly one round trip.
+	 */
+	public List<List<?>> query(QueryBatch batch) throws CalabashException {
+		List<Future<List<?>>> futures = new ArrayList<Future<List<?>>>();
+		ExecutorService executor = batchExecutor();
+		for (int i = 0; i < batch.size(); i++) {
+			final String query = batch.getQuery(i);
+			final String[] selectors = batch.getSelectors(i);
+			futures.add(executor.submit(new Callable<List<?>>() {
+				@Override
+				public List<?> call() throws Exception {
+					return client.query(query, selectors);
+				}
+			}));
+		}
+
+		List<List<?>> results = new ArrayList<List<?>>();
+		try {
+			for (Future<List<?>> future : futures)
+				results.add(future.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CalabashException("Interrupted while executing query batch");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof CalabashException)
+				throw (CalabashException) e.getCause();
+			throw new CalabashException("Failed to execute query batch", e.getCause());
+		} finally {
+			for (Future<List<?>> future : futures)
+				future.cancel(true);
+		}
+		return results;
+	}
+
+	public boolean elementExists(String query) throws CalabashException {
+		return client.elementExists(query);
+	}
+
+	public void flash(String query) throws CalabashException {
+		client.map(query, "flash");
+	}
+
+	public Object serverVersion() throws CalabashException {
+		return client.serverVersion();
+	}
+
+	public String escapeQuotes(String source) throws CalabashException {
+		return fallback.escapeQuotes(source);
+	}
+
+	public void touch(String query) throws CalabashException {
+		fallback.touch(query);
+	}
+
+	public void scroll(String query, Direction direction)
+			throws CalabashException {
+		fallback.scroll(query, direction);
+	}
+
+	public void swipe(String query, Direction direction, SwipeOptions options)
+			throws CalabashException {
+		fallback.swipe(query, direction, options);
+	}
+
+	public void pinch(String query, String inOrOut) throws CalabashException {
+		fallback.pinch(query, inOrOut);
+	}
+
+	public void rotate(String direction) throws CalabashException {
+		fallback.rotate(direction);
+	}
+
+	public void scrollToRow(String query, int row) throws CalabashException {
+		fallback.scrollToRow(query, row);
+	}
+
+	public void scrollToCell(String query, ScrollOptions options)
+			throws CalabashException {
+		fallback.scrollToCell(query, options);
+	}
+
+	public void scrollThroughEachCell(String query, ScrollOptions options,
+			CellIterator callback) throws CalabashException {
+		fallback.scrollThroughEachCell(query, options, callback);
+	}
+
+	public void enterText(String text) throws CalabashException {
+		fallback.enterText(text);
+	}
+
+	public void enterChar(String text) throws CalabashException {
+		fallback.enterChar(text);
+	}
+
+	public void done() throws CalabashException {
+		fallback.done();
+	}
+
+	public void start() throws CalabashException {
+		fallback.start();
+	}
+
+	public void exit() throws CalabashException {
+		fallback.exit();
+	}
+
+	public void sendAppToBackground(int seconds) throws CalabashException {
+		fallback.sendAppToBackground(seconds);
+	}
+
+	public void startRecording() throws CalabashException {
+		fallback.startRecording();
+	}
+
+	public void stopRecording(String filename) throws CalabashException {
+		fallback.stopRecording(filename);
+	}
+
+	public void playback(String recording, String query, Offset offset)
+			throws CalabashException {
+		fallback.playback(recording, query, offset);
+	}
+
+	public void takeScreenShot(File dir, String fileName)
+			throws CalabashException {
+		fallback.takeScreenShot(dir, fileName);
+	}
+
+	public Object clientVersion() throws CalabashException {
+		return fallback.clientVersion();
+	}
+
+	public void waitFor(ICondition condition, WaitOptions options)
+			throws CalabashException, OperationTimedoutException {
+		waiter.waitFor(condition, options);
+	}
+
+	public void waitForElementsExist(String[] queries, WaitOptions options)
+			throws OperationTimedoutException, CalabashException {
+		waiter.waitForElementsExist(queries, options);
+	}
+
+	public void waitForElementsToNotExist(String[] queries, WaitOptions options)
+			throws OperationTimedoutException, CalabashException {
+		waiter.waitForElementsToNotExist(queries, options);
+	}
+
+	public void waitForKeyboard() throws CalabashException {
+		waiter.waitForKeyboard();
+	}
+
+	public void waitForNoneAnimating() throws CalabashException {
+		fallback.waitForNoneAnimating();
+	}
+
+	public void dispose() throws CalabashException {
+		synchronized (this) {
+			if (batchExecutor != null) {
+				batchExecutor.shutdownNow();
+				batchExecutor = null;
+			}
+		}
+		fallback.dispose();
+	}
+
+	/**
+	 * Gets the endpoint this transport talks to
+	 *
+	 * @return Endpoint URL
+	 */
+	public String getEndPoint() {
+		return client.getEndPoint();
+	}
+
+	private synchronized ExecutorService batchExecutor() {
+		if (batchExecutor == null) {
+			batchExecutor = Executors.newFixedThreadPool(BATCH_THREADS,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable,
+									"calabash-query-batch");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		return batchExecutor;
+	}
+
+}
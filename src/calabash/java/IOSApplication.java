@@ -3,11 +3,10 @@
  */
 package calabash.java;
 
-import org.jruby.RubyArray;
-import org.jruby.RubyHash;
-
 import java.io.File;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Represents an iOS application
@@ -15,15 +14,18 @@ import java.util.List;
  */
 public class IOSApplication {
 
-	private final CalabashWrapper calabashWrapper;
+	private static final long WAIT_MULTIPLEXER_POLL_INTERVAL_IN_MS = 50;
+	private final ITransport transport;
+	private WaitMultiplexer waitMultiplexer;
 
 	/**
 	 * Initializes a new instance of Application
 	 *
-	 * @param calabashWrapper
+	 * @param transport
+	 *            Transport used to talk to the application
 	 */
-	public IOSApplication(CalabashWrapper calabashWrapper) {
-		this.calabashWrapper = calabashWrapper;
+	public IOSApplication(ITransport transport) {
+		this.transport = transport;
 	}
 
 	/**
@@ -41,8 +43,8 @@ public class IOSApplication {
 	 * @throws CalabashException
 	 */
 	public UIElements query(String query) throws CalabashException {
-		RubyArray array = calabashWrapper.query(query);
-		return new UIElements(array, query, calabashWrapper);
+		List<?> array = transport.query(query);
+		return new UIElements(array, query, transport);
 	}
 
 	/**
@@ -70,13 +72,37 @@ public class IOSApplication {
 		return query(String.format(query, args));
 	}
 
+	/**
+	 * Runs all the queries in the batch together. Over HTTP the queries are
+	 * issued concurrently and through JRuby they are run from one Ruby call,
+	 * so each query still reaches the device on its own and the results are
+	 * not an atomic snapshot of the screen
+	 * <p>
+	 * Eg:
+	 * <pre>
+	 * QueryBatch batch = new QueryBatch();
+	 * int labels = batch.add(&quot;label&quot;);
+	 * int buttons = batch.add(&quot;button&quot;);
+	 * QueryBatchResult result = iosApplication.query(batch);
+	 * result.getElements(buttons).first().touch();
+	 * </pre>
+	 *
+	 * @param batch
+	 *            Queries to run
+	 * @return Results for each query
+	 * @throws CalabashException
+	 */
+	public QueryBatchResult query(QueryBatch batch) throws CalabashException {
+		return new QueryBatchResult(batch, transport.query(batch), transport);
+	}
+
 	/**
 	 * Records a sequence of events and saves them to disk.
 	 *
 	 * @throws CalabashException
 	 */
 	public void startRecording() throws CalabashException {
-		calabashWrapper.startRecording();
+		transport.startRecording();
 	}
 
 	/**
@@ -87,7 +113,7 @@ public class IOSApplication {
 	 * @throws CalabashException
 	 */
 	public void stopRecording(String filename) throws CalabashException {
-		calabashWrapper.stopRecording(filename);
+		transport.stopRecording(filename);
 	}
 
 	/**
@@ -98,7 +124,7 @@ public class IOSApplication {
 	 * @throws CalabashException
 	 */
 	public void playback(String recording) throws CalabashException {
-		calabashWrapper.playback(recording, null, null);
+		transport.playback(recording, null, null);
 	}
 
 	/**
@@ -110,7 +136,7 @@ public class IOSApplication {
 	 * @throws CalabashException
 	 */
 	public void playback(String recording, String query, Offset offset) throws CalabashException {
-		calabashWrapper.playback(recording, query, offset);
+		transport.playback(recording, query, offset);
 	}
 
 	/**
@@ -120,7 +146,16 @@ public class IOSApplication {
 	 *
 	 */
 	public void exit() throws CalabashException {
-		calabashWrapper.exit();
+		transport.exit();
+	}
+
+	/**
+	 * Releases the resources held by this application, like the poll thread
+	 * of the wait multiplexer. The transport is left to its owner
+	 */
+	public synchronized void dispose() {
+		if (waitMultiplexer != null)
+			waitMultiplexer.shutdown();
 	}
 
 	/**
@@ -130,7 +165,7 @@ public class IOSApplication {
 	 */
 	public void restart() throws CalabashException {
 		exit();
-		calabashWrapper.start();
+		transport.start();
 	}
 
 	/**
@@ -140,7 +175,7 @@ public class IOSApplication {
 	 */
 	public boolean isRunning() {
 		try {
-			calabashWrapper.serverVersion();
+			transport.serverVersion();
 			return true;
 		} catch (CalabashException e) {
 			return false;
@@ -155,7 +190,7 @@ public class IOSApplication {
 	 * @throws CalabashException
 	 */
 	public String escapeQuotes(String source) throws CalabashException {
-		return calabashWrapper.escapeQuotes(source);
+		return transport.escapeQuotes(source);
 	}
 
 	/**
@@ -165,14 +200,15 @@ public class IOSApplication {
 	 * @throws CalabashException
 	 */
 	public CalabashInfo getCalabashInfo() throws CalabashException {
-		Object serverVersion = calabashWrapper.serverVersion();
-		if (serverVersion instanceof RubyHash) {
-			Object clientVersion = calabashWrapper.clientVersion();
+		Object serverVersion = transport.serverVersion();
+		if (serverVersion instanceof Map<?, ?>) {
+			Map<Object, Object> info = new HashMap<Object, Object>(
+					(Map<?, ?>) serverVersion);
+			Object clientVersion = transport.clientVersion();
 			if (clientVersion != null)
-				((RubyHash) serverVersion).put("client_version",
-						clientVersion.toString());
+				info.put("client_version", clientVersion.toString());
 
-			return new CalabashInfo((RubyHash) serverVersion);
+			return new CalabashInfo(info);
 		}
 
 		return null;
@@ -198,7 +234,7 @@ public class IOSApplication {
 			throw new CalabashException(dir.getAbsolutePath()
 					+ " is not writeable");
 
-		calabashWrapper.takeScreenShot(dir, fileName);
+		transport.takeScreenShot(dir, fileName);
 	}
 
 	/**
@@ -207,7 +243,7 @@ public class IOSApplication {
 	 * @throws CalabashException
 	 */
 	public void rotateLeft() throws CalabashException {
-		calabashWrapper.rotate("left");
+		transport.rotate("left");
 	}
 
 	/**
@@ -216,7 +252,7 @@ public class IOSApplication {
 	 * @throws CalabashException
 	 */
 	public void rotateRight() throws CalabashException {
-		calabashWrapper.rotate("right");
+		transport.rotate("right");
 	}
 
 	/**
@@ -227,7 +263,7 @@ public class IOSApplication {
 	 *             If no visible keyboards are available.
 	 */
 	public Keyboard getKeyboard() throws CalabashException {
-		return new Keyboard(calabashWrapper);
+		return new Keyboard(transport);
 	}
 
 	/**
@@ -237,7 +273,7 @@ public class IOSApplication {
 	 * @param condition Condition to wait for
      * <pre>
      *  Default wait options timeout = 10 seconds <br>
-     *          retry frequency = 0.2 seconds <br>
+     *          retry frequency = 20 milliseconds, backing off up to 0.2 seconds <br>
      *          post timeout = 0.1 seconds <br>
      *          timeout message = "Timed out waiting..." <br>
      *          screenshot on error = true
@@ -266,7 +302,55 @@ public class IOSApplication {
 	 */
 	public void waitFor(ICondition condition, WaitOptions options)
 			throws CalabashException, OperationTimedoutException {
-		calabashWrapper.waitFor(condition, options);
+		transport.waitFor(condition, options);
+	}
+
+	/**
+	 * Gets the wait multiplexer of this application. Use it when several
+	 * threads wait on this application at the same time, so that all their
+	 * conditions are checked with one batched poll
+	 *
+	 * @return Wait multiplexer
+	 */
+	public synchronized WaitMultiplexer getWaitMultiplexer() {
+		if (waitMultiplexer == null)
+			waitMultiplexer = new WaitMultiplexer(transport,
+					WAIT_MULTIPLEXER_POLL_INTERVAL_IN_MS, null);
+		return waitMultiplexer;
+	}
+
+	/**
+	 * Waits for the query condition using the default options. See
+	 * {@link #waitFor(QueryCondition, WaitOptions)}
+	 *
+	 * @param condition
+	 *            Condition to wait for
+	 * @throws CalabashException
+	 *             When any calabash operations fails
+	 * @throws OperationTimedoutException
+	 *             When the operation elapsed the timeout period
+	 */
+	public void waitFor(QueryCondition condition) throws CalabashException,
+			OperationTimedoutException {
+		waitFor(condition, null);
+	}
+
+	/**
+	 * Waits for the query condition. Each attempt fetches only the property
+	 * the condition needs rather than the full elements
+	 *
+	 * @param condition
+	 *            Condition to wait for
+	 * @param options
+	 *            Wait options
+	 * @throws CalabashException
+	 *             When any calabash operations fails
+	 * @throws OperationTimedoutException
+	 *             When the operation elapsed the timeout period
+	 */
+	public void waitFor(QueryCondition condition, WaitOptions options)
+			throws CalabashException, OperationTimedoutException {
+		transport.waitFor(condition.bind(transport), options);
 	}
 
 	/**
@@ -286,7 +370,7 @@ public class IOSApplication {
 
 	public void waitForElementsExist(String[] queries, WaitOptions options)
 			throws OperationTimedoutException, CalabashException {
-		calabashWrapper.waitForElementsExist(queries, options);
+		transport.waitForElementsExist(queries, options);
 	}
 
 	public void waitForElementsToNotExist(String[] queries)
@@ -296,7 +380,73 @@ public class IOSApplication {
 
 	public void waitForElementsToNotExist(String[] queries, WaitOptions options)
 			throws OperationTimedoutException, CalabashException {
-		calabashWrapper.waitForElementsToNotExist(queries, options);
+		transport.waitForElementsToNotExist(queries, options);
+	}
+
+	/**
+	 * Waits till any of the queries returns elements. Use this when the flow
+	 * branches on the screen which shows up, like an error dialog or the
+	 * next page
+	 * <p>
+	 * Eg:
+	 * <pre>
+	 * FirstMatch match = iosApplication.waitForAny(new String[] {
+	 * 		&quot;view marked:'Welcome'&quot;, &quot;alertView&quot; });
+	 * if (match.getIndex() == 1)
+	 * 	fail(match.getElements().first().getLabel());
+	 * </pre>
+	 *
+	 * @param queries
+	 *            Queries to check
+	 * @return The matched query and its elements
+	 * @throws OperationTimedoutException
+	 *             When none of the queries matched within the timeout period
+	 * @throws CalabashException
+	 *             When any calabash operations fails
+	 */
+	public FirstMatch waitForAny(String[] queries)
+			throws OperationTimedoutException, CalabashException {
+		return waitForAny(queries, null);
+	}
+
+	/**
+	 * Waits till any of the queries returns elements. All the queries are
+	 * checked with one {@link QueryBatch} on every attempt. When more than
+	 * one query matches in the same attempt, the first in the array wins
+	 *
+	 * @param queries
+	 *            Queries to check
+	 * @param options
+	 *            Wait options
+	 * @return The matched query and its elements
+	 * @throws OperationTimedoutException
+	 *             When none of the queries matched within the timeout period
+	 * @throws CalabashException
+	 *             When any calabash operations fails
+	 */
+	public FirstMatch waitForAny(final String[] queries, WaitOptions options)
+			throws OperationTimedoutException, CalabashException {
+		final QueryBatch batch = new QueryBatch();
+		for (String query : queries)
+			batch.add(query);
+
+		final FirstMatch[] match = new FirstMatch[1];
+		transport.waitFor(new ICondition() {
+			@Override
+			public boolean test() throws CalabashException {
+				List<List<?>> results = transport.query(batch);
+				for (int i = 0; i < queries.length; i++) {
+					List<?> result = results.get(i);
+					if (result != null && !result.isEmpty()) {
+						match[0] = new FirstMatch(i, queries[i],
+								new UIElements(result, queries[i], transport));
+						return true;
+					}
+				}
+				return false;
+			}
+		}, options);
+		return match[0];
 	}
 
 	/**
@@ -306,7 +456,7 @@ public class IOSApplication {
 	 *             When any calabash operation fails
 	 */
 	public void waitForNoneAnimating() throws CalabashException {
-		calabashWrapper.waitForNoneAnimating();
+		transport.waitForNoneAnimating();
 	}
 
 	/**
@@ -318,7 +468,7 @@ public class IOSApplication {
 	 * @throws CalabashException
 	 */
     public void inspect(InspectCallback callback) throws CalabashException {
-        List<TreeNode> tree = new TreeBuilder(calabashWrapper).createTreeFromRoot();
+        List<TreeNode> tree = new TreeBuilder(transport).createTreeFromRoot();
         if (tree.isEmpty()) return;
 
         for (TreeNode treeNode : tree) {
@@ -334,7 +484,18 @@ public class IOSApplication {
 	 * @throws CalabashException
 	 */
 	public List<TreeNode> getRootElements() throws CalabashException {
-		return new TreeBuilder(calabashWrapper).createTreeFromRoot();
+		return new TreeBuilder(transport).createTreeFromRoot();
+	}
+
+	/**
+	 * Captures the current view hierarchy in a compact form which can be kept
+	 * around for later inspection
+	 *
+	 * @return Snapshot of all the elements
+	 * @throws CalabashException
+	 */
+	public TreeSnapshot getTreeSnapshot() throws CalabashException {
+		return new TreeSnapshot(getRootElements(), transport);
 	}
 
 	/**
@@ -346,7 +507,7 @@ public class IOSApplication {
 	 * @throws CalabashException
 	 */
 	public boolean elementExists(String query) throws CalabashException {
-		return calabashWrapper.elementExists(query);
+		return transport.elementExists(query);
 	}
 
 	/**
@@ -359,7 +520,7 @@ public class IOSApplication {
 	 * @throws CalabashException
 	 */
 	public void sendToBackground(int seconds) throws CalabashException {
-		calabashWrapper.sendAppToBackground(seconds);
+		transport.sendAppToBackground(seconds);
 	}
 
 	/**
@@ -368,7 +529,7 @@ public class IOSApplication {
 	 * @throws CalabashException
 	 */
 	public void waitForKeyboard() throws CalabashException {
-		calabashWrapper.waitForKeyboard();
+		transport.waitForKeyboard();
 	}
 
 }
@@ -0,0 +1,123 @@
+/**
+ *
+ */
+package calabash.java;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Carries calabash operations to the application under test.
+ * {@link IOSApplication}, {@link UIElement} and {@link Keyboard} talk to the
+ * application only through this interface.
+ * <p>
+ * Available implementations are {@link CalabashWrapper} which uses the
+ * calabash Ruby client, {@link HttpTransport} which talks to the calabash
+ * server directly for the operations it supports and
+ * {@link InMemoryTransport} which serves scripted results without any device.
+ *
+ */
+public interface ITransport {
+
+	/**
+	 * Runs the query and returns the raw results. Elements are represented as
+	 * {@link java.util.Map}
+	 *
+	 * @param query
+	 *            Calabash query
+	 * @param args
+	 *            Optional property selectors
+	 * @return Query results
+	 * @throws CalabashException
+	 */
+	List<?> query(String query, String... args) throws CalabashException;
+
+	/**
+	 * Runs all the queries in the batch together. Transports may issue the
+	 * queries concurrently or from one Ruby call, but each query is still a
+	 * separate device call and the results need not be an atomic snapshot
+	 *
+	 * @param batch
+	 *            Queries to run
+	 * @return Raw results for each query in the order they were added
+	 * @throws CalabashException
+	 */
+	List<List<?>> query(QueryBatch batch) throws CalabashException;
+
+	boolean elementExists(String query) throws CalabashException;
+
+	String escapeQuotes(String source) throws CalabashException;
+
+	void touch(String query) throws CalabashException;
+
+	void flash(String query) throws CalabashException;
+
+	void scroll(String query, Direction direction) throws CalabashException;
+
+	void swipe(String query, Direction direction, SwipeOptions options)
+			throws CalabashException;
+
+	void pinch(String query, String inOrOut) throws CalabashException;
+
+	void rotate(String direction) throws CalabashException;
+
+	void scrollToRow(String query, int row) throws CalabashException;
+
+	void scrollToCell(String query, ScrollOptions options)
+			throws CalabashException;
+
+	void scrollThroughEachCell(String query, ScrollOptions options,
+			CellIterator callback) throws CalabashException;
+
+	void enterText(String text) throws CalabashException;
+
+	void enterChar(String text) throws CalabashException;
+
+	void done() throws CalabashException;
+
+	void start() throws CalabashException;
+
+	void exit() throws CalabashException;
+
+	void sendAppToBackground(int seconds) throws CalabashException;
+
+	void startRecording() throws CalabashException;
+
+	void stopRecording(String filename) throws CalabashException;
+
+	void playback(String recording, String query, Offset offset)
+			throws CalabashException;
+
+	void takeScreenShot(File dir, String fileName) throws CalabashException;
+
+	/**
+	 * Gets the server version details
+	 *
+	 * @return {@link java.util.Map} with the server details
+	 * @throws CalabashException
+	 */
+	Object serverVersion() throws CalabashException;
+
+	Object clientVersion() throws CalabashException;
+
+	void waitFor(ICondition condition, WaitOptions options)
+			throws CalabashException, OperationTimedoutException;
+
+	void waitForElementsExist(String[] queries, WaitOptions options)
+			throws OperationTimedoutException, CalabashException;
+
+	void waitForElementsToNotExist(String[] queries, WaitOptions options)
+			throws OperationTimedoutException, CalabashException;
+
+	void waitForKeyboard() throws CalabashException;
+
+	void waitForNoneAnimating() throws CalabashException;
+
+	/**
+	 * Releases resources held by this transport
+	 *
+	 * @throws CalabashException
+	 */
+	void dispose() throws CalabashException;
+
+}
@@ -0,0 +1,333 @@
+/**
+ *
+ */
+package calabash.java;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transport which serves scripted query results from memory. No simulator,
+ * device or Ruby runtime is required which makes it useful to test and
+ * benchmark the Java layer.
+ * <p>
+ * Queries which are not scripted return no elements. Every operation is
+ * recorded and can be inspected using {@link #getInvocations()}.
+ * <p>
+ * Eg:
+ *
+ * <pre>
+ * InMemoryTransport transport = new InMemoryTransport();
+ * transport.setQueryResult(&quot;button&quot;, InMemoryTransport.element(&quot;UIButton&quot;,
+ * 		&quot;Login&quot;, new Rect(0, 0, 100, 40, 50, 20)));
+ * IOSApplication application = new IOSApplication(transport);
+ * </pre>
+ *
+ */
+public final class InMemoryTransport implements ITransport {
+
+	public static final String KEYBOARD_QUERY = Waiter.KEYBOARD_QUERY;
+
+	private final Map<String, List<?>> results = new HashMap<String, List<?>>();
+	private final List<String> invocations = new ArrayList<String>();
+	private Map<?, ?> serverVersion = new HashMap<Object, Object>();
+	private final Waiter waiter = new Waiter(this, null);
+
+	/**
+	 * Sets the results returned for the query
+	 *
+	 * @param query
+	 *            Query
+	 * @param elements
+	 *            Elements to return. Each element should be a {@link Map}
+	 */
+	public void setQueryResult(String query, Map<?, ?>... elements) {
+		setQueryResult(query, null, Arrays.asList(elements));
+	}
+
+	/**
+	 * Sets the values returned when the selector is applied on the query
+	 *
+	 * @param query
+	 *            Query
+	 * @param selector
+	 *            Property selector. null for plain queries
+	 * @param values
+	 *            Values to return
+	 */
+	public void setQueryResult(String query, String selector, List<?> values) {
+		synchronized (results) {
+			results.put(key(query, selector), new ArrayList<Object>(values));
+		}
+	}
+
+	/**
+	 * Removes the scripted results for the query and all of it's selectors
+	 *
+	 * @param query
+	 *            Query
+	 */
+	public void removeQueryResult(String query) {
+		synchronized (results) {
+			String prefix = key(query, null);
+			for (String key : new ArrayList<String>(results.keySet())) {
+				if (key.equals(prefix) || key.startsWith(prefix + "\u0000"))
+					results.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Sets the details returned for server version
+	 *
+	 * @param serverVersion
+	 */
+	public void setServerVersion(Map<?, ?> serverVersion) {
+		this.serverVersion = serverVersion;
+	}
+
+	/**
+	 * Gets all the operations performed on this transport in the order they
+	 * were invoked
+	 *
+	 * @return List of operations. Eg: "touch button index:0"
+	 */
+	public List<String> getInvocations() {
+		synchronized (invocations) {
+			return new ArrayList<String>(invocations);
+		}
+	}
+
+	public void clearInvocations() {
+		synchronized (invocations) {
+			invocations.clear();
+		}
+	}
+
+	/**
+	 * Creates an element which can be used as a query result
+	 *
+	 * @param elementClass
+	 *            Class of the element. Eg: UIButton
+	 * @param label
+	 *            Accessibility label
+	 * @param rect
+	 *            Rectangle of the element. Frame is set to the same values
+	 * @return Element
+	 */
+	public static Map<String, Object> element(String elementClass,
+			String label, Rect rect) {
+		Map<String, Object> element = new LinkedHashMap<String, Object>();
+		element.put("class", elementClass);
+		element.put("label", label);
+		element.put("description", String.format("<%s>", elementClass));
+		if (rect != null) {
+			Map<String, Object> rectMap = new LinkedHashMap<String, Object>();
+			rectMap.put("x", rect.getX());
+			rectMap.put("y", rect.getY());
+			rectMap.put("width", rect.getWidth());
+			rectMap.put("height", rect.getHeight());
+			rectMap.put("center_x", rect.getCenter_x());
+			rectMap.put("center_y", rect.getCenter_y());
+			element.put("rect", rectMap);
+
+			Map<String, Object> frameMap = new LinkedHashMap<String, Object>();
+			frameMap.put("x", rect.getX());
+			frameMap.put("y", rect.getY());
+			frameMap.put("width", rect.getWidth());
+			frameMap.put("height", rect.getHeight());
+			element.put("frame", frameMap);
+		}
+		return element;
+	}
+
+	public List<?> query(String query, String... args)
+			throws CalabashException {
+		String selector = null;
+		if (args != null && args.length > 0) {
+			StringBuilder selectors = new StringBuilder();
+			for (int i = 0; i < args.length; i++) {
+				if (i > 0)
+					selectors.append("\u0000");
+				selectors.append(args[i]);
+			}
+			selector = selectors.toString();
+		}
+
+		synchronized (results) {
+			List<?> result = results.get(key(query, selector));
+			if (result == null && selector != null)
+				return selectFromElements(results.get(key(query, null)),
+						selector);
+			if (result == null)
+				return new ArrayList<Object>();
+			return new ArrayList<Object>(result);
+		}
+	}
+
+	// Like the server, a selector without scripted values is applied to
+	// each element. Properties the element doesn't have are null
+	private static List<?> selectFromElements(List<?> elements,
+			String selector) {
+		List<Object> values = new ArrayList<Object>();
+		if (elements == null)
+			return values;
+		for (Object element : elements)
+			values.add(element instanceof Map<?, ?> ? ((Map<?, ?>) element)
+					.get(selector) : null);
+		return values;
+	}
+
+	public List<List<?>> query(QueryBatch batch) throws CalabashException {
+		List<List<?>> batchResults = new ArrayList<List<?>>();
+		for (int i = 0; i < batch.size(); i++) {
+			batchResults.add(query(batch.getQuery(i), batch.getSelectors(i)));
+		}
+		return batchResults;
+	}
+
+	public boolean elementExists(String query) throws CalabashException {
+		return !query(query).isEmpty();
+	}
+
+	public String escapeQuotes(String source) throws CalabashException {
+		return source.replace("'", "\\'");
+	}
+
+	public void touch(String query) throws CalabashException {
+		record("touch %s", query);
+	}
+
+	public void flash(String query) throws CalabashException {
+		record("flash %s", query);
+	}
+
+	public void scroll(String query, Direction direction)
+			throws CalabashException {
+		record("scroll %s %s", query, direction.getDirection());
+	}
+
+	public void swipe(String query, Direction direction, SwipeOptions options)
+			throws CalabashException {
+		record("swipe %s %s", query, direction.getDirection());
+	}
+
+	public void pinch(String query, String inOrOut) throws CalabashException {
+		record("pinch %s %s", query, inOrOut);
+	}
+
+	public void rotate(String direction) throws CalabashException {
+		record("rotate %s", direction);
+	}
+
+	public void scrollToRow(String query, int row) throws CalabashException {
+		record("scrollToRow %s %d", query, row);
+	}
+
+	public void scrollToCell(String query, ScrollOptions options)
+			throws CalabashException {
+		record("scrollToCell %s", query);
+	}
+
+	public void scrollThroughEachCell(String query, ScrollOptions options,
+			CellIterator callback) throws CalabashException {
+		record("scrollThroughEachCell %s", query);
+	}
+
+	public void enterText(String text) throws CalabashException {
+		record("enterText %s", text);
+	}
+
+	public void enterChar(String text) throws CalabashException {
+		record("enterChar %s", text);
+	}
+
+	public void done() throws CalabashException {
+		record("done");
+	}
+
+	public void start() throws CalabashException {
+		record("start");
+	}
+
+	public void exit() throws CalabashException {
+		record("exit");
+	}
+
+	public void sendAppToBackground(int seconds) throws CalabashException {
+		record("sendAppToBackground %d", seconds);
+	}
+
+	public void startRecording() throws CalabashException {
+		record("startRecording");
+	}
+
+	public void stopRecording(String filename) throws CalabashException {
+		record("stopRecording %s", filename);
+	}
+
+	public void playback(String recording, String query, Offset offset)
+			throws CalabashException {
+		record("playback %s", recording);
+	}
+
+	public void takeScreenShot(File dir, String fileName)
+			throws CalabashException {
+		record("takeScreenShot %s", fileName);
+	}
+
+	public Object serverVersion() throws CalabashException {
+		return serverVersion;
+	}
+
+	public Object clientVersion() throws CalabashException {
+		return "in-memory";
+	}
+
+	public void waitFor(ICondition condition, WaitOptions options)
+			throws CalabashException, OperationTimedoutException {
+		waiter.waitFor(condition, options);
+	}
+
+	public void waitForElementsExist(String[] queries, WaitOptions options)
+			throws OperationTimedoutException, CalabashException {
+		waiter.waitForElementsExist(queries, options);
+	}
+
+	public void waitForElementsToNotExist(String[] queries,
+			WaitOptions options) throws OperationTimedoutException,
+			CalabashException {
+		waiter.waitForElementsToNotExist(queries, options);
+	}
+
+	public void waitForKeyboard() throws CalabashException {
+		waiter.waitForKeyboard();
+	}
+
+	public void waitForNoneAnimating() throws CalabashException {
+		record("waitForNoneAnimating");
+	}
+
+	public void dispose() throws CalabashException {
+		synchronized (results) {
+			results.clear();
+		}
+	}
+
+	private void record(String format, Object... args) {
+		synchronized (invocations) {
+			invocations.add(String.format(format, args));
+		}
+	}
+
+	private static String key(String query, String selector) {
+		String key = query.trim();
+		return selector == null ? key : key + "\u0000" + selector;
+	}
+
+}
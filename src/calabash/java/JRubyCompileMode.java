@@ -0,0 +1,28 @@
+/**
+ *
+ */
+package calabash.java;
+
+/**
+ * How JRuby turns Ruby code into JVM bytecode. See
+ * {@link CalabashConfiguration#setJRubyCompileMode(JRubyCompileMode)}
+ *
+ */
+public enum JRubyCompileMode {
+
+	/**
+	 * Interprets methods and compiles the ones which are called often. This
+	 * is JRuby's default
+	 */
+	JIT,
+
+	/**
+	 * Compiles every script to bytecode before running it
+	 */
+	FORCE,
+
+	/**
+	 * Only interprets
+	 */
+	OFF
+}
@@ -0,0 +1,321 @@
+/**
+ *
+ */
+package calabash.java;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON reader and writer used to talk to the calabash server without
+ * going through the Ruby client
+ *
+ */
+final class Json {
+
+	private final String source;
+	private int position;
+
+	private Json(String source) {
+		this.source = source;
+		this.position = 0;
+	}
+
+	/**
+	 * Parses the JSON text. Objects are returned as {@link Map}, arrays as
+	 * {@link List}, numbers as Integer, Long or Double.
+	 *
+	 * @param source
+	 *            JSON text
+	 * @return Parsed value
+	 * @throws CalabashException
+	 *             If the text is not valid JSON
+	 */
+	public static Object parse(String source) throws CalabashException {
+		Json json = new Json(source);
+		json.skipWhitespace();
+		Object value = json.readValue();
+		json.skipWhitespace();
+		if (json.position != source.length())
+			throw json.error("Unexpected trailing content");
+		return value;
+	}
+
+	/**
+	 * Serializes a value made of maps, collections, arrays, strings, numbers
+	 * and booleans to JSON text
+	 *
+	 * @param value
+	 *            Value to serialize
+	 * @return JSON text
+	 */
+	public static String toJson(Object value) {
+		StringBuilder builder = new StringBuilder();
+		write(builder, value);
+		return builder.toString();
+	}
+
+	private static void write(StringBuilder builder, Object value) {
+		if (value == null) {
+			builder.append("null");
+		} else if (value instanceof String) {
+			writeString(builder, (String) value);
+		} else if (value instanceof Number || value instanceof Boolean) {
+			builder.append(value.toString());
+		} else if (value instanceof Map<?, ?>) {
+			builder.append('{');
+			boolean first = true;
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				if (!first)
+					builder.append(',');
+				writeString(builder, String.valueOf(entry.getKey()));
+				builder.append(':');
+				write(builder, entry.getValue());
+				first = false;
+			}
+			builder.append('}');
+		} else if (value instanceof Collection<?>) {
+			writeArray(builder, ((Collection<?>) value).toArray());
+		} else if (value instanceof Object[]) {
+			writeArray(builder, (Object[]) value);
+		} else {
+			writeString(builder, value.toString());
+		}
+	}
+
+	private static void writeArray(StringBuilder builder, Object[] values) {
+		builder.append('[');
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0)
+				builder.append(',');
+			write(builder, values[i]);
+		}
+		builder.append(']');
+	}
+
+	private static void writeString(StringBuilder builder, String value) {
+		builder.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				builder.append("\\\"");
+				break;
+			case '\\':
+				builder.append("\\\\");
+				break;
+			case '\n':
+				builder.append("\\n");
+				break;
+			case '\r':
+				builder.append("\\r");
+				break;
+			case '\t':
+				builder.append("\\t");
+				break;
+			case '\b':
+				builder.append("\\b");
+				break;
+			case '\f':
+				builder.append("\\f");
+				break;
+			default:
+				if (c < 0x20)
+					builder.append(String.format("\\u%04x", (int) c));
+				else
+					builder.append(c);
+			}
+		}
+		builder.append('"');
+	}
+
+	private Object readValue() throws CalabashException {
+		if (position >= source.length())
+			throw error("Unexpected end of input");
+
+		char c = source.charAt(position);
+		switch (c) {
+		case '{':
+			return readObject();
+		case '[':
+			return readArray();
+		case '"':
+			return readString();
+		case 't':
+			expectLiteral("true");
+			return Boolean.TRUE;
+		case 'f':
+			expectLiteral("false");
+			return Boolean.FALSE;
+		case 'n':
+			expectLiteral("null");
+			return null;
+		default:
+			if (c == '-' || (c >= '0' && c <= '9'))
+				return readNumber();
+			throw error("Unexpected character '" + c + "'");
+		}
+	}
+
+	private Map<String, Object> readObject() throws CalabashException {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		position++;
+		skipWhitespace();
+		if (peek() == '}') {
+			position++;
+			return map;
+		}
+
+		while (true) {
+			skipWhitespace();
+			if (peek() != '"')
+				throw error("Expected a string key");
+			String key = readString();
+			skipWhitespace();
+			expect(':');
+			skipWhitespace();
+			map.put(key, readValue());
+			skipWhitespace();
+			char c = next();
+			if (c == '}')
+				return map;
+			if (c != ',')
+				throw error("Expected ',' or '}'");
+		}
+	}
+
+	private List<Object> readArray() throws CalabashException {
+		List<Object> list = new ArrayList<Object>();
+		position++;
+		skipWhitespace();
+		if (peek() == ']') {
+			position++;
+			return list;
+		}
+
+		while (true) {
+			skipWhitespace();
+			list.add(readValue());
+			skipWhitespace();
+			char c = next();
+			if (c == ']')
+				return list;
+			if (c != ',')
+				throw error("Expected ',' or ']'");
+		}
+	}
+
+	private String readString() throws CalabashException {
+		position++;
+		StringBuilder builder = new StringBuilder();
+		while (true) {
+			char c = next();
+			if (c == '"')
+				return builder.toString();
+			if (c != '\\') {
+				builder.append(c);
+				continue;
+			}
+
+			char escaped = next();
+			switch (escaped) {
+			case '"':
+			case '\\':
+			case '/':
+				builder.append(escaped);
+				break;
+			case 'b':
+				builder.append('\b');
+				break;
+			case 'f':
+				builder.append('\f');
+				break;
+			case 'n':
+				builder.append('\n');
+				break;
+			case 'r':
+				builder.append('\r');
+				break;
+			case 't':
+				builder.append('\t');
+				break;
+			case 'u':
+				if (position + 4 > source.length())
+					throw error("Invalid unicode escape");
+				try {
+					builder.append((char) Integer.parseInt(
+							source.substring(position, position + 4), 16));
+				} catch (NumberFormatException e) {
+					throw error("Invalid unicode escape");
+				}
+				position += 4;
+				break;
+			default:
+				throw error("Invalid escape character '" + escaped + "'");
+			}
+		}
+	}
+
+	private Object readNumber() throws CalabashException {
+		int start = position;
+		boolean decimal = false;
+		while (position < source.length()) {
+			char c = source.charAt(position);
+			if (c == '.' || c == 'e' || c == 'E')
+				decimal = true;
+			else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9')))
+				break;
+			position++;
+		}
+
+		String text = source.substring(start, position);
+		try {
+			if (decimal)
+				return Double.valueOf(text);
+			long value = Long.parseLong(text);
+			if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)
+				return Integer.valueOf((int) value);
+			return Long.valueOf(value);
+		} catch (NumberFormatException e) {
+			throw error("Invalid number '" + text + "'");
+		}
+	}
+
+	private void expectLiteral(String literal) throws CalabashException {
+		if (!source.startsWith(literal, position))
+			throw error("Expected '" + literal + "'");
+		position += literal.length();
+	}
+
+	private void expect(char expected) throws CalabashException {
+		if (next() != expected)
+			throw error("Expected '" + expected + "'");
+	}
+
+	private char peek() throws CalabashException {
+		if (position >= source.length())
+			throw error("Unexpected end of input");
+		return source.charAt(position);
+	}
+
+	private char next() throws CalabashException {
+		char c = peek();
+		position++;
+		return c;
+	}
+
+	private void skipWhitespace() {
+		while (position < source.length()
+				&& Character.isWhitespace(source.charAt(position)))
+			position++;
+	}
+
+	private CalabashException error(String message) {
+		return new CalabashException(String.format(
+				"Invalid JSON at position %d. %s", position, message));
+	}
+
+}
@@ -9,18 +9,18 @@ package calabash.java;
  */
 public final class Keyboard {
 
-	private final CalabashWrapper calabashWrapper;
+	private final ITransport transport;
 
 	/**
 	 * Initializes a Keyboard instance
 	 * 
-	 * @param calabashWrapper
+	 * @param transport
 	 * 
 	 * @throws CalabashException
 	 *             If no visible keyboard detected
 	 */
-	public Keyboard(CalabashWrapper calabashWrapper) throws CalabashException {
-		this.calabashWrapper = calabashWrapper;
+	public Keyboard(ITransport transport) throws CalabashException {
+		this.transport = transport;
 	}
 
 	/**
@@ -32,7 +32,7 @@ public final class Keyboard {
 	 * @throws CalabashException
 	 */
 	public void enterText(String text) throws CalabashException {
-		calabashWrapper.enterText(text);
+		transport.enterText(text);
 	}
 
 	/**
@@ -43,7 +43,7 @@ public final class Keyboard {
 	 * @throws CalabashException
 	 */
 	public void pressSpecialKey(SpecialKeys key) throws CalabashException {
-		calabashWrapper.enterChar(key.getKeyName());
+		transport.enterChar(key.getKeyName());
 	}
 
 	/**
@@ -52,7 +52,7 @@ public final class Keyboard {
 	 * @throws CalabashException
 	 */
 	public void done() throws CalabashException {
-		calabashWrapper.done();
+		transport.done();
 	}
 
 }
@@ -0,0 +1,244 @@
+/**
+ *
+ */
+package calabash.java;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Evaluates calabash queries against a {@link TreeSnapshot} without talking
+ * to the device. Supported subset:
+ * <ul>
+ * <li>Class names like <code>button</code>, <code>UIButton</code>,
+ * <code>view:'UIButton'</code> and <code>*</code>. <code>view</code> matches
+ * every element</li>
+ * <li><code>marked:'text'</code> which matches the id or the label</li>
+ * <li><code>index:n</code></li>
+ * <li><code>child</code>, <code>descendant</code> and <code>parent</code>
+ * directions</li>
+ * </ul>
+ * Class names are compared exactly. Unlike the server, subclasses of the
+ * named class are not matched as the snapshot doesn't have the class
+ * hierarchy. Positions in the local matches are therefore never used to
+ * address elements on the device.
+ *
+ */
+final class LocalQueryEvaluator {
+
+	private enum Direction {
+		CHILD, DESCENDANT, PARENT
+	}
+
+	private final TreeSnapshot snapshot;
+
+	public LocalQueryEvaluator(TreeSnapshot snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Evaluates the query
+	 *
+	 * @param query
+	 *            Calabash query
+	 * @return Positions of the matching nodes in the order the server would
+	 *         return them
+	 * @throws CalabashException
+	 *             If the query uses something outside the supported subset
+	 */
+	public int[] evaluate(String query) throws CalabashException {
+		int[] current = null;
+		Direction direction = Direction.DESCENDANT;
+		for (String token : tokenize(query)) {
+			if (token.equals("child")) {
+				direction = Direction.CHILD;
+			} else if (token.equals("descendant")) {
+				direction = Direction.DESCENDANT;
+			} else if (token.equals("parent")) {
+				direction = Direction.PARENT;
+			} else if (token.startsWith("marked:")) {
+				current = filterMarked(all(current), value(token, query));
+			} else if (token.startsWith("index:")) {
+				current = filterIndex(all(current), token, query);
+			} else if (token.startsWith("view:")) {
+				current = filterClass(expand(current, direction),
+						value(token, query));
+				direction = Direction.DESCENDANT;
+			} else if (token.indexOf(':') == -1) {
+				current = filterClass(expand(current, direction), token);
+				direction = Direction.DESCENDANT;
+			} else {
+				throw new CalabashException(String.format(
+						"Unsupported filter '%s' in query '%s'", token, query));
+			}
+		}
+		return all(current);
+	}
+
+	/**
+	 * Checks whether the query filters by class names other than
+	 * <code>*</code> and <code>view</code>. Such queries can match a different
+	 * set of elements than the server does
+	 *
+	 * @param query
+	 *            Calabash query
+	 * @return true if the query filters by class
+	 * @throws CalabashException
+	 */
+	static boolean filtersByClass(String query) throws CalabashException {
+		for (String token : tokenize(query)) {
+			if (token.equals("child") || token.equals("descendant")
+					|| token.equals("parent"))
+				continue;
+			if (token.startsWith("view:"))
+				return true;
+			if (token.indexOf(':') == -1 && !token.equals("*")
+					&& !token.equals("view"))
+				return true;
+		}
+		return false;
+	}
+
+	private int[] all(int[] current) {
+		if (current != null)
+			return current;
+		int[] nodes = new int[snapshot.size()];
+		for (int i = 0; i < nodes.length; i++)
+			nodes[i] = i;
+		return nodes;
+	}
+
+	private int[] expand(int[] current, Direction direction) {
+		if (current == null)
+			return all(null);
+
+		boolean[] selected = new boolean[snapshot.size()];
+		List<Integer> ancestors = new ArrayList<Integer>();
+		for (int node : current) {
+			if (direction == Direction.CHILD) {
+				for (int child : snapshot.getChildren(node))
+					selected[child] = true;
+			} else if (direction == Direction.DESCENDANT) {
+				selectDescendants(node, selected);
+			} else {
+				// Ancestors are returned nearest first
+				for (int parent = snapshot.getParent(node); parent != -1; parent = snapshot
+						.getParent(parent)) {
+					if (!selected[parent]) {
+						selected[parent] = true;
+						ancestors.add(parent);
+					}
+				}
+			}
+		}
+
+		if (direction == Direction.PARENT)
+			return toArray(ancestors);
+
+		// Nodes are stored in pre-order, so position order is document order
+		List<Integer> nodes = new ArrayList<Integer>();
+		for (int i = 0; i < selected.length; i++) {
+			if (selected[i])
+				nodes.add(i);
+		}
+		return toArray(nodes);
+	}
+
+	private void selectDescendants(int node, boolean[] selected) {
+		for (int child : snapshot.getChildren(node)) {
+			if (!selected[child]) {
+				selected[child] = true;
+				selectDescendants(child, selected);
+			}
+		}
+	}
+
+	private int[] filterClass(int[] nodes, String name) {
+		if (name.equals("*") || name.equals("view"))
+			return nodes;
+
+		String uiKitName = "UI" + Character.toUpperCase(name.charAt(0))
+				+ name.substring(1);
+		List<Integer> matches = new ArrayList<Integer>();
+		for (int node : nodes) {
+			String elementClass = snapshot.getElementClass(node);
+			if (name.equals(elementClass) || uiKitName.equals(elementClass))
+				matches.add(node);
+		}
+		return toArray(matches);
+	}
+
+	private int[] filterMarked(int[] nodes, String mark) {
+		List<Integer> matches = new ArrayList<Integer>();
+		for (int node : nodes) {
+			if (mark.equals(snapshot.getId(node))
+					|| mark.equals(snapshot.getLabel(node)))
+				matches.add(node);
+		}
+		return toArray(matches);
+	}
+
+	private int[] filterIndex(int[] nodes, String token, String query)
+			throws CalabashException {
+		int index;
+		try {
+			index = Integer.parseInt(token.substring("index:".length()));
+		} catch (NumberFormatException e) {
+			throw new CalabashException(String.format(
+					"Invalid index '%s' in query '%s'", token, query));
+		}
+		if (index < 0 || index >= nodes.length)
+			return new int[0];
+		return new int[] { nodes[index] };
+	}
+
+	private static String value(String token, String query)
+			throws CalabashException {
+		String value = token.substring(token.indexOf(':') + 1);
+		if (value.length() < 2 || !value.startsWith("'")
+				|| !value.endsWith("'"))
+			throw new CalabashException(String.format(
+					"Expected a quoted value in '%s' of query '%s'", token,
+					query));
+		return value.substring(1, value.length() - 1).replace("\\'", "'");
+	}
+
+	/**
+	 * Splits on whitespace except inside single quotes
+	 */
+	static List<String> tokenize(String query) throws CalabashException {
+		List<String> tokens = new ArrayList<String>();
+		StringBuilder token = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < query.length(); i++) {
+			char c = query.charAt(i);
+			if (c == '\\' && quoted && i + 1 < query.length()) {
+				token.append(c).append(query.charAt(++i));
+			} else if (c == '\'') {
+				quoted = !quoted;
+				token.append(c);
+			} else if (Character.isWhitespace(c) && !quoted) {
+				if (token.length() > 0) {
+					tokens.add(token.toString());
+					token.setLength(0);
+				}
+			} else {
+				token.append(c);
+			}
+		}
+
+		if (quoted)
+			throw new CalabashException(String.format(
+					"Unterminated quote in query '%s'", query));
+		if (token.length() > 0)
+			tokens.add(token.toString());
+		return tokens;
+	}
+
+	private static int[] toArray(List<Integer> nodes) {
+		int[] array = new int[nodes.size()];
+		for (int i = 0; i < array.length; i++)
+			array[i] = nodes.get(i);
+		return array;
+	}
+}
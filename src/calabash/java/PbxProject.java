@@ -0,0 +1,392 @@
+/**
+ *
+ */
+package calabash.java;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads an Xcode <code>project.pbxproj</code>, which is an OpenStep style
+ * property list, without converting it with <code>plutil</code>. The file is
+ * read once through a buffer, and the calabash framework reference is looked
+ * for in every string and comment along the way, like <code>grep</code>
+ * did. Targets and build configurations are then resolved from the objects
+ * dictionary.
+ *
+ */
+final class PbxProject {
+
+	private static final String CALABASH_FRAMEWORK = "calabash.framework";
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Map<String, Object> objects;
+	private final String rootObjectId;
+	private final boolean calabashFramework;
+
+	private PbxProject(Map<String, Object> objects, String rootObjectId,
+			boolean calabashFramework) {
+		this.objects = objects;
+		this.rootObjectId = rootObjectId;
+		this.calabashFramework = calabashFramework;
+	}
+
+	/**
+	 * Parses the project file
+	 *
+	 * @param pbxprojFile
+	 *            project.pbxproj file
+	 * @throws CalabashException
+	 *             If the file can't be read or is not a valid property list
+	 */
+	public static PbxProject parse(File pbxprojFile) throws CalabashException {
+		Reader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(pbxprojFile), "UTF-8"), BUFFER_SIZE);
+			return parse(reader, pbxprojFile.getAbsolutePath());
+		} catch (IOException e) {
+			throw new CalabashException(String.format(
+					"Failed to read the pbxproj file: %s. %s",
+					pbxprojFile.getAbsolutePath(), e.getMessage()), e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	static PbxProject parse(Reader reader, String source) throws IOException,
+			CalabashException {
+		Parser parser = new Parser(reader, source);
+		Object root = parser.parseDocument();
+		if (!(root instanceof Map<?, ?>))
+			throw new CalabashException(String.format(
+					"Failed to parse the pbxproj file: %s. Expected a dictionary",
+					source));
+
+		Map<?, ?> project = (Map<?, ?>) root;
+		Map<String, Object> objects = new HashMap<String, Object>();
+		if (project.get("objects") instanceof Map<?, ?>) {
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) project.get("objects"))
+					.entrySet())
+				objects.put(String.valueOf(entry.getKey()), entry.getValue());
+		}
+		Object rootObjectId = project.get("rootObject");
+		return new PbxProject(objects,
+				rootObjectId instanceof String ? (String) rootObjectId : null,
+				parser.foundCalabashFramework);
+	}
+
+	/**
+	 * Gets the names of the targets in the project
+	 *
+	 * @return Target names in project order
+	 */
+	public List<String> getTargets() {
+		return getNames(getRootObject().get("targets"));
+	}
+
+	/**
+	 * Gets the names of the project level build configurations, like Debug
+	 * and Release
+	 *
+	 * @return Build configuration names
+	 */
+	public List<String> getBuildConfigurations() {
+		Map<?, ?> configurationList = getObject(getRootObject().get(
+				"buildConfigurationList"));
+		return getNames(configurationList.get("buildConfigurations"));
+	}
+
+	/**
+	 * Gets whether the project references calabash.framework
+	 *
+	 * @return true if calabash is setup for the project
+	 */
+	public boolean hasCalabashFramework() {
+		return calabashFramework;
+	}
+
+	private Map<?, ?> getRootObject() {
+		return getObject(rootObjectId);
+	}
+
+	private Map<?, ?> getObject(Object id) {
+		Object object = id == null ? null : objects.get(id);
+		if (object instanceof Map<?, ?>)
+			return (Map<?, ?>) object;
+		return Collections.emptyMap();
+	}
+
+	private List<String> getNames(Object ids) {
+		List<String> names = new ArrayList<String>();
+		if (!(ids instanceof List<?>))
+			return names;
+		for (Object id : (List<?>) ids) {
+			Object name = getObject(id).get("name");
+			if (name != null)
+				names.add(name.toString());
+		}
+		return names;
+	}
+
+	/**
+	 * Recursive descent parser reading one character at a time with one
+	 * character of look ahead
+	 */
+	private static final class Parser {
+		private final Reader reader;
+		private final String source;
+		private int current;
+		private int following;
+		private int line = 1;
+		private boolean foundCalabashFramework = false;
+
+		Parser(Reader reader, String source) throws IOException {
+			this.reader = reader;
+			this.source = source;
+			this.current = reader.read();
+			this.following = current == -1 ? -1 : reader.read();
+		}
+
+		Object parseDocument() throws IOException, CalabashException {
+			skipWhitespaceAndComments();
+			Object value = parseValue();
+			skipWhitespaceAndComments();
+			if (current != -1)
+				throw error("Unexpected trailing content");
+			return value;
+		}
+
+		private Object parseValue() throws IOException, CalabashException {
+			switch (current) {
+			case '{':
+				return parseDictionary();
+			case '(':
+				return parseArray();
+			case '"':
+				return parseQuotedString();
+			case '<':
+				return parseData();
+			default:
+				if (isUnquotedChar(current))
+					return parseUnquotedString();
+				throw error(current == -1 ? "Unexpected end of file"
+						: "Unexpected character '" + (char) current + "'");
+			}
+		}
+
+		private Map<String, Object> parseDictionary() throws IOException,
+				CalabashException {
+			next();
+			Map<String, Object> dictionary = new HashMap<String, Object>();
+			while (true) {
+				skipWhitespaceAndComments();
+				if (current == '}') {
+					next();
+					return dictionary;
+				}
+				Object key = parseValue();
+				if (!(key instanceof String))
+					throw error("Dictionary keys should be strings");
+				skipWhitespaceAndComments();
+				expect('=');
+				skipWhitespaceAndComments();
+				Object value = parseValue();
+				skipWhitespaceAndComments();
+				expect(';');
+				dictionary.put((String) key, value);
+			}
+		}
+
+		private List<Object> parseArray() throws IOException,
+				CalabashException {
+			next();
+			List<Object> array = new ArrayList<Object>();
+			while (true) {
+				skipWhitespaceAndComments();
+				if (current == ')') {
+					next();
+					return array;
+				}
+				array.add(parseValue());
+				skipWhitespaceAndComments();
+				// The last element is usually followed by a comma as well
+				if (current == ',')
+					next();
+				else if (current != ')')
+					throw error("Expected ',' or ')'");
+			}
+		}
+
+		private String parseQuotedString() throws IOException,
+				CalabashException {
+			next();
+			StringBuilder value = new StringBuilder();
+			while (current != '"') {
+				if (current == -1)
+					throw error("Unterminated string");
+				if (current == '\\') {
+					next();
+					value.append(parseEscape());
+				} else {
+					value.append((char) current);
+					next();
+				}
+			}
+			next();
+			return found(value.toString());
+		}
+
+		private char parseEscape() throws IOException, CalabashException {
+			int escaped = current;
+			next();
+			switch (escaped) {
+			case 'n':
+				return '\n';
+			case 't':
+				return '\t';
+			case 'r':
+				return '\r';
+			case 'b':
+				return '\b';
+			case 'f':
+				return '\f';
+			case 'a':
+				return '\u0007';
+			case 'v':
+				return '\u000b';
+			case 'U':
+				int code = 0;
+				for (int i = 0; i < 4; i++) {
+					int digit = Character.digit(current, 16);
+					if (digit < 0)
+						throw error("Invalid unicode escape");
+					code = code * 16 + digit;
+					next();
+				}
+				return (char) code;
+			case -1:
+				throw error("Unterminated string");
+			default:
+				return (char) escaped;
+			}
+		}
+
+		private String parseUnquotedString() throws IOException {
+			StringBuilder value = new StringBuilder();
+			while (isUnquotedChar(current)) {
+				value.append((char) current);
+				next();
+			}
+			return found(value.toString());
+		}
+
+		// Data is not used by Xcode projects, it is kept as hex text
+		private String parseData() throws IOException, CalabashException {
+			next();
+			StringBuilder value = new StringBuilder();
+			while (current != '>') {
+				if (current == -1)
+					throw error("Unterminated data");
+				if (!Character.isWhitespace(current))
+					value.append((char) current);
+				next();
+			}
+			next();
+			return value.toString();
+		}
+
+		private void skipWhitespaceAndComments() throws IOException,
+				CalabashException {
+			while (true) {
+				if (current != -1 && Character.isWhitespace(current)) {
+					next();
+				} else if (current == '/' && following == '/') {
+					skipLineComment();
+				} else if (current == '/' && following == '*') {
+					skipBlockComment();
+				} else {
+					return;
+				}
+			}
+		}
+
+		private void skipLineComment() throws IOException {
+			next();
+			next();
+			StringBuilder comment = new StringBuilder();
+			while (current != -1 && current != '\n') {
+				comment.append((char) current);
+				next();
+			}
+			found(comment.toString());
+		}
+
+		private void skipBlockComment() throws IOException, CalabashException {
+			next();
+			next();
+			StringBuilder comment = new StringBuilder();
+			while (true) {
+				if (current == -1)
+					throw error("Unterminated comment");
+				if (current == '*' && following == '/') {
+					next();
+					next();
+					found(comment.toString());
+					return;
+				}
+				comment.append((char) current);
+				next();
+			}
+		}
+
+		// Xcode mentions the framework in comments and in file references
+		private String found(String text) {
+			if (!foundCalabashFramework && text.contains(CALABASH_FRAMEWORK))
+				foundCalabashFramework = true;
+			return text;
+		}
+
+		private void expect(char expected) throws IOException,
+				CalabashException {
+			if (current != expected)
+				throw error("Expected '" + expected + "'");
+			next();
+		}
+
+		private void next() throws IOException {
+			if (current == '\n')
+				line++;
+			current = following;
+			if (following != -1)
+				following = reader.read();
+		}
+
+		private static boolean isUnquotedChar(int c) {
+			return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+					|| (c >= '0' && c <= '9') || c == '_' || c == '$'
+					|| c == '/' || c == ':' || c == '.' || c == '-';
+		}
+
+		private CalabashException error(String message) {
+			return new CalabashException(String.format(
+					"Failed to parse the pbxproj file: %s. %s at line %d",
+					source, message, line));
+		}
+	}
+}
@@ -0,0 +1,62 @@
+/**
+ *
+ */
+package calabash.java;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A set of independent queries which are executed together using
+ * {@link IOSApplication#query(QueryBatch)}
+ * <p>
+ * Eg:
+ *
+ * <pre>
+ * QueryBatch batch = new QueryBatch();
+ * int labels = batch.add(&quot;label&quot;);
+ * int names = batch.add(&quot;textField&quot;, &quot;text&quot;);
+ * QueryBatchResult result = iosApplication.query(batch);
+ * UIElements labelElements = result.getElements(labels);
+ * Object[] textFieldValues = result.getValues(names);
+ * </pre>
+ *
+ */
+public final class QueryBatch {
+
+	private static final String[] NO_SELECTORS = new String[0];
+
+	private final List<String> queries = new ArrayList<String>();
+	private final List<String[]> selectors = new ArrayList<String[]>();
+
+	/**
+	 * Adds a query to this batch
+	 *
+	 * @param query
+	 *            Calabash query
+	 * @param selectors
+	 *            Optional property selectors applied on the query result
+	 * @return Index of the query which can be used to get the results
+	 */
+	public int add(String query, String... selectors) {
+		if (query == null)
+			throw new IllegalArgumentException("query should be present");
+
+		queries.add(query);
+		this.selectors.add(selectors == null ? NO_SELECTORS : selectors);
+		return queries.size() - 1;
+	}
+
+	public int size() {
+		return queries.size();
+	}
+
+	public String getQuery(int index) {
+		return queries.get(index);
+	}
+
+	public String[] getSelectors(int index) {
+		return selectors.get(index);
+	}
+
+}
@@ -0,0 +1,59 @@
+/**
+ *
+ */
+package calabash.java;
+
+import java.util.List;
+
+/**
+ * Results of a {@link QueryBatch}
+ *
+ */
+public final class QueryBatchResult {
+
+	private final QueryBatch batch;
+	private final List<List<?>> results;
+	private final ITransport transport;
+
+	public QueryBatchResult(QueryBatch batch, List<List<?>> results,
+			ITransport transport) throws CalabashException {
+		if (results.size() != batch.size())
+			throw new CalabashException(String.format(
+					"Expected %d results but got %d", batch.size(),
+					results.size()));
+
+		this.batch = batch;
+		this.results = results;
+		this.transport = transport;
+	}
+
+	public int size() {
+		return results.size();
+	}
+
+	/**
+	 * Gets the elements for the query added without selectors
+	 *
+	 * @param index
+	 *            Index returned by {@link QueryBatch#add(String, String...)}
+	 * @return Elements
+	 * @throws CalabashException
+	 *             If the results are not elements
+	 */
+	public UIElements getElements(int index) throws CalabashException {
+		return new UIElements(results.get(index), batch.getQuery(index),
+				transport);
+	}
+
+	/**
+	 * Gets the values for the query added with selectors
+	 *
+	 * @param index
+	 *            Index returned by {@link QueryBatch#add(String, String...)}
+	 * @return Values
+	 */
+	public Object[] getValues(int index) {
+		return Utils.toJavaArray(results.get(index));
+	}
+
+}
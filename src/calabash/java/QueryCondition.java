@@ -0,0 +1,189 @@
+/**
+ *
+ */
+package calabash.java;
+
+import java.util.List;
+
+/**
+ * Declarative condition on the result of a query. Unlike {@link ICondition},
+ * the wait engine knows what is being checked, so every poll asks the
+ * server for a single small property of the matched views instead of the
+ * full element payload.
+ * <p>
+ * Eg:
+ *
+ * <pre>
+ * iosApplication.waitFor(QueryCondition.count(&quot;tableViewCell&quot;, 20), null);
+ * iosApplication.waitFor(QueryCondition.propertyEquals(&quot;label marked:'status'&quot;, &quot;text&quot;, &quot;Done&quot;), null);
+ * </pre>
+ *
+ */
+public final class QueryCondition {
+
+	// Cheap selector used when only the number of matched views matters
+	private static final String COUNT_SELECTOR = "isHidden";
+	private static final String ENABLED_SELECTOR = "isEnabled";
+
+	private enum Kind {
+		EXISTS, NOT_EXISTS, COUNT, EQUALS, CONTAINS, ENABLED
+	}
+
+	private final Kind kind;
+	private final String query;
+	private final String selector;
+	private final int count;
+	private final String value;
+
+	private QueryCondition(Kind kind, String query, String selector,
+			int count, String value) {
+		if (query == null)
+			throw new IllegalArgumentException("query is required");
+		this.kind = kind;
+		this.query = query;
+		this.selector = selector;
+		this.count = count;
+		this.value = value;
+	}
+
+	/**
+	 * True when the query matches at least one view
+	 */
+	public static QueryCondition exists(String query) {
+		return new QueryCondition(Kind.EXISTS, query, COUNT_SELECTOR, 0, null);
+	}
+
+	/**
+	 * True when the query matches no view
+	 */
+	public static QueryCondition notExists(String query) {
+		return new QueryCondition(Kind.NOT_EXISTS, query, COUNT_SELECTOR, 0,
+				null);
+	}
+
+	/**
+	 * True when the query matches exactly count views
+	 */
+	public static QueryCondition count(String query, int count) {
+		return new QueryCondition(Kind.COUNT, query, COUNT_SELECTOR, count,
+				null);
+	}
+
+	/**
+	 * True when any matched view has the property value. Values are compared
+	 * as strings
+	 */
+	public static QueryCondition propertyEquals(String query,
+			String property, Object value) {
+		return new QueryCondition(Kind.EQUALS, query, property, 0,
+				String.valueOf(value));
+	}
+
+	/**
+	 * True when the property value of any matched view contains the text
+	 */
+	public static QueryCondition propertyContains(String query,
+			String property, String text) {
+		if (text == null)
+			throw new IllegalArgumentException("text is required");
+		return new QueryCondition(Kind.CONTAINS, query, property, 0, text);
+	}
+
+	/**
+	 * True when the query matches at least one view and all of them are
+	 * enabled
+	 */
+	public static QueryCondition enabled(String query) {
+		return new QueryCondition(Kind.ENABLED, query, ENABLED_SELECTOR, 0,
+				null);
+	}
+
+	public String getQuery() {
+		return query;
+	}
+
+	/**
+	 * Gets the selector sent along with the query
+	 *
+	 * @return Selector
+	 */
+	public String getSelector() {
+		return selector;
+	}
+
+	/**
+	 * Evaluates the condition against the values the query returned for
+	 * {@link #getSelector()}
+	 *
+	 * @param values
+	 *            Values, one per matched view. Can be null
+	 * @return true if the condition holds
+	 */
+	public boolean test(List<?> values) {
+		int matched = values == null ? 0 : values.size();
+		switch (kind) {
+		case EXISTS:
+			return matched > 0;
+		case NOT_EXISTS:
+			return matched == 0;
+		case COUNT:
+			return matched == count;
+		case ENABLED:
+			if (matched == 0)
+				return false;
+			for (Object v : values) {
+				if (!isTrue(v))
+					return false;
+			}
+			return true;
+		default:
+			if (values == null)
+				return false;
+			for (Object v : values) {
+				String text = String.valueOf(v);
+				if (kind == Kind.EQUALS ? text.equals(value) : text
+						.contains(value))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Binds this condition to a transport so that it can be used with
+	 * {@link ITransport#waitFor(ICondition, WaitOptions)}
+	 */
+	ICondition bind(final ITransport transport) {
+		return new ICondition() {
+			@Override
+			public boolean test() throws CalabashException {
+				return QueryCondition.this.test(transport.query(query,
+						selector));
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		switch (kind) {
+		case COUNT:
+			return String.format("count of '%s' is %d", query, count);
+		case EQUALS:
+			return String.format("%s of '%s' is '%s'", selector, query, value);
+		case CONTAINS:
+			return String.format("%s of '%s' contains '%s'", selector, query,
+					value);
+		default:
+			return String.format("'%s' %s", query, kind.name().toLowerCase()
+					.replace('_', ' '));
+		}
+	}
+
+	private static boolean isTrue(Object value) {
+		if (value instanceof Boolean)
+			return (Boolean) value;
+		if (value instanceof Number)
+			return ((Number) value).intValue() != 0;
+		return "1".equals(value) || "true".equals(value);
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ *
+ */
+package calabash.java;
+
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import org.jruby.RubySymbol;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import calabash.java.SwipeOptions.SwipeDelta;
+
+/**
+ * Converts option objects directly into Ruby hashes and symbols understood
+ * by the calabash Ruby client. This avoids generating Ruby source and
+ * evaluating it for every call.
+ *
+ */
+final class RubyMarshaller {
+
+	private final Ruby runtime;
+
+	public RubyMarshaller(Ruby runtime) {
+		this.runtime = runtime;
+	}
+
+	public RubySymbol toSymbol(String name) {
+		return runtime.newSymbol(name);
+	}
+
+	/**
+	 * Converts to <code>{:force => :strong, 'swipe-delta' => {...}, :query => query}</code>
+	 *
+	 * @param options
+	 *            Swipe options. Can be null
+	 * @param query
+	 *            Query to swipe on. Can be null
+	 * @return Hash
+	 */
+	public RubyHash toHash(SwipeOptions options, String query) {
+		RubyHash hash = RubyHash.newHash(runtime);
+		if (options != null) {
+			if (options.getForce() != null)
+				put(hash, toSymbol("force"), toSymbol(options.getForce()
+						.getName()));
+
+			SwipeDelta swipeDelta = options.getSwipeDelta();
+			if (swipeDelta != null) {
+				RubyHash delta = RubyHash.newHash(runtime);
+				if (swipeDelta.getHorizontal() != null)
+					put(delta, toSymbol("horizontal"),
+							toDeltaHash(swipeDelta.getHorizontal()));
+				if (swipeDelta.getVertical() != null)
+					put(delta, toSymbol("vertical"),
+							toDeltaHash(swipeDelta.getVertical()));
+				put(hash, runtime.newString("swipe-delta"), delta);
+			}
+		}
+
+		if (query != null)
+			put(hash, toSymbol("query"), toRuby(query));
+		return hash;
+	}
+
+	/**
+	 * Converts to the options hash accepted by <code>scroll_to_cell</code>
+	 * and <code>each_cell</code>
+	 *
+	 * @param query
+	 *            Query
+	 * @param options
+	 *            Scroll options. Can be null
+	 * @return Hash
+	 */
+	public RubyHash toHash(String query, ScrollOptions options) {
+		RubyHash hash = RubyHash.newHash(runtime);
+		put(hash, toSymbol("query"), toRuby(query));
+		if (options != null) {
+			put(hash, toSymbol("row"), toRuby(options.getRow()));
+			put(hash, toSymbol("section"), toRuby(options.getSection()));
+			put(hash, toSymbol("scroll_position"), toSymbol(options
+					.getDirection().getDirection()));
+			put(hash, toSymbol("animate"), toRuby(options.shouldAnimate()));
+		}
+		return hash;
+	}
+
+	/**
+	 * Converts to <code>{:x => x, :y => y}</code>
+	 *
+	 * @param offset
+	 *            Offset
+	 * @return Hash
+	 */
+	public RubyHash toHash(Offset offset) {
+		RubyHash hash = RubyHash.newHash(runtime);
+		put(hash, toSymbol("x"), toRuby(offset.getX()));
+		put(hash, toSymbol("y"), toRuby(offset.getY()));
+		return hash;
+	}
+
+	/**
+	 * Converts to the options hash accepted by <code>playback</code>
+	 *
+	 * @param query
+	 *            Query. Can be null
+	 * @param offset
+	 *            Offset. Can be null
+	 * @return Hash
+	 */
+	public RubyHash toPlaybackHash(String query, Offset offset) {
+		RubyHash hash = RubyHash.newHash(runtime);
+		if (query != null)
+			put(hash, toSymbol("query"), toRuby(query));
+		if (offset != null)
+			put(hash, toSymbol("offset"), toHash(offset));
+		return hash;
+	}
+
+	/**
+	 * Creates a hash with symbol keys from the key value pairs. Pairs with
+	 * null values are skipped.
+	 *
+	 * @param keyValues
+	 *            key1, value1, key2, value2...
+	 * @return Hash
+	 */
+	public RubyHash toSymbolHash(Object... keyValues) {
+		RubyHash hash = RubyHash.newHash(runtime);
+		for (int i = 0; i + 1 < keyValues.length; i += 2) {
+			if (keyValues[i + 1] != null)
+				put(hash, toSymbol(keyValues[i].toString()),
+						toRuby(keyValues[i + 1]));
+		}
+		return hash;
+	}
+
+	private RubyHash toDeltaHash(Offset offset) {
+		RubyHash hash = RubyHash.newHash(runtime);
+		put(hash, toSymbol("dx"), toRuby(offset.getX()));
+		put(hash, toSymbol("dy"), toRuby(offset.getY()));
+		return hash;
+	}
+
+	private IRubyObject toRuby(Object value) {
+		if (value == null)
+			return runtime.getNil();
+		if (value instanceof IRubyObject)
+			return (IRubyObject) value;
+		if (value instanceof String)
+			return runtime.newString((String) value);
+		if (value instanceof Integer)
+			return runtime.newFixnum((Integer) value);
+		if (value instanceof Boolean)
+			return runtime.newBoolean((Boolean) value);
+		return runtime.newString(value.toString());
+	}
+
+	private void put(RubyHash hash, IRubyObject key, IRubyObject value) {
+		ThreadContext context = runtime.getCurrentContext();
+		hash.op_aset(context, key, value);
+	}
+
+}
@@ -0,0 +1,73 @@
+/**
+ *
+ */
+package calabash.java;
+
+import java.util.List;
+
+import static calabash.java.CalabashLogger.error;
+
+/**
+ * Waits for the user interface to settle after an action. UI is considered
+ * settled when no views are animating and two consecutive snapshots of the
+ * view hierarchy are identical.
+ *
+ */
+final class SettleDetector {
+
+	public static final String ANIMATING_QUERY = "view isAnimating:1";
+	public static final String HIERARCHY_QUERY = "*";
+
+	private final ITransport transport;
+	private final long pollIntervalInMs;
+
+	public SettleDetector(ITransport transport, long pollIntervalInMs) {
+		this.transport = transport;
+		this.pollIntervalInMs = pollIntervalInMs;
+	}
+
+	/**
+	 * Blocks till the UI settles or the maximum wait time elapses
+	 *
+	 * @param maxWaitInMs
+	 *            Upper bound for the wait
+	 * @return true if the UI settled, false if the maximum wait time elapsed
+	 */
+	public boolean awaitSettled(long maxWaitInMs) {
+		if (maxWaitInMs <= 0)
+			return false;
+
+		long deadline = System.nanoTime() + maxWaitInMs * 1000000L;
+		List<?> previous = null;
+		while (true) {
+			List<?> current = null;
+			try {
+				if (transport.query(ANIMATING_QUERY).isEmpty())
+					current = transport.query(HIERARCHY_QUERY);
+			} catch (CalabashException e) {
+				// Application might be in the middle of a transition. Treat
+				// as not settled and keep polling
+				error("Failed to check whether UI settled", e);
+			}
+
+			if (current != null && previous != null && current.equals(previous))
+				return true;
+			previous = current;
+
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				return false;
+
+			try {
+				// Rounded up so that the last sleep doesn't end short of the
+				// deadline
+				Thread.sleep(Math.min(pollIntervalInMs,
+						(remaining + 999999L) / 1000000L));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,270 @@
+/**
+ *
+ */
+package calabash.java;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static calabash.java.CalabashLogger.info;
+
+/**
+ * Wall time and allocations of each phase between creating a
+ * {@link CalabashRunner} and getting a usable {@link IOSApplication}. Get it
+ * from {@link CalabashRunner#getStartupProfile()}.
+ * <p>
+ * Phases are recorded in the order they finish. A phase which runs on the
+ * pre-warm thread can overlap with phases on the calling thread, so
+ * {@link Phase#getStartOffsetInMs()} tells where each one sits on the
+ * timeline. Allocations are counted for the thread which ran the phase and
+ * are -1 when the JVM can't measure them.
+ *
+ */
+public final class StartupProfile {
+
+	/** Extracting the bundled gems to the temp directory */
+	public static final String EXTRACT_GEMS = "extract-gems";
+	/** Creating and configuring the Ruby scripting container */
+	public static final String CREATE_RUNTIME = "create-runtime";
+	/** Initializing the JRuby runtime */
+	public static final String BOOT_JRUBY = "boot-jruby";
+	/** Requiring the calabash-cucumber gem */
+	public static final String REQUIRE_CALABASH = "require-calabash";
+	/**
+	 * Checking whether calabash is setup for the project. Recorded by both
+	 * setup and start, so it can appear twice
+	 */
+	public static final String CHECK_SETUP = "check-setup";
+	/** Running calabash-ios setup on the project */
+	public static final String SETUP = "setup";
+	/** Requiring the calabash launcher */
+	public static final String REQUIRE_LAUNCHER = "require-launcher";
+	/**
+	 * Running launcher.rb, which relaunches the application and waits for the
+	 * calabash server to respond
+	 */
+	public static final String LAUNCH = "launch";
+
+	private static final AllocationCounter ALLOCATIONS = AllocationCounter
+			.create();
+
+	private final long createdAt = System.nanoTime();
+	private final List<Phase> phases = new ArrayList<Phase>();
+
+	/**
+	 * Starts measuring a phase. Call {@link Measurement#end()} from the same
+	 * thread when it is over
+	 *
+	 * @param name
+	 *            Phase name
+	 */
+	Measurement begin(String name) {
+		return new Measurement(name);
+	}
+
+	/**
+	 * Gets the finished phases
+	 *
+	 * @return Phases in the order they finished
+	 */
+	public synchronized List<Phase> getPhases() {
+		return Collections.unmodifiableList(new ArrayList<Phase>(phases));
+	}
+
+	/**
+	 * Gets the first finished phase with the name
+	 *
+	 * @param name
+	 *            Phase name, like {@link #BOOT_JRUBY}
+	 * @return Phase, null if it has not run
+	 */
+	public synchronized Phase getPhase(String name) {
+		for (Phase phase : phases) {
+			if (phase.getName().equals(name))
+				return phase;
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the time from the start of profiling to the end of the last phase
+	 *
+	 * @return Elapsed time in milliseconds
+	 */
+	public synchronized long getElapsedTimeInMs() {
+		long elapsed = 0;
+		for (Phase phase : phases)
+			elapsed = Math.max(elapsed, phase.getStartOffsetInMs()
+					+ phase.getDurationInMs());
+		return elapsed;
+	}
+
+	/**
+	 * Gets the profile as JSON, an array with an object per phase
+	 *
+	 * @return JSON text
+	 */
+	public String toJson() {
+		List<Map<String, Object>> report = new ArrayList<Map<String, Object>>();
+		for (Phase phase : getPhases()) {
+			Map<String, Object> entry = new LinkedHashMap<String, Object>();
+			entry.put("name", phase.getName());
+			entry.put("thread", phase.getThreadName());
+			entry.put("startOffsetInMs", phase.getStartOffsetInMs());
+			entry.put("durationInMs", phase.getDurationInMs());
+			entry.put("allocatedBytes", phase.getAllocatedBytes());
+			report.add(entry);
+		}
+		return Json.toJson(report);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder(String.format(
+				"%-18s %10s %12s %14s%n", "Phase", "Start(ms)", "Time(ms)",
+				"Allocated(KB)"));
+		for (Phase phase : getPhases()) {
+			builder.append(String.format("%-18s %10d %12d %14s%n", phase
+					.getName(), phase.getStartOffsetInMs(), phase
+					.getDurationInMs(),
+					phase.getAllocatedBytes() < 0 ? "-" : String.valueOf(phase
+							.getAllocatedBytes() / 1024)));
+		}
+		builder.append(String.format("%-18s %10s %12d%n", "Elapsed", "",
+				getElapsedTimeInMs()));
+		return builder.toString();
+	}
+
+	private synchronized void add(Phase phase) {
+		phases.add(phase);
+	}
+
+	/**
+	 * A phase which is being measured
+	 */
+	final class Measurement {
+		private final String name;
+		private final long start = System.nanoTime();
+		private final long allocatedAtStart = ALLOCATIONS.current();
+
+		private Measurement(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Records the phase
+		 */
+		void end() {
+			long end = System.nanoTime();
+			long allocatedAtEnd = ALLOCATIONS.current();
+			Phase phase = new Phase(name, Thread.currentThread().getName(),
+					(start - createdAt) / 1000000L, (end - start) / 1000000L,
+					allocatedAtStart < 0 || allocatedAtEnd < 0 ? -1
+							: allocatedAtEnd - allocatedAtStart);
+			add(phase);
+			info("Startup phase %s took %d ms", name, phase.getDurationInMs());
+		}
+	}
+
+	/**
+	 * A finished startup phase
+	 */
+	public static final class Phase {
+		private final String name;
+		private final String threadName;
+		private final long startOffsetInMs;
+		private final long durationInMs;
+		private final long allocatedBytes;
+
+		Phase(String name, String threadName, long startOffsetInMs,
+				long durationInMs, long allocatedBytes) {
+			this.name = name;
+			this.threadName = threadName;
+			this.startOffsetInMs = startOffsetInMs;
+			this.durationInMs = durationInMs;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Gets the name of the thread which ran the phase
+		 */
+		public String getThreadName() {
+			return threadName;
+		}
+
+		/**
+		 * Gets when the phase started, relative to the start of profiling
+		 */
+		public long getStartOffsetInMs() {
+			return startOffsetInMs;
+		}
+
+		public long getDurationInMs() {
+			return durationInMs;
+		}
+
+		/**
+		 * Gets the bytes allocated by the thread during the phase
+		 *
+		 * @return Allocated bytes, -1 if the JVM can't measure them
+		 */
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d ms, %d bytes", name, durationInMs,
+					allocatedBytes);
+		}
+	}
+
+	/**
+	 * Reads the bytes allocated by the current thread. Only HotSpot based
+	 * JVMs expose this, through com.sun.management
+	 */
+	private static class AllocationCounter {
+
+		static AllocationCounter create() {
+			try {
+				ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+				if (bean instanceof com.sun.management.ThreadMXBean) {
+					com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+					if (hotspot.isThreadAllocatedMemorySupported()
+							&& hotspot.isThreadAllocatedMemoryEnabled())
+						return new HotSpotAllocationCounter(hotspot);
+				}
+			} catch (LinkageError e) {
+				// Not a HotSpot JVM
+			}
+			return new AllocationCounter();
+		}
+
+		long current() {
+			return -1;
+		}
+	}
+
+	private static final class HotSpotAllocationCounter extends
+			AllocationCounter {
+		private final com.sun.management.ThreadMXBean bean;
+
+		HotSpotAllocationCounter(com.sun.management.ThreadMXBean bean) {
+			this.bean = bean;
+		}
+
+		@Override
+		long current() {
+			return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+	}
+}
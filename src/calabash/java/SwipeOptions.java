@@ -22,6 +22,14 @@ public class SwipeOptions {
 		this.swipeDelta = swipeDelta;
 	}
 
+	public Force getForce() {
+		return force;
+	}
+
+	public SwipeDelta getSwipeDelta() {
+		return swipeDelta;
+	}
+
 	@Override
 	public String toString() {
 		StringBuffer result = new StringBuffer("{");
@@ -48,6 +56,14 @@ public class SwipeOptions {
 			this.vertical = vertical;
 		}
 
+		public Offset getHorizontal() {
+			return horizontal;
+		}
+
+		public Offset getVertical() {
+			return vertical;
+		}
+
 		@Override
 		public String toString() {
 			StringBuffer result = new StringBuffer();
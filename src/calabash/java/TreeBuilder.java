@@ -1,47 +1,143 @@
 package calabash.java;
 
-import org.jruby.RubyArray;
-import org.jruby.RubyHash;
-
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class TreeBuilder {
 
     public static final String QUERY_ALL = "*";
-    private final CalabashWrapper calabashWrapper;
+    public static final String SUPERVIEW_SELECTOR = "superview";
+    public static final String DESCRIPTION_SELECTOR = "description";
+    private static final Pattern ADDRESS = Pattern.compile(":\\s*(0x[0-9a-fA-F]+)");
+    private final ITransport transport;
     private List<TreeNode> roots = new ArrayList<TreeNode>();
-    private Set<UIElement> inspectedElements = new HashSet<UIElement>();
-
-    public TreeBuilder(CalabashWrapper calabashWrapper) {
-        this.calabashWrapper = calabashWrapper;
+    private Set<ElementSnapshot> inspectedElements = new HashSet<ElementSnapshot>();
+    // Nodes indexed by element snapshot, per parent, so that merging a chain is a
+    // lookup per element instead of a scan over the siblings
+    private Map<ElementSnapshot, TreeNode> rootIndex = new HashMap<ElementSnapshot, TreeNode>();
+    private Map<TreeNode, Map<ElementSnapshot, TreeNode>> childIndex = new IdentityHashMap<TreeNode, Map<ElementSnapshot, TreeNode>>();
+
+    public TreeBuilder(ITransport transport) {
+        this.transport = transport;
     }
 
     public List<TreeNode> createTreeFromRoot() throws CalabashException {
-        RubyArray allElements = calabashWrapper.query(QUERY_ALL);
-        return getTreeNodes(allElements, null, "*");
+        List<List<?>> snapshot = querySnapshot(QUERY_ALL);
+        List<TreeNode> tree = linkSnapshot(snapshot, null, QUERY_ALL);
+        if (tree != null)
+            return tree;
+        return getTreeNodes(snapshot.get(0), null, QUERY_ALL);
     }
 
     public TreeNode createTreeFrom(UIElement root) throws CalabashException {
         String elementQuery = root.getQuery();
         String descendantQuery = elementQuery + " descendant *";
-        RubyArray descendants = calabashWrapper.query(descendantQuery);
-        return getTreeNodes(descendants, root, descendantQuery).get(0);
+        List<List<?>> snapshot = querySnapshot(descendantQuery);
+        List<TreeNode> tree = linkSnapshot(snapshot, root, descendantQuery);
+        if (tree != null)
+            return tree.get(0);
+        return getTreeNodes(snapshot.get(0), root, descendantQuery).get(0);
+    }
+
+    /**
+     * Fetches the elements, the superview of each element and the description
+     * of each element again in one batch. The queries of a batch reach the
+     * device separately, so the descriptions are used to check that the
+     * screen didn't change in between.
+     */
+    private List<List<?>> querySnapshot(String query) throws CalabashException {
+        QueryBatch batch = new QueryBatch();
+        batch.add(query);
+        batch.add(query, SUPERVIEW_SELECTOR);
+        batch.add(query, DESCRIPTION_SELECTOR);
+        return transport.query(batch);
     }
 
-    private List<TreeNode> getTreeNodes(RubyArray allElements, UIElement root, String baseQuery) throws CalabashException {
+    /**
+     * Builds the tree locally by linking each element to its superview using
+     * the address in their descriptions. Returns null when the elements can't
+     * be linked or the queries of the snapshot don't agree with each other,
+     * in which case the ancestors are queried per element.
+     */
+    private List<TreeNode> linkSnapshot(List<List<?>> snapshot, UIElement root, String baseQuery) {
+        List<?> elements = snapshot.get(0);
+        List<?> superviews = snapshot.get(1);
+        List<?> descriptions = snapshot.get(2);
+        if (elements.size() != superviews.size() || elements.size() != descriptions.size())
+            return null;
+
+        clearRoot();
+        Map<String, TreeNode> nodesByAddress = new HashMap<String, TreeNode>();
+        TreeNode rootNode = null;
+        if (root != null) {
+            String rootAddress = addressOf(root.getDescription());
+            if (rootAddress == null)
+                return null;
+            rootNode = new TreeNode(root);
+            nodesByAddress.put(rootAddress, rootNode);
+        }
+
+        TreeNode[] nodes = new TreeNode[elements.size()];
+        String[] parentAddresses = new String[elements.size()];
+        for (int i = 0; i < elements.size(); i++) {
+            if (!(elements.get(i) instanceof Map<?, ?>))
+                return null;
+            UIElement element = new UIElement((Map<?, ?>) elements.get(i), baseQuery + " index:" + i, transport);
+            String address = addressOf(element.getDescription());
+            if (address == null || !address.equals(addressOf(descriptions.get(i))))
+                return null;
+            nodes[i] = new TreeNode(element);
+            nodesByAddress.put(address, nodes[i]);
+            parentAddresses[i] = addressOf(superviews.get(i));
+            if (parentAddresses[i] == null && superviews.get(i) != null)
+                return null;
+        }
+
+        // Walking backwards keeps the query order as addChild inserts at the beginning
+        for (int i = nodes.length - 1; i >= 0; i--) {
+            TreeNode parent = rootNode;
+            if (parentAddresses[i] != null) {
+                // Every superview is part of the snapshot unless the screen
+                // changed between the queries
+                parent = nodesByAddress.get(parentAddresses[i]);
+                if (parent == null)
+                    return null;
+            }
+            if (parent == null)
+                addRoot(0, nodes[i]);
+            else
+                addChild(parent, nodes[i]);
+        }
+
+        if (rootNode != null)
+            addRoot(roots.size(), rootNode);
+        return getRoots();
+    }
+
+    private static String addressOf(Object view) {
+        Object description = view instanceof Map<?, ?> ? ((Map<?, ?>) view).get("description") : view;
+        if (description == null)
+            return null;
+        Matcher matcher = ADDRESS.matcher(description.toString());
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    private List<TreeNode> getTreeNodes(List<?> allElements, UIElement root, String baseQuery) throws CalabashException {
         clearRoot();
         for (int i = allElements.size() - 1; i >= 0; i--) {
             final String query = String.format(baseQuery + " index:%d", i);
-            RubyHash rubyElement = (RubyHash) allElements.get(i);
-            UIElement currentElement = new UIElement(rubyElement, query, calabashWrapper);
-            List<UIElement> uiElements = new ArrayList<UIElement>();
-            if (inspectedElements.contains(currentElement))
+            Map<?, ?> rubyElement = (Map<?, ?>) allElements.get(i);
+            UIElement currentElement = new UIElement(rubyElement, query, transport);
+            if (inspectedElements.contains(currentElement.getSnapshot()))
                 continue;
 
+            List<UIElement> uiElements = new ArrayList<UIElement>();
             uiElements.add(currentElement);
             uiElements.addAll(getAncestors(query, root));
             merge(uiElements);
-            inspectedElements.addAll(uiElements);
+            for (UIElement element : uiElements)
+                inspectedElements.add(element.getSnapshot());
         }
         return getRoots();
     }
@@ -52,7 +148,7 @@ public class TreeBuilder {
 
     private List<UIElement> getAllAncestors(String query) throws CalabashException {
         String parentQuery = query + " parent *";
-        RubyArray ancestors = calabashWrapper.query(parentQuery);
+        List<?> ancestors = transport.query(parentQuery);
         return convertToList(ancestors, parentQuery);
     }
 
@@ -74,76 +170,68 @@ public class TreeBuilder {
         return finalElements;
     }
 
-    private List<UIElement> convertToList(RubyArray ancestors, String baseQuery) {
+    private List<UIElement> convertToList(List<?> ancestors, String baseQuery) {
         List<UIElement> uiElements = new ArrayList<UIElement>();
         for (int i = 0; i < ancestors.size(); i++) {
-            UIElement uiElement = new UIElement((RubyHash) ancestors.get(i), baseQuery + " index:" + i, calabashWrapper);
+            UIElement uiElement = new UIElement((Map<?, ?>) ancestors.get(i), baseQuery + " index:" + i, transport);
             uiElements.add(uiElement);
         }
         return uiElements;
     }
 
+    /**
+     * Merges the chain of elements, ordered from the element to its top most
+     * ancestor, into the tree. The list is reversed in place.
+     */
     public void merge(List<UIElement> elements) {
         Collections.reverse(elements);
-        if (isEmpty()) {
-            TreeNode root = createBranch(elements);
-            roots.add(root);
-        } else {
-            for (TreeNode root : roots) {
-                if (tryMerge(root, elements))
-                    return;
-            }
-            TreeNode newRoot = createBranch(elements);
-            roots.add(0,newRoot);
+        if (elements.isEmpty())
+            return;
 
+        TreeNode current = rootIndex.get(elements.get(0).getSnapshot());
+        if (current == null) {
+            addRoot(0, createBranch(elements, 0));
+            return;
         }
-    }
 
-    private boolean tryMerge(TreeNode root, List<UIElement> elements) {
-        TreeNode current = root;
-        if (!current.getData().equals(elements.get(0))) {
-            return false;
-        }
-
-        int i;
-        int matchedChildIndex;
-        for (i = 1; i < elements.size(); i++) {
-            matchedChildIndex = matchWith(current.getChildren(), elements.get(i));
-            if (matchedChildIndex == -1) {
-                TreeNode newNode = createBranch(elements.subList(i, elements.size()));
-                current.addChild(newNode);
-                return true;
+        for (int i = 1; i < elements.size(); i++) {
+            TreeNode child = childrenOf(current).get(elements.get(i).getSnapshot());
+            if (child == null) {
+                addChild(current, createBranch(elements, i));
+                return;
             }
-            current = current.getChildren().get(matchedChildIndex);
+            current = child;
         }
-        return true;
     }
 
-    private TreeNode createBranch(List<UIElement> elements) {
-        TreeNode startNode = new TreeNode();
+    private TreeNode createBranch(List<UIElement> elements, int from) {
+        TreeNode startNode = new TreeNode(elements.get(from));
         TreeNode current = startNode;
-        for (int i = 0; i < elements.size(); i++) {
-            current.setData(elements.get(i));
-            if (i + 1 < elements.size()) {
-                TreeNode childNode = new TreeNode(elements.get(i + 1));
-                current.addChild(childNode);
-                current = childNode;
-            }
+        for (int i = from + 1; i < elements.size(); i++) {
+            TreeNode childNode = new TreeNode(elements.get(i));
+            addChild(current, childNode);
+            current = childNode;
         }
         return startNode;
     }
 
-    private int matchWith(List<TreeNode> elements, UIElement elementToMatch) {
-        for (int i = 0; i < elements.size(); i++) {
-            if (elements.get(i).getData().equals(elementToMatch))
-                return i;
+    private void addRoot(int position, TreeNode root) {
+        roots.add(position, root);
+        rootIndex.put(root.getData().getSnapshot(), root);
+    }
 
-        }
-        return -1;
+    private void addChild(TreeNode parent, TreeNode child) {
+        parent.addChild(child);
+        childrenOf(parent).put(child.getData().getSnapshot(), child);
     }
 
-    private boolean isEmpty() {
-        return roots.size() == 0;
+    private Map<ElementSnapshot, TreeNode> childrenOf(TreeNode node) {
+        Map<ElementSnapshot, TreeNode> children = childIndex.get(node);
+        if (children == null) {
+            children = new HashMap<ElementSnapshot, TreeNode>();
+            childIndex.put(node, children);
+        }
+        return children;
     }
 
     public List<TreeNode> getRoots() {
@@ -152,5 +240,7 @@ public class TreeBuilder {
 
     private void clearRoot() {
         roots = new ArrayList<TreeNode>();
+        rootIndex = new HashMap<ElementSnapshot, TreeNode>();
+        childIndex = new IdentityHashMap<TreeNode, Map<ElementSnapshot, TreeNode>>();
     }
 }
@@ -0,0 +1,358 @@
+/**
+ *
+ */
+package calabash.java;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact, immutable copy of a view hierarchy. Nodes are stored in pre-order
+ * in primitive arrays and strings are shared through a string table, so a
+ * snapshot can be kept around for debugging at a small fraction of the
+ * memory used by {@link TreeNode}s.
+ * <p>
+ * {@link #getRoots()} gives a {@link TreeNode} view for code which walks
+ * trees. Nodes are addressed by their position, from 0 to {@link #size()}.
+ *
+ */
+public final class TreeSnapshot {
+
+	private static final int NONE = -1;
+
+	// Per node columns
+	private final int[] parent;
+	private final int[] depth;
+	private final int[] firstChild;
+	private final int[] nextSibling;
+	private final int[] geometry;
+	private final BitSet hasRect;
+	private final BitSet hasElement;
+	private final int[] elementClass;
+	private final int[] id;
+	private final int[] label;
+	private final int[] description;
+	private final int[] query;
+
+	private final String[] strings;
+	private final int[] roots;
+	private final ITransport transport;
+
+	/**
+	 * Creates a snapshot of the trees
+	 *
+	 * @param trees
+	 *            Root nodes, usually from
+	 *            {@link IOSApplication#getRootElements()}
+	 * @param transport
+	 *            Transport used by the elements of the {@link TreeNode} view.
+	 *            Can be null
+	 */
+	public TreeSnapshot(List<TreeNode> trees, ITransport transport) {
+		this.transport = transport;
+		int count = 0;
+		for (TreeNode tree : trees)
+			count += countNodes(tree);
+
+		parent = new int[count];
+		depth = new int[count];
+		firstChild = new int[count];
+		nextSibling = new int[count];
+		geometry = new int[count * ElementSnapshot.GEOMETRY_SIZE];
+		hasRect = new BitSet(count);
+		hasElement = new BitSet(count);
+		elementClass = new int[count];
+		id = new int[count];
+		label = new int[count];
+		description = new int[count];
+		query = new int[count];
+		roots = new int[trees.size()];
+
+		Builder builder = new Builder();
+		for (int i = 0; i < trees.size(); i++)
+			roots[i] = builder.add(trees.get(i), NONE, 0);
+		strings = builder.strings.toArray(new String[builder.strings.size()]);
+	}
+
+	/**
+	 * Gets the number of nodes
+	 *
+	 * @return Node count
+	 */
+	public int size() {
+		return parent.length;
+	}
+
+	/**
+	 * Gets the parent of the node
+	 *
+	 * @param node
+	 *            Node position
+	 * @return Position of the parent, -1 for root nodes
+	 */
+	public int getParent(int node) {
+		return parent[node];
+	}
+
+	/**
+	 * Gets the depth of the node. Root nodes are at depth 0
+	 *
+	 * @param node
+	 *            Node position
+	 * @return Depth
+	 */
+	public int getDepth(int node) {
+		return depth[node];
+	}
+
+	/**
+	 * Gets the positions of the children of the node
+	 *
+	 * @param node
+	 *            Node position
+	 * @return Child positions
+	 */
+	public int[] getChildren(int node) {
+		int count = 0;
+		for (int child = firstChild[node]; child != NONE; child = nextSibling[child])
+			count++;
+
+		int[] children = new int[count];
+		int i = 0;
+		for (int child = firstChild[node]; child != NONE; child = nextSibling[child])
+			children[i++] = child;
+		return children;
+	}
+
+	/**
+	 * Gets the class of the element at the node. Eg: UIButton
+	 *
+	 * @param node
+	 *            Node position
+	 * @return Class name, null if the node has no element or the class is
+	 *         unknown
+	 */
+	public String getElementClass(int node) {
+		return string(elementClass[node]);
+	}
+
+	/**
+	 * Gets the accessibility identifier of the element at the node
+	 *
+	 * @param node
+	 *            Node position
+	 * @return Identifier, null if the node has no element or the element
+	 *         has no identifier
+	 */
+	public String getId(int node) {
+		return string(id[node]);
+	}
+
+	/**
+	 * Gets the accessibility label of the element at the node
+	 *
+	 * @param node
+	 *            Node position
+	 * @return Label, null if the node has no element or the element has no
+	 *         label
+	 */
+	public String getLabel(int node) {
+		return string(label[node]);
+	}
+
+	/**
+	 * Gets the query the element at the node was recorded with when the
+	 * snapshot was taken. Actions on the element use this query
+	 *
+	 * @param node
+	 *            Node position
+	 * @return Query, null if the node has no element or none was recorded
+	 */
+	public String getQuery(int node) {
+		return string(query[node]);
+	}
+
+	/**
+	 * Gets the properties of the node
+	 *
+	 * @param node
+	 *            Node position
+	 * @return Element snapshot
+	 */
+	public ElementSnapshot getElement(int node) {
+		return new ElementSnapshot(string(elementClass[node]),
+				string(id[node]), string(label[node]),
+				string(description[node]), hasRect.get(node), geometry, node
+						* ElementSnapshot.GEOMETRY_SIZE);
+	}
+
+	/**
+	 * Runs the query against this snapshot without talking to the device.
+	 * Only a subset of the calabash query language is supported, see
+	 * {@link LocalQueryEvaluator}. Actions on the returned elements are sent
+	 * to the device using the query each element was recorded with when the
+	 * snapshot was taken, as local matches can differ from the server's.
+	 *
+	 * @param query
+	 *            Calabash query
+	 * @return Matching elements
+	 * @throws CalabashException
+	 *             If the query is not supported
+	 */
+	public UIElements query(String query) throws CalabashException {
+		int[] nodes = new LocalQueryEvaluator(this).evaluate(query);
+		query = query.trim();
+		boolean indexedQuery = UIElements.isIndexed(query);
+
+		UIElements elements = new UIElements();
+		for (int i = 0; i < nodes.length; i++) {
+			String q = getQuery(nodes[i]);
+			if (q == null) {
+				// Indexing into the local matches is only safe when the server
+				// matches the same elements, which class names don't guarantee
+				if (LocalQueryEvaluator.filtersByClass(query))
+					throw new CalabashException(String.format(
+							"Can't address the elements matching '%s' on the device. The snapshot has no query recorded for them",
+							query));
+				q = indexedQuery ? query : query + " index:" + i;
+			}
+			elements.add(new UIElement(getElement(nodes[i]), q, transport));
+		}
+		return elements;
+	}
+
+	/**
+	 * Checks whether the query matches any element in this snapshot
+	 *
+	 * @param query
+	 *            Calabash query
+	 * @return true if any element matches
+	 * @throws CalabashException
+	 *             If the query is not supported
+	 */
+	public boolean elementExists(String query) throws CalabashException {
+		return new LocalQueryEvaluator(this).evaluate(query).length > 0;
+	}
+
+	/**
+	 * Gets a {@link TreeNode} view of the root nodes. Views are read only
+	 * and create their elements on demand.
+	 *
+	 * @return Root nodes
+	 */
+	public List<TreeNode> getRoots() {
+		List<TreeNode> views = new ArrayList<TreeNode>(roots.length);
+		for (int root : roots)
+			views.add(new NodeView(root));
+		return Collections.unmodifiableList(views);
+	}
+
+	private String string(int index) {
+		return index == NONE ? null : strings[index];
+	}
+
+	private static int countNodes(TreeNode tree) {
+		int count = 1;
+		for (TreeNode child : tree.getChildren())
+			count += countNodes(child);
+		return count;
+	}
+
+	private final class Builder {
+		private final List<String> strings = new ArrayList<String>();
+		private final Map<String, Integer> stringIndex = new HashMap<String, Integer>();
+		private int next = 0;
+
+		/**
+		 * Adds the node and its descendants in pre-order
+		 *
+		 * @return Position of the node
+		 */
+		int add(TreeNode tree, int parentNode, int nodeDepth) {
+			int node = next++;
+			parent[node] = parentNode;
+			depth[node] = nodeDepth;
+			firstChild[node] = NONE;
+			nextSibling[node] = NONE;
+
+			UIElement element = tree.getData();
+			if (element != null) {
+				hasElement.set(node);
+				ElementSnapshot snapshot = element.getSnapshot();
+				snapshot.copyGeometry(geometry, node
+						* ElementSnapshot.GEOMETRY_SIZE);
+				hasRect.set(node, snapshot.hasRect());
+				elementClass[node] = intern(snapshot.getElementClass());
+				id[node] = intern(snapshot.getId());
+				label[node] = intern(snapshot.getLabel());
+				description[node] = intern(snapshot.getDescription());
+				query[node] = intern(element.getQuery());
+			} else {
+				elementClass[node] = id[node] = label[node] = description[node] = query[node] = NONE;
+			}
+
+			int previousChild = NONE;
+			for (TreeNode child : tree.getChildren()) {
+				int childNode = add(child, node, nodeDepth + 1);
+				if (previousChild == NONE)
+					firstChild[node] = childNode;
+				else
+					nextSibling[previousChild] = childNode;
+				previousChild = childNode;
+			}
+			return node;
+		}
+
+		private int intern(String value) {
+			if (value == null)
+				return NONE;
+			Integer index = stringIndex.get(value);
+			if (index == null) {
+				index = strings.size();
+				strings.add(value);
+				stringIndex.put(value, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Read only {@link TreeNode} backed by a node of this snapshot
+	 */
+	private final class NodeView extends TreeNode {
+		private final int node;
+
+		NodeView(int node) {
+			this.node = node;
+		}
+
+		@Override
+		public List<TreeNode> getChildren() {
+			List<TreeNode> children = new ArrayList<TreeNode>();
+			for (int child = firstChild[node]; child != NONE; child = nextSibling[child])
+				children.add(new NodeView(child));
+			return Collections.unmodifiableList(children);
+		}
+
+		@Override
+		public UIElement getData() {
+			if (!hasElement.get(node))
+				return null;
+			return new UIElement(getElement(node), getQuery(node), transport);
+		}
+
+		@Override
+		public void addChild(TreeNode child) {
+			throw new UnsupportedOperationException("Snapshot nodes are read only");
+		}
+
+		@Override
+		public void setData(UIElement data) {
+			throw new UnsupportedOperationException("Snapshot nodes are read only");
+		}
+	}
+}
@@ -4,14 +4,9 @@
 package calabash.java;
 
 import calabash.java.SwipeOptions.Force;
-import org.jruby.RubyArray;
-import org.jruby.RubyHash;
-
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
-import static calabash.java.Utils.getIntFromHash;
-import static calabash.java.Utils.getStringFromHash;
 
 /**
  * Represents an UI element.
@@ -19,15 +14,21 @@ import static calabash.java.Utils.getStringFromHash;
  */
 public class UIElement implements IAction {
 
-	private final RubyHash data;
+	private final ElementSnapshot snapshot;
 	private final String query;
-	private final CalabashWrapper calabashWrapper;
+	private final ITransport transport;
+
+	public UIElement(Map<?, ?> data, String query,
+			ITransport transport) {
+		this.snapshot = new ElementSnapshot(data);
+		this.query = query;
+		this.transport = transport;
+	}
 
-	public UIElement(RubyHash data, String query,
-			CalabashWrapper calabashWrapper) {
-		this.data = data;
+	UIElement(ElementSnapshot snapshot, String query, ITransport transport) {
+		this.snapshot = snapshot;
 		this.query = query;
-		this.calabashWrapper = calabashWrapper;
+		this.transport = transport;
 	}
 
 	/**
@@ -36,7 +37,7 @@ public class UIElement implements IAction {
 	 * @return
 	 */
 	public String getElementClass() {
-		return getStringFromHash(data, "class");
+		return snapshot.getElementClass();
 	}
 
 	/**
@@ -45,7 +46,7 @@ public class UIElement implements IAction {
 	 * @return
 	 */
 	public String getId() {
-		return getStringFromHash(data, "id");
+		return snapshot.getId();
 	}
 
 	/**
@@ -54,7 +55,7 @@ public class UIElement implements IAction {
 	 * @return
 	 */
 	public String getLabel() {
-		return getStringFromHash(data, "label");
+		return snapshot.getLabel();
 	}
 
 	/**
@@ -63,7 +64,7 @@ public class UIElement implements IAction {
 	 * @return
 	 */
 	public String getDescription() {
-		return getStringFromHash(data, "description");
+		return snapshot.getDescription();
 	}
 
 	/**
@@ -72,19 +73,7 @@ public class UIElement implements IAction {
 	 * @return
 	 */
 	public Rect getRect() {
-		RubyHash rect;
-		try {
-			rect = (RubyHash) data.get("rect");
-			if (rect == null)
-				return null;
-		} catch (Exception e) {
-			return null;
-		}
-
-		return new Rect(getIntFromHash(rect, "x"), getIntFromHash(rect, "y"),
-				getIntFromHash(rect, "width"), getIntFromHash(rect, "height"),
-				getIntFromHash(rect, "center_x"), getIntFromHash(rect,
-						"center_y"));
+		return snapshot.getRect();
 	}
 
 	/**
@@ -93,16 +82,16 @@ public class UIElement implements IAction {
 	 * @return
 	 */
 	public Rect getFrame() {
-		RubyHash rect;
-		try {
-			rect = (RubyHash) data.get("frame");
-		} catch (Exception e) {
-			return null;
-		}
+		return snapshot.getFrame();
+	}
 
-		return new Rect(getIntFromHash(rect, "x"), getIntFromHash(rect, "y"),
-				getIntFromHash(rect, "width"), getIntFromHash(rect, "height"),
-				null, null);
+	/**
+	 * Gets the properties of this element captured when it was queried
+	 *
+	 * @return Snapshot
+	 */
+	public ElementSnapshot getSnapshot() {
+		return snapshot;
 	}
 
 	/**
@@ -112,15 +101,15 @@ public class UIElement implements IAction {
 	 * @throws CalabashException
 	 */
 	public boolean exists() throws CalabashException {
-		return calabashWrapper.elementExists(query);
+		return transport.elementExists(query);
 	}
 
 	public void touch() throws CalabashException {
-		calabashWrapper.touch(query);
+		transport.touch(query);
 	}
 
 	public void flash() throws CalabashException {
-		calabashWrapper.flash(query);
+		transport.flash(query);
 	}
 
 	/**
@@ -130,7 +119,7 @@ public class UIElement implements IAction {
 	 * @throws CalabashException
 	 */
 	public String getText() throws CalabashException {
-		RubyArray result = calabashWrapper.query(query, "text");
+		List<?> result = transport.query(query, "text");
 		if (result.size() > 0 && result.get(0) != null) {
             return result.get(0).toString();
 		}
@@ -160,7 +149,7 @@ public class UIElement implements IAction {
 	 * @throws CalabashException
 	 */
 	public Object getPropertyValue(String selector) throws CalabashException {
-		RubyArray values = calabashWrapper.query(query, selector);
+		List<?> values = transport.query(query, selector);
 		if (values != null && !values.isEmpty()) {
 			Object object = values.get(0);
 			return Utils.toJavaObject(object);
@@ -170,29 +159,29 @@ public class UIElement implements IAction {
 	}
 
 	public void scroll(Direction direction) throws CalabashException {
-		calabashWrapper.scroll(query, direction);
+		transport.scroll(query, direction);
 	}
 
 	public void swipe(Direction direction) throws CalabashException {
-		calabashWrapper.swipe(query, direction, null);
+		transport.swipe(query, direction, null);
 	}
 
 	public void swipe(Direction direction, Force force)
 			throws CalabashException {
-		calabashWrapper.swipe(query, direction, new SwipeOptions(force, null));
+		transport.swipe(query, direction, new SwipeOptions(force, null));
 	}
 
 	public void swipe(Direction direction, SwipeOptions options)
 			throws CalabashException {
-		calabashWrapper.swipe(query, direction, options);
+		transport.swipe(query, direction, options);
 	}
 
 	public void pinchIn() throws CalabashException {
-		calabashWrapper.pinch(query, "in");
+		transport.pinch(query, "in");
 	}
 
 	public void pinchOut() throws CalabashException {
-		calabashWrapper.pinch(query, "out");
+		transport.pinch(query, "out");
 	}
 
 	/**
@@ -205,7 +194,7 @@ public class UIElement implements IAction {
 		if (options == null)
 			throw new CalabashException("options should be present");
 
-		calabashWrapper.scrollToCell(query, options);
+		transport.scrollToCell(query, options);
 	}
 
 	/**
@@ -236,7 +225,7 @@ public class UIElement implements IAction {
 		if (callback == null)
 			throw new CalabashException("callback should be present");
 
-		calabashWrapper.scrollThroughEachCell(query, options, callback);
+		transport.scrollThroughEachCell(query, options, callback);
 	}
 
 	/**
@@ -247,8 +236,8 @@ public class UIElement implements IAction {
 	 */
 	public UIElements children() throws CalabashException {
 		String q = query + " child *";
-		RubyArray result = calabashWrapper.query(q);
-		return new UIElements(result, q, calabashWrapper);
+		List<?> result = transport.query(q);
+		return new UIElements(result, q, transport);
 	}
 
 	/**
@@ -260,7 +249,7 @@ public class UIElement implements IAction {
 	 * @throws CalabashException
 	 */
 	public void inspect(InspectCallback callback) throws CalabashException {
-        TreeNode tree = new TreeBuilder(calabashWrapper).createTreeFrom(this);
+        TreeNode tree = new TreeBuilder(transport).createTreeFrom(this);
 		Utils.inspectElement(tree, 0, callback);
 	}
 
@@ -270,7 +259,7 @@ public class UIElement implements IAction {
      * @throws CalabashException
      */
     public TreeNode getTree() throws CalabashException {
-        return new TreeBuilder(calabashWrapper).createTreeFrom(this);
+        return new TreeBuilder(transport).createTreeFrom(this);
     }
 
 	public String toString() {
@@ -294,31 +283,11 @@ public class UIElement implements IAction {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
 
-        UIElement uiElement = (UIElement) o;
-
-        if (getRect() != null ? !getRect().equals(uiElement.getRect()) : uiElement.getRect() != null) return false;
-        if (getFrame() != null ? !getFrame().equals(uiElement.getFrame()) : uiElement.getFrame() != null) return false;
-        if (getLabel() != null ? !getLabel().equals(uiElement.getLabel()) : uiElement.getLabel() != null) return false;
-        if (getElementClass() != null ? !getElementClass().equals(uiElement.getElementClass()) : uiElement.getElementClass() != null) return false;
-        if (getId() != null ? !getId().equals(uiElement.getId()) : uiElement.getId() != null) return false;
-        if (getDescription() != null ? !getDescription().equals(uiElement.getDescription()) : uiElement.getDescription() != null) return false;
-
-        return true;
+        return snapshot.equals(((UIElement) o).snapshot);
     }
 
     @Override
     public int hashCode() {
-        List<Object> objects = new ArrayList<Object>();
-        objects.add(getRect());
-        objects.add(getFrame());
-        objects.add(getLabel());
-        objects.add(getElementClass());
-        objects.add(getId());
-
-        int result = 0;
-        for (Object object : objects) {
-            result = 31 * result + (object != null ? object.hashCode() : 0);
-        }
-        return result;
+        return snapshot.hashCode();
     }
 }
@@ -4,12 +4,10 @@
 package calabash.java;
 
 import java.util.ArrayList;
-import java.util.regex.Matcher;
+import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
-import org.jruby.RubyArray;
-import org.jruby.RubyHash;
-
 import calabash.java.SwipeOptions.Force;
 
 /**
@@ -19,24 +17,23 @@ import calabash.java.SwipeOptions.Force;
 public final class UIElements extends ArrayList<UIElement> implements IAction {
 
 	private static final long serialVersionUID = 3506802535880079938L;
+	private static final Pattern INDEXED_QUERY = Pattern.compile("^.+index:[0-9]+$");
 
 	public UIElements() {
 	}
 
-	public UIElements(RubyArray elements, String query, CalabashWrapper wrapper)
+	public UIElements(List<?> elements, String query, ITransport transport)
 			throws CalabashException {
 		query = query.trim();
-		Pattern pattern = Pattern.compile("^.+index:[0-9]+$");
-		Matcher matcher = pattern.matcher(query);
-		boolean indexedQuery = matcher.matches();
+		boolean indexedQuery = isIndexed(query);
 
 		for (int i = 0; i < elements.size(); i++) {
 			try {
-				RubyHash object = (RubyHash) elements.get(i);
+				Map<?, ?> object = (Map<?, ?>) elements.get(i);
 				String q = query;
 				if (!indexedQuery)
 					q += " index:" + i;
-				this.add(new UIElement(object, q, wrapper));
+				this.add(new UIElement(object, q, transport));
 			} catch (Exception e) {
 				throw new CalabashException("Unsupported result format.\n"
 						+ elements.toString(), e);
@@ -44,6 +41,13 @@ public final class UIElements extends ArrayList<UIElement> implements IAction {
 		}
 	}
 
+	/**
+	 * Checks whether the query already selects a single element by index
+	 */
+	static boolean isIndexed(String query) {
+		return INDEXED_QUERY.matcher(query).matches();
+	}
+
 	/**
 	 * Gets the first element
 	 * 
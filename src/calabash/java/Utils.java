@@ -3,19 +3,18 @@
  */
 package calabash.java;
 
-import org.jruby.RubyArray;
-import org.jruby.RubyHash;
 import org.jruby.RubyObject;
 
 import java.io.*;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 final class Utils {
 
-	public static String getStringFromHash(RubyHash target, String key) {
+	public static String getStringFromHash(Map<?, ?> target, String key) {
 		try {
 			Object value = target.get(key);
 			if (value != null)
@@ -26,7 +25,7 @@ final class Utils {
 		}
 	}
 
-	public static Integer getIntFromHash(RubyHash target, String key) {
+	public static Integer getIntFromHash(Map<?, ?> target, String key) {
 		String value = getStringFromHash(target, key);
 		if (value != null) {
 			try {
@@ -39,45 +38,6 @@ final class Utils {
 		return null;
 	}
 
-	public static void unzip(File zipFile, File destination)
-			throws CalabashException {
-		if (!zipFile.exists())
-			throw new CalabashException("Zip file does not exists. "
-					+ zipFile.getAbsolutePath());
-		if (!zipFile.isFile())
-			throw new CalabashException("Zip file should be a file. "
-					+ zipFile.getAbsolutePath());
-
-		if (!destination.exists())
-			throw new CalabashException(
-					"Destination directory does not exists. "
-							+ destination.getAbsolutePath());
-		if (!destination.isDirectory())
-			throw new CalabashException("Destination is not a directory. "
-					+ destination.getAbsolutePath());
-		if (!destination.canWrite())
-			throw new CalabashException("Destination is readonly. "
-					+ destination.getAbsolutePath());
-
-		final String[] command = { "unzip", "-uo", "-qq",
-				zipFile.getAbsolutePath(), "-d", destination.getAbsolutePath() };
-		try {
-			Process process = Runtime.getRuntime().exec(command);
-			int exitCode = process.waitFor();
-			if (exitCode == 0 || exitCode == 1)
-				return;
-			else
-				throw new CalabashException(String.format(
-						"Failed to unzip %s to %s", zipFile.getAbsolutePath(),
-						destination.getAbsolutePath()));
-
-		} catch (Exception e) {
-			throw new CalabashException(String.format(
-					"Failed to unzip %s to %s. %s", zipFile.getAbsolutePath(),
-					destination.getAbsolutePath(), e.getMessage()), e);
-		}
-	}
-
 	public static void sleep(int ms) {
 		try {
 			Thread.sleep(10);
@@ -85,7 +45,7 @@ final class Utils {
 		}
 	}
 
-	public static Object[] toJavaArray(RubyArray array) {
+	public static Object[] toJavaArray(List<?> array) {
 		ArrayList<Object> result = new ArrayList<Object>();
 		for (int i = 0; i < array.size(); i++) {
 			Object rubyObject = array.get(i);
@@ -100,17 +60,17 @@ final class Utils {
 		if (rubyObject == null)
 			return null;
 
-		if (rubyObject instanceof RubyArray)
-			return toJavaArray((RubyArray) rubyObject);
-		if (rubyObject instanceof RubyHash)
-			return toJavaHash((RubyHash) rubyObject);
+		if (rubyObject instanceof List<?>)
+			return toJavaArray((List<?>) rubyObject);
+		if (rubyObject instanceof Map<?, ?>)
+			return toJavaHash((Map<?, ?>) rubyObject);
 		if (rubyObject instanceof RubyObject)
 			return ((RubyObject) rubyObject).toJava(Object.class);
 
 		return rubyObject.toString();
 	}
 
-	public static Map<?, ?> toJavaHash(RubyHash rubyHash) {
+	public static Map<?, ?> toJavaHash(Map<?, ?> rubyHash) {
 		HashMap<Object, Object> map = new HashMap<Object, Object>();
 		Set<?> keySet = rubyHash.keySet();
 		for (Object rubyKey : keySet) {
@@ -160,4 +120,16 @@ final class Utils {
 		return sb.toString();
 	}
 
+	public static String toString(InputStream in, String charset)
+			throws IOException {
+		Reader reader = new InputStreamReader(in, charset);
+		StringBuilder sb = new StringBuilder();
+		char[] buffer = new char[8192];
+		int read;
+		while ((read = reader.read(buffer)) != -1) {
+			sb.append(buffer, 0, read);
+		}
+		return sb.toString();
+	}
+
 }
@@ -0,0 +1,363 @@
+/**
+ *
+ */
+package calabash.java;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static calabash.java.CalabashLogger.error;
+
+/**
+ * Serves the waits of many threads on one session with a single poll loop.
+ * On every tick, the {@link QueryCondition}s of all pending waits are
+ * collected into one {@link QueryBatch}, identical queries are sent once,
+ * and every wait whose conditions hold is released. Waits which pass their timeout fail with
+ * {@link OperationTimedoutException} like {@link IOSApplication#waitFor}.
+ * <p>
+ * Retry frequencies in {@link WaitOptions} are ignored as all waits share
+ * the tick. Timeout, post timeout, timeout message and screenshot on error
+ * are honored.
+ *
+ */
+public final class WaitMultiplexer {
+
+	// Time a wait gives the poller past its deadline, for a poll which is
+	// still in flight, before it gives up on the poller
+	private static final long POLLER_GRACE_IN_MS = 30000;
+
+	private final ITransport transport;
+	private final long pollIntervalInMs;
+	private final Waiter waiter;
+	private final List<PendingWait> pending = new ArrayList<PendingWait>();
+	private Thread poller;
+	private boolean shutdown = false;
+	private long polls = 0;
+
+	/**
+	 * Initializes a new WaitMultiplexer
+	 *
+	 * @param transport
+	 *            Transport of the session
+	 * @param pollIntervalInMs
+	 *            Time between two polls
+	 * @param screenshotsDirectory
+	 *            Directory for screenshots taken on timeout. When null, the
+	 *            current working directory is used
+	 */
+	public WaitMultiplexer(ITransport transport, long pollIntervalInMs,
+			File screenshotsDirectory) {
+		if (transport == null)
+			throw new IllegalArgumentException("transport is required");
+		if (pollIntervalInMs <= 0)
+			throw new IllegalArgumentException(
+					"pollIntervalInMs should be positive");
+		this.transport = transport;
+		this.pollIntervalInMs = pollIntervalInMs;
+		this.waiter = new Waiter(transport, screenshotsDirectory);
+	}
+
+	/**
+	 * Waits till all the queries return at least one element
+	 *
+	 * @param queries
+	 *            Queries to check
+	 * @param options
+	 *            Wait options. Can be null
+	 * @throws OperationTimedoutException
+	 *             When the operation elapsed the timeout period
+	 * @throws CalabashException
+	 *             When the poll fails
+	 */
+	public void waitForElementsExist(String[] queries, WaitOptions options)
+			throws OperationTimedoutException, CalabashException {
+		List<QueryCondition> conditions = new ArrayList<QueryCondition>();
+		for (String query : queries)
+			conditions.add(QueryCondition.exists(query));
+		await(conditions, options);
+	}
+
+	/**
+	 * Waits till none of the queries return an element
+	 *
+	 * @param queries
+	 *            Queries to check
+	 * @param options
+	 *            Wait options. Can be null
+	 * @throws OperationTimedoutException
+	 *             When the operation elapsed the timeout period
+	 * @throws CalabashException
+	 *             When the poll fails
+	 */
+	public void waitForElementsToNotExist(String[] queries, WaitOptions options)
+			throws OperationTimedoutException, CalabashException {
+		List<QueryCondition> conditions = new ArrayList<QueryCondition>();
+		for (String query : queries)
+			conditions.add(QueryCondition.notExists(query));
+		await(conditions, options);
+	}
+
+	/**
+	 * Waits till an element matched by the query has the property value.
+	 * Values are compared as strings
+	 * <p>
+	 * Eg:
+	 *
+	 * <pre>
+	 * multiplexer.waitForProperty(&quot;label marked:'status'&quot;, &quot;text&quot;, &quot;Done&quot;, null);
+	 * </pre>
+	 *
+	 * @param query
+	 *            Query
+	 * @param property
+	 *            Property selector
+	 * @param expected
+	 *            Expected value
+	 * @param options
+	 *            Wait options. Can be null
+	 * @throws OperationTimedoutException
+	 *             When the operation elapsed the timeout period
+	 * @throws CalabashException
+	 *             When the poll fails
+	 */
+	public void waitForProperty(String query, String property,
+			Object expected, WaitOptions options)
+			throws OperationTimedoutException, CalabashException {
+		waitFor(new QueryCondition[] { QueryCondition.propertyEquals(query,
+				property, expected) }, options);
+	}
+
+	/**
+	 * Waits till all the conditions hold
+	 *
+	 * @param conditions
+	 *            Conditions to check
+	 * @param options
+	 *            Wait options. Can be null
+	 * @throws OperationTimedoutException
+	 *             When the operation elapsed the timeout period
+	 * @throws CalabashException
+	 *             When the poll fails
+	 */
+	public void waitFor(QueryCondition[] conditions, WaitOptions options)
+			throws OperationTimedoutException, CalabashException {
+		await(Arrays.asList(conditions), options);
+	}
+
+	/**
+	 * Gets the number of polls made so far
+	 *
+	 * @return Poll count
+	 */
+	public synchronized long getPollCount() {
+		return polls;
+	}
+
+	/**
+	 * Stops polling. Pending waits fail with {@link CalabashException}
+	 */
+	public void shutdown() {
+		List<PendingWait> abandoned;
+		synchronized (this) {
+			shutdown = true;
+			abandoned = new ArrayList<PendingWait>(pending);
+			pending.clear();
+			notifyAll();
+		}
+		for (PendingWait wait : abandoned)
+			wait.fail(new CalabashException("Wait multiplexer is shutdown"));
+	}
+
+	private void await(List<QueryCondition> conditions, WaitOptions options)
+			throws OperationTimedoutException, CalabashException {
+		if (options == null)
+			options = WaitOptions.defaults();
+
+		PendingWait wait = new PendingWait(conditions, System.nanoTime()
+				+ options.getTimeoutInMs() * 1000000L);
+		register(wait);
+		try {
+			long waitInMs = options.getTimeoutInMs() + pollIntervalInMs
+					+ POLLER_GRACE_IN_MS;
+			if (!wait.done.await(waitInMs, TimeUnit.MILLISECONDS))
+				wait.fail(new CalabashException(
+						"Wait multiplexer didn't poll the wait in time"));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CalabashException("Interrupted while waiting");
+		} finally {
+			unregister(wait);
+		}
+
+		if (wait.failure != null)
+			throw wait.failure;
+		if (!wait.satisfied)
+			waiter.timedOut(options, wait.attempts);
+		Waiter.sleep(options.getPostTimeoutInMs());
+	}
+
+	private synchronized void register(PendingWait wait)
+			throws CalabashException {
+		if (shutdown)
+			throw new CalabashException("Wait multiplexer is shutdown");
+		pending.add(wait);
+		if (poller == null) {
+			poller = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					poll();
+				}
+			}, "calabash-wait-multiplexer");
+			poller.setDaemon(true);
+			poller.start();
+		}
+		// Wakes the poller if it is idle
+		notifyAll();
+	}
+
+	private synchronized void unregister(PendingWait wait) {
+		pending.remove(wait);
+	}
+
+	private void poll() {
+		try {
+			pollTillShutdown();
+		} finally {
+			// A later wait starts a new poller. Waits left behind can't be
+			// polled any more
+			List<PendingWait> abandoned;
+			synchronized (this) {
+				if (poller == Thread.currentThread())
+					poller = null;
+				abandoned = new ArrayList<PendingWait>(pending);
+			}
+			for (PendingWait wait : abandoned)
+				wait.fail(new CalabashException(
+						"Wait multiplexer stopped polling"));
+		}
+	}
+
+	private void pollTillShutdown() {
+		while (true) {
+			List<PendingWait> waits;
+			synchronized (this) {
+				try {
+					while (pending.isEmpty() && !shutdown)
+						wait();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (shutdown)
+					return;
+				waits = new ArrayList<PendingWait>(pending);
+				polls++;
+			}
+
+			try {
+				tick(waits);
+			} catch (RuntimeException e) {
+				error("Failed to poll pending waits", e);
+				CalabashException failure = new CalabashException(
+						"Failed to poll pending waits. " + e.getMessage(), e);
+				for (PendingWait wait : waits)
+					wait.fail(failure);
+			}
+
+			// Waits registered meanwhile are picked up on the next tick
+			long nextTick = System.nanoTime() + pollIntervalInMs * 1000000L;
+			synchronized (this) {
+				try {
+					long remainingInMs;
+					while (!shutdown
+							&& (remainingInMs = (nextTick - System.nanoTime()) / 1000000L) > 0)
+						wait(remainingInMs);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void tick(List<PendingWait> waits) {
+		QueryBatch batch = new QueryBatch();
+		Map<String, Integer> positions = new HashMap<String, Integer>();
+		for (PendingWait wait : waits) {
+			if (wait.done.getCount() == 0)
+				continue;
+			for (QueryCondition condition : wait.conditions) {
+				String key = key(condition);
+				if (!positions.containsKey(key))
+					positions.put(key, batch.add(condition.getQuery(),
+							condition.getSelector()));
+			}
+		}
+
+		List<List<?>> results;
+		try {
+			results = transport.query(batch);
+		} catch (CalabashException e) {
+			error("Failed to poll pending waits", e);
+			for (PendingWait wait : waits)
+				wait.fail(e);
+			return;
+		}
+
+		long now = System.nanoTime();
+		for (PendingWait wait : waits) {
+			if (wait.done.getCount() == 0)
+				continue;
+			wait.attempts++;
+			boolean satisfied = true;
+			for (QueryCondition condition : wait.conditions) {
+				if (!condition.test(results.get(positions.get(key(condition))))) {
+					satisfied = false;
+					break;
+				}
+			}
+			if (satisfied)
+				wait.complete(true);
+			else if (now - wait.deadline >= 0)
+				wait.complete(false);
+		}
+	}
+
+	private static String key(QueryCondition condition) {
+		return condition.getQuery() + '\u0000' + condition.getSelector();
+	}
+
+	private static final class PendingWait {
+		private final List<QueryCondition> conditions;
+		private final long deadline;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile boolean satisfied;
+		private volatile CalabashException failure;
+		private volatile int attempts;
+
+		PendingWait(List<QueryCondition> conditions, long deadline) {
+			this.conditions = conditions;
+			this.deadline = deadline;
+		}
+
+		// A wait stays pending till its thread wakes up, so later ticks
+		// should not change the outcome
+		synchronized void complete(boolean satisfied) {
+			if (done.getCount() == 0)
+				return;
+			this.satisfied = satisfied;
+			done.countDown();
+		}
+
+		synchronized void fail(CalabashException failure) {
+			if (done.getCount() == 0)
+				return;
+			this.failure = failure;
+			done.countDown();
+		}
+	}
+}
@@ -9,13 +9,22 @@ package calabash.java;
  */
 public final class WaitOptions {
 
-	private final int timeoutInSec;
-	private final int retryFreqInSec;
-	private final int postTimeoutInSec;
+	static final long DEFAULT_TIMEOUT_IN_MS = 10000;
+	static final long DEFAULT_RETRY_FREQ_IN_MS = 20;
+	static final long DEFAULT_MAX_RETRY_FREQ_IN_MS = 200;
+	static final long DEFAULT_POST_TIMEOUT_IN_MS = 100;
+	static final String DEFAULT_TIMEOUT_MESSAGE = "Timed out waiting...";
+
+	private final long timeoutInMs;
+	private final long retryFreqInMs;
+	private final long maxRetryFreqInMs;
+	private final long postTimeoutInMs;
 	private final String timeoutMessage;
 	private final boolean screenshotOnError;
 
     /**
+     * Retries at a fixed frequency. When retryFreqInSec is 0, the condition
+     * is polled with the default backoff
      *
      * @param timeoutInSec maximum number of seconds to wait
      * @param retryFreqInSec wait this long before retrying the block
@@ -26,23 +35,77 @@ public final class WaitOptions {
 	public WaitOptions(int timeoutInSec, int retryFreqInSec,
 			int postTimeoutInSec, String timeoutMessage,
 			boolean screenshotOnError) {
-		this.timeoutInSec = timeoutInSec;
-		this.retryFreqInSec = retryFreqInSec;
-		this.postTimeoutInSec = postTimeoutInSec;
+		this(timeoutInSec * 1000L, retryFreqInSec > 0 ? retryFreqInSec * 1000L
+				: DEFAULT_RETRY_FREQ_IN_MS, retryFreqInSec > 0 ? retryFreqInSec
+				* 1000L : DEFAULT_MAX_RETRY_FREQ_IN_MS,
+				postTimeoutInSec * 1000L, timeoutMessage, screenshotOnError);
+	}
+
+    /**
+     * Retries after retryFreqInMs first and doubles the interval after every
+     * failed attempt till it reaches maxRetryFreqInMs. Pass the same value
+     * for both to retry at a fixed frequency
+     *
+     * @param timeoutInMs maximum number of milliseconds to wait
+     * @param retryFreqInMs wait this long before retrying the block the first time
+     * @param maxRetryFreqInMs upper bound for the wait between retries
+     * @param postTimeoutInMs wait this long after the block returns true
+     * @param timeoutMessage error message
+     * @param screenshotOnError take a screenshot in case of error
+     */
+	public WaitOptions(long timeoutInMs, long retryFreqInMs,
+			long maxRetryFreqInMs, long postTimeoutInMs,
+			String timeoutMessage, boolean screenshotOnError) {
+		if (retryFreqInMs <= 0 || maxRetryFreqInMs < retryFreqInMs)
+			throw new IllegalArgumentException(
+					"retryFreqInMs should be positive and not more than maxRetryFreqInMs");
+		this.timeoutInMs = timeoutInMs;
+		this.retryFreqInMs = retryFreqInMs;
+		this.maxRetryFreqInMs = maxRetryFreqInMs;
+		this.postTimeoutInMs = postTimeoutInMs;
 		this.timeoutMessage = timeoutMessage;
 		this.screenshotOnError = screenshotOnError;
 	}
 
+	/**
+	 * Gets the options used when none are specified. Timeout is 10 seconds,
+	 * post timeout is 0.1 seconds and the condition is polled after 20
+	 * milliseconds first, backing off up to 0.2 seconds
+	 *
+	 * @return Default options
+	 */
+	public static WaitOptions defaults() {
+		return new WaitOptions(DEFAULT_TIMEOUT_IN_MS, DEFAULT_RETRY_FREQ_IN_MS,
+				DEFAULT_MAX_RETRY_FREQ_IN_MS, DEFAULT_POST_TIMEOUT_IN_MS,
+				DEFAULT_TIMEOUT_MESSAGE, true);
+	}
+
 	public int getTimeoutInSec() {
-		return timeoutInSec;
+		return (int) (timeoutInMs / 1000);
 	}
 
 	public int getRetryFreqInSec() {
-		return retryFreqInSec;
+		return (int) (retryFreqInMs / 1000);
 	}
 
 	public int getPostTimeoutInSec() {
-		return postTimeoutInSec;
+		return (int) (postTimeoutInMs / 1000);
+	}
+
+	public long getTimeoutInMs() {
+		return timeoutInMs;
+	}
+
+	public long getRetryFreqInMs() {
+		return retryFreqInMs;
+	}
+
+	public long getMaxRetryFreqInMs() {
+		return maxRetryFreqInMs;
+	}
+
+	public long getPostTimeoutInMs() {
+		return postTimeoutInMs;
 	}
 
 	public String getTimeoutMessage() {
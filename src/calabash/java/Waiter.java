@@ -0,0 +1,173 @@
+/**
+ *
+ */
+package calabash.java;
+
+import java.io.File;
+
+import static calabash.java.CalabashLogger.error;
+import static calabash.java.CalabashLogger.info;
+
+/**
+ * Polls conditions from Java instead of the ruby <code>wait_for</code>
+ * helpers. The condition is first retried after a few milliseconds and the
+ * interval doubles after every failed attempt up to the maximum in
+ * {@link WaitOptions}, so a wait ends soon after the condition becomes true
+ * without hammering the application during long waits. Timeouts are
+ * measured against a monotonic deadline and the condition is tested one
+ * last time when the deadline is reached.
+ *
+ */
+final class Waiter {
+
+	static final String KEYBOARD_QUERY = "view:'UIKBKeyplaneView'";
+	private static final long KEYBOARD_POST_TIMEOUT_IN_MS = 300;
+
+	private final ITransport transport;
+	private final File screenshotsDirectory;
+
+	/**
+	 * @param transport
+	 *            Transport used to check elements and take screenshots
+	 * @param screenshotsDirectory
+	 *            Directory for screenshots taken on timeout. When null, the
+	 *            current working directory is used
+	 */
+	public Waiter(ITransport transport, File screenshotsDirectory) {
+		this.transport = transport;
+		this.screenshotsDirectory = screenshotsDirectory != null ? screenshotsDirectory
+				: new File(System.getProperty("user.dir"));
+	}
+
+	/**
+	 * Blocks till the condition is true
+	 *
+	 * @param condition
+	 *            Condition to wait for
+	 * @param options
+	 *            Wait options. When null, {@link WaitOptions#defaults()} are
+	 *            used
+	 * @throws OperationTimedoutException
+	 *             If the condition is not true before the timeout
+	 * @throws CalabashException
+	 *             If the condition fails or the wait is interrupted
+	 */
+	public void waitFor(ICondition condition, WaitOptions options)
+			throws OperationTimedoutException, CalabashException {
+		if (options == null)
+			options = WaitOptions.defaults();
+
+		long deadline = System.nanoTime() + options.getTimeoutInMs() * 1000000L;
+		long retryFreqInMs = options.getRetryFreqInMs();
+		int attempts = 0;
+		while (true) {
+			attempts++;
+			if (test(condition)) {
+				sleep(options.getPostTimeoutInMs());
+				return;
+			}
+
+			long remainingInMs = (deadline - System.nanoTime()) / 1000000L;
+			if (remainingInMs <= 0)
+				break;
+			sleep(Math.min(retryFreqInMs, remainingInMs));
+			retryFreqInMs = Math.min(retryFreqInMs * 2,
+					options.getMaxRetryFreqInMs());
+		}
+
+		timedOut(options, attempts);
+	}
+
+	// Failures of the condition surface as CalabashException, as they did
+	// when the wait ran in Ruby
+	private static boolean test(ICondition condition) throws CalabashException {
+		try {
+			return condition.test();
+		} catch (RuntimeException e) {
+			error("Failed to wait for condition. %s", e, e.getMessage());
+			throw new CalabashException(String.format(
+					"Failed to wait for condition. %s", e.getMessage()), e);
+		}
+	}
+
+	public void waitForElementsExist(final String[] queries,
+			WaitOptions options) throws OperationTimedoutException,
+			CalabashException {
+		waitFor(new ICondition() {
+			@Override
+			public boolean test() throws CalabashException {
+				for (String query : queries) {
+					if (!transport.elementExists(query))
+						return false;
+				}
+				return true;
+			}
+		}, options);
+	}
+
+	public void waitForElementsToNotExist(final String[] queries,
+			WaitOptions options) throws OperationTimedoutException,
+			CalabashException {
+		waitFor(new ICondition() {
+			@Override
+			public boolean test() throws CalabashException {
+				for (String query : queries) {
+					if (transport.elementExists(query))
+						return false;
+				}
+				return true;
+			}
+		}, options);
+	}
+
+	/**
+	 * Waits for the keyboard like <code>wait_for_keyboard</code>, which
+	 * gives the keyboard 0.3 seconds to finish animating
+	 */
+	public void waitForKeyboard() throws CalabashException {
+		WaitOptions defaults = WaitOptions.defaults();
+		WaitOptions options = new WaitOptions(defaults.getTimeoutInMs(),
+				defaults.getRetryFreqInMs(), defaults.getMaxRetryFreqInMs(),
+				KEYBOARD_POST_TIMEOUT_IN_MS, "Keyboard did not appear",
+				defaults.shouldScreenshotOnError());
+		try {
+			waitForElementsExist(new String[] { KEYBOARD_QUERY }, options);
+		} catch (OperationTimedoutException e) {
+			throw new CalabashException("Failed to wait for keyboard. "
+					+ e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Takes a screenshot if the options ask for it and throws the timeout
+	 */
+	void timedOut(WaitOptions options, int attempts)
+			throws OperationTimedoutException {
+		info("Timed out waiting after %d attempts", attempts);
+		if (options.shouldScreenshotOnError())
+			takeScreenshot();
+		String message = options.getTimeoutMessage();
+		throw new OperationTimedoutException(
+				message == null ? WaitOptions.DEFAULT_TIMEOUT_MESSAGE : message);
+	}
+
+	private void takeScreenshot() {
+		try {
+			// Calabash picks the file name
+			transport.takeScreenShot(screenshotsDirectory, null);
+		} catch (CalabashException e) {
+			error("Failed to take screenshot after timeout", e);
+		}
+	}
+
+	static void sleep(long timeInMs) throws CalabashException {
+		if (timeInMs <= 0)
+			return;
+		try {
+			Thread.sleep(timeInMs);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CalabashException("Interrupted while waiting");
+		}
+	}
+}
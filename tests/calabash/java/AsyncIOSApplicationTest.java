@@ -0,0 +1,136 @@
+package calabash.java;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AsyncIOSApplicationTest {
+
+    private InMemoryTransport transport;
+    private AsyncIOSApplication application;
+
+    @Before
+    public void setup() {
+        transport = new InMemoryTransport();
+        application = new AsyncIOSApplication(new IOSApplication(transport));
+    }
+
+    @After
+    public void tearDown() {
+        application.shutdown();
+    }
+
+    @Test
+    public void shouldRunOperationsInSubmissionOrder() throws Exception {
+        transport.setQueryResult("button", InMemoryTransport.element("UIButton", "Login", null));
+
+        Future<Void> wait = application.waitForElementsExist(new String[]{"button"});
+        Future<Void> touch = application.submit(new ApplicationTask<Void>() {
+            @Override
+            public Void run(IOSApplication application) throws Exception {
+                application.query("button").first().touch();
+                return null;
+            }
+        });
+        Future<Void> rotate = application.submit(new ApplicationTask<Void>() {
+            @Override
+            public Void run(IOSApplication application) throws Exception {
+                application.rotateLeft();
+                return null;
+            }
+        });
+
+        wait.get();
+        touch.get();
+        rotate.get();
+        assertEquals(Arrays.asList("touch button index:0", "rotate left"), transport.getInvocations());
+        assertTrue(application.elementExists("button").get());
+    }
+
+    @Test
+    public void shouldReportFailures() throws Exception {
+        Future<Void> wait = application.waitForElementsExist(new String[]{"label"},
+                new WaitOptions(0, 0, 0, "no label", false));
+
+        try {
+            wait.get();
+            fail("Expected timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof OperationTimedoutException);
+            assertEquals("no label", e.getCause().getMessage());
+        }
+        assertTrue(application.query("label").get().isEmpty());
+    }
+
+    @Test
+    public void shouldNotifyCallbacksWithoutBlocking() throws Exception {
+        transport.setQueryResult("button", InMemoryTransport.element("UIButton", "Login", null));
+        final CountDownLatch chained = new CountDownLatch(1);
+        final List<Object> notifications = new ArrayList<Object>();
+
+        application.waitForElementsExist(new String[]{"button"}).addCallback(new ApplicationCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                application.query("button").addCallback(new ApplicationCallback<UIElements>() {
+                    @Override
+                    public void onSuccess(UIElements buttons) {
+                        notifications.add(buttons.size());
+                        chained.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable cause) {
+                        notifications.add(cause);
+                        chained.countDown();
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+                notifications.add(cause);
+                chained.countDown();
+            }
+        });
+
+        assertTrue(chained.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.<Object>asList(1), notifications);
+    }
+
+    @Test
+    public void shouldNotifyFailuresAndLateCallbacks() throws Exception {
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        ApplicationCallback<Void> callback = new ApplicationCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                fail("Expected failure");
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+                failures.add(cause);
+            }
+        };
+        ApplicationFuture<Void> wait = application.waitForElementsExist(new String[]{"label"},
+                new WaitOptions(0, 0, 0, "no label", false));
+        try {
+            wait.get();
+        } catch (ExecutionException expected) {
+        }
+
+        // Registered after completion, so it is called right away
+        wait.addCallback(callback);
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0) instanceof OperationTimedoutException);
+    }
+}
@@ -0,0 +1,130 @@
+package calabash.java;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CachingTransportTest {
+
+    private InMemoryTransport device;
+    private CachingTransport transport;
+    private IOSApplication application;
+
+    @Before
+    public void setup() {
+        device = new InMemoryTransport();
+        transport = new CachingTransport(device, 10000, 2);
+        application = new IOSApplication(transport);
+    }
+
+    @Test
+    public void shouldReuseResultsTillAnAction() throws Exception {
+        device.setQueryResult("button", InMemoryTransport.element("UIButton", "Login", null));
+
+        assertEquals(1, application.query("button").size());
+        device.removeQueryResult("button");
+        assertEquals(1, application.query("button").size());
+        assertEquals(1, transport.getHitCount());
+        assertEquals(1, transport.getMissCount());
+
+        application.rotateLeft();
+
+        assertTrue(application.query("button").isEmpty());
+        assertEquals(2, transport.getMissCount());
+    }
+
+    @Test
+    public void shouldCacheElementExistsSeparately() throws Exception {
+        device.setQueryResult("label", InMemoryTransport.element("UILabel", "Name", null));
+
+        assertTrue(application.elementExists("label"));
+        assertEquals(1, application.query("label").size());
+        assertTrue(application.elementExists("label"));
+
+        assertEquals(1, transport.getHitCount());
+        assertEquals(2, transport.getMissCount());
+    }
+
+    @Test
+    public void shouldNotMixExistenceChecksWithSelectorQueries() throws Exception {
+        device.setQueryResult("label", InMemoryTransport.element("UILabel", "Name", null));
+
+        assertTrue(transport.elementExists("label"));
+        assertEquals(0, transport.query("exists", "label").size());
+        assertTrue(transport.elementExists("label"));
+    }
+
+    @Test
+    public void shouldExpireResults() throws Exception {
+        transport = new CachingTransport(device, 20, 2);
+        device.setQueryResult("button", InMemoryTransport.element("UIButton", "Login", null));
+        assertEquals(1, transport.query("button").size());
+
+        device.removeQueryResult("button");
+        Thread.sleep(50);
+
+        assertTrue(transport.query("button").isEmpty());
+        assertEquals(0, transport.getHitCount());
+    }
+
+    @Test
+    public void shouldDropLeastRecentlyUsedResults() throws Exception {
+        transport.query("a");
+        transport.query("b");
+        transport.query("a");
+        transport.query("c");
+
+        transport.query("a");
+        transport.query("b");
+
+        assertEquals(2, transport.getHitCount());
+        assertEquals(4, transport.getMissCount());
+    }
+
+    @Test
+    public void shouldShareResultsWithBatches() throws Exception {
+        device.setQueryResult("button", InMemoryTransport.element("UIButton", "Login", null));
+        device.setQueryResult("label", InMemoryTransport.element("UILabel", "Name", null));
+        transport.query("button");
+        device.removeQueryResult("button");
+
+        QueryBatch batch = new QueryBatch();
+        batch.add("button");
+        batch.add("label");
+        List<List<?>> results = transport.query(batch);
+        assertEquals(1, results.get(0).size());
+        assertEquals(1, results.get(1).size());
+        assertEquals(1, transport.getHitCount());
+        assertEquals(2, transport.getMissCount());
+
+        device.removeQueryResult("label");
+        results = transport.query(batch);
+        assertEquals(1, results.get(1).size());
+        assertEquals(1, transport.query("label").size());
+        assertEquals(4, transport.getHitCount());
+        assertEquals(2, transport.getMissCount());
+    }
+
+    @Test
+    public void shouldNotCacheWhileWaiting() throws Exception {
+        device.setQueryResult("button", InMemoryTransport.element("UIButton", "Login", null));
+        application.query("button");
+        transport.resetStatistics();
+
+        application.waitFor(new ICondition() {
+            private int polls = 0;
+
+            @Override
+            public boolean test() throws CalabashException {
+                application.query("button");
+                return ++polls == 3;
+            }
+        }, new WaitOptions(1, 0, 0, "", false));
+
+        assertEquals(0, transport.getHitCount());
+        assertEquals(3, transport.getMissCount());
+    }
+}
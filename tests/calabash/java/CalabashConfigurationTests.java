@@ -45,6 +45,13 @@ public class CalabashConfigurationTests {
 				System.getProperty("user.dir"));
 	}
 
+	@Test
+	public void testSetPreWarm() {
+		assertFalse(configuration.getPreWarm());
+		configuration.setPreWarm(true);
+		assertTrue(configuration.getPreWarm());
+	}
+
 	@Test
 	public void testSetDevice() {
 		assertNull(configuration.getDevice());
@@ -0,0 +1,109 @@
+package calabash.java;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CalabashServerClientTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private HttpServer server;
+    private CalabashServerClient client;
+    private String lastRequest;
+    private String response;
+
+    @Before
+    public void setup() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/map", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                lastRequest = Utils.toString(exchange.getRequestBody(), "UTF-8");
+                byte[] body = response.getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        client = new CalabashServerClient(new URI("http://localhost:" + server.getAddress().getPort()));
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void shouldSendQueryAndParseElements() throws Exception {
+        response = "{\"outcome\":\"SUCCESS\",\"results\":[{\"class\":\"UIButton\",\"label\":\"Touch me\","
+                + "\"rect\":{\"x\":10,\"y\":20,\"width\":100,\"height\":44,\"center_x\":60,\"center_y\":42}}]}";
+
+        UIElements elements = new UIElements(client.query("button"), "button", null);
+
+        assertEquals("{\"query\":\"button\",\"operation\":{\"method_name\":\"query\",\"arguments\":[]}}", lastRequest);
+        assertEquals(1, elements.size());
+        assertEquals("UIButton", elements.first().getElementClass());
+        assertEquals("Touch me", elements.first().getLabel());
+        assertEquals(new Rect(10, 20, 100, 44, 60, 42), elements.first().getRect());
+        assertEquals("button index:0", elements.first().getQuery());
+    }
+
+    @Test
+    public void shouldSendPropertySelectors() throws Exception {
+        response = "{\"outcome\":\"SUCCESS\",\"results\":[\"Hello \\\"world\\\"\"]}";
+
+        List<?> results = client.query("textField marked:'name'", "text");
+
+        assertEquals("{\"query\":\"textField marked:'name'\",\"operation\":{\"method_name\":\"query\",\"arguments\":[\"text\"]}}", lastRequest);
+        assertEquals("Hello \"world\"", results.get(0));
+    }
+
+    @Test
+    public void shouldCheckElementExists() throws Exception {
+        response = "{\"outcome\":\"SUCCESS\",\"results\":[]}";
+        assertFalse(client.elementExists("label"));
+
+        response = "{\"outcome\":\"SUCCESS\",\"results\":[{\"class\":\"UILabel\"}]}";
+        assertTrue(client.elementExists("label"));
+    }
+
+    @Test
+    public void shouldParseNestedValues() throws Exception {
+        response = "{\"outcome\":\"SUCCESS\",\"results\":[{\"enabled\":true,\"alpha\":0.5,\"tag\":-1,\"id\":null,\"items\":[1,2]}]}";
+
+        Map<?, ?> element = (Map<?, ?>) client.query("view").get(0);
+
+        assertEquals(Boolean.TRUE, element.get("enabled"));
+        assertEquals(0.5, element.get("alpha"));
+        assertEquals(-1, element.get("tag"));
+        assertNull(element.get("id"));
+        assertEquals(2, ((List<?>) element.get("items")).size());
+    }
+
+    @Test
+    public void shouldThrowWhenServerReportsFailure() throws Exception {
+        response = "{\"outcome\":\"FAILURE\",\"reason\":\"invalid query\",\"details\":\"\"}";
+
+        expectedException.expect(CalabashException.class);
+        expectedException.expectMessage("invalid query");
+        client.query("button marked:");
+    }
+}
@@ -0,0 +1,152 @@
+package calabash.java;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClasspathGemsTest {
+
+    private static final String STUB_GEM = "module Calabash\n"
+            + "  module Cucumber\n"
+            + "    module Core\n"
+            + "      def query(q, *args)\n"
+            + "        [{'label' => q}]\n"
+            + "      end\n"
+            + "    end\n"
+            + "  end\n"
+            + "end\n";
+
+    private File tempDir;
+    private CalabashWrapper wrapper;
+
+    @Before
+    public void setup() throws Exception {
+        tempDir = File.createTempFile("calabash-classpath", "");
+        tempDir.delete();
+        tempDir.mkdir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (wrapper != null)
+            wrapper.dispose();
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void shouldLoadGemsFromJar() throws Exception {
+        File jar = new File(tempDir, "gems.jar");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        add(out, "scripts/bundle/launcher.rb", "");
+        add(out, "scripts/bundle/gems/json-stub/lib/json-stub.rb", "");
+        add(out, "scripts/bundle/gems/calabash-cucumber-stub/lib/calabash-cucumber.rb", STUB_GEM);
+        out.close();
+
+        ClasspathGems gems = gems(jar);
+        assertEquals(2, gems.getLoadPaths().size());
+        assertTrue(gems.getLoadPaths().contains("classpath:/scripts/bundle/gems/calabash-cucumber-stub/lib"));
+        assertEquals("scripts/bundle/gems/calabash-cucumber-stub/bin/calabash-ios",
+                gems.getCalabashGemResource("bin/calabash-ios"));
+
+        wrapper = new CalabashWrapper(gems, tempDir, null);
+        Map<?, ?> element = (Map<?, ?>) wrapper.query("button").get(0);
+        assertEquals("button", element.get("label"));
+    }
+
+    @Test
+    public void shouldLoadGemsFromExplodedClassPath() throws Exception {
+        File classes = new File(tempDir, "classes");
+        File lib = new File(classes, "scripts/bundle/gems/calabash-cucumber-stub/lib");
+        lib.mkdirs();
+        FileUtils.writeStringToFile(new File(classes, "scripts/bundle/launcher.rb"), "");
+        FileUtils.writeStringToFile(new File(lib, "calabash-cucumber.rb"), STUB_GEM);
+
+        wrapper = new CalabashWrapper(gems(classes), tempDir, null);
+        Map<?, ?> element = (Map<?, ?>) wrapper.query("label").get(0);
+        assertEquals("label", element.get("label"));
+    }
+
+    @Test
+    public void shouldListPrecompiledGems() throws Exception {
+        File jar = new File(tempDir, "gems.jar");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        add(out, "scripts/bundle/launcher.rb", "");
+        add(out, "scripts/bundle/gems/calabash-cucumber-stub/lib/calabash-cucumber.rb", STUB_GEM);
+        add(out, "scripts/bundle/aot/gems/calabash-cucumber-stub/lib/calabash-cucumber.class", "");
+        out.close();
+
+        ClasspathGems gems = gems(jar);
+        assertEquals(1, gems.getPrecompiledLoadPaths().size());
+        assertTrue(gems.getPrecompiledLoadPaths().contains("classpath:/scripts/bundle/aot/gems/calabash-cucumber-stub/lib"));
+        assertEquals(1, gems.getLoadPaths().size());
+    }
+
+    @Test
+    public void shouldWriteResourcesRelativeToFileOnStart() throws Exception {
+        File classes = new File(tempDir, "classes");
+        File gem = new File(classes, "scripts/bundle/gems/calabash-cucumber-stub");
+        FileUtils.writeStringToFile(new File(classes, "scripts/bundle/launcher.rb"), "");
+        FileUtils.writeStringToFile(new File(gem, "lib/calabash-cucumber/launcher.rb"), "");
+        FileUtils.writeStringToFile(new File(gem, "lib/calabash-cucumber/helper.rb"), "$cj_helper = true\n");
+        FileUtils.writeStringToFile(new File(gem, "scripts/run_loop.js"), "var run_loop;");
+        FileUtils.writeStringToFile(new File(gem, "lib/calabash-cucumber.rb"),
+                "require File.join(File.dirname(__FILE__), 'calabash-cucumber', 'helper')\n"
+                        + "module Calabash\n"
+                        + "  module Cucumber\n"
+                        + "    module Core\n"
+                        + "      def query(q, *args)\n"
+                        + "        path = File.expand_path(File.join(File.dirname(__FILE__), '..', 'scripts', q))\n"
+                        + "        [{'path' => path, 'content' => File.read(path), 'helper' => $cj_helper}]\n"
+                        + "      end\n"
+                        + "    end\n"
+                        + "  end\n"
+                        + "end\n");
+
+        ClasspathGems gems = gems(classes);
+        File resourcesDir = gems.getResourcesDir(new File(System.getProperty("java.io.tmpdir")));
+        FileUtils.deleteDirectory(resourcesDir);
+        try {
+            wrapper = new CalabashWrapper(gems, tempDir, null);
+            wrapper.start();
+
+            Map<?, ?> element = (Map<?, ?>) wrapper.query("run_loop.js").get(0);
+            assertEquals(new File(resourcesDir, "gems/calabash-cucumber-stub/scripts/run_loop.js").getAbsolutePath(),
+                    element.get("path"));
+            assertEquals("var run_loop;", element.get("content"));
+            assertEquals(Boolean.TRUE, element.get("helper"));
+            assertFalse(new File(resourcesDir, "gems/calabash-cucumber-stub/lib/calabash-cucumber.rb").exists());
+        } finally {
+            FileUtils.deleteDirectory(resourcesDir);
+        }
+    }
+
+    @Test(expected = CalabashException.class)
+    public void shouldFailWhenBundleIsMissing() throws Exception {
+        new ClasspathGems("scripts/bundle", new URLClassLoader(new URL[0], null)).getLoadPaths();
+    }
+
+    private ClasspathGems gems(File classPath) throws Exception {
+        URLClassLoader loader = new URLClassLoader(new URL[]{classPath.toURI().toURL()},
+                getClass().getClassLoader());
+        return new ClasspathGems(ClasspathGems.DEFAULT_RESOURCE_DIR, loader);
+    }
+
+    private static void add(JarOutputStream out, String name, String content) throws Exception {
+        out.putNextEntry(new ZipEntry(name));
+        out.write(content.getBytes("UTF-8"));
+        out.closeEntry();
+    }
+}
@@ -0,0 +1,98 @@
+package calabash.java;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConcurrentSessionsTest {
+
+    private static final int SESSIONS = 3;
+    private static final int THREADS_PER_SESSION = 4;
+    private static final int QUERIES_PER_THREAD = 50;
+
+    private static final String STUB_GEM = "module Calabash\n"
+            + "  module Cucumber\n"
+            + "    module Core\n"
+            + "      def query(q, *args)\n"
+            + "        Thread.pass\n"
+            + "        [{'label' => q, 'endpoint' => ENV['DEVICE_ENDPOINT']}]\n"
+            + "      end\n"
+            + "    end\n"
+            + "  end\n"
+            + "end\n";
+
+    private File scriptsDir;
+    private List<CalabashWrapper> wrappers = new ArrayList<CalabashWrapper>();
+
+    @Before
+    public void setup() throws Exception {
+        File tempFile = File.createTempFile("calabash-sessions", "");
+        tempFile.delete();
+        scriptsDir = tempFile;
+        File lib = new File(scriptsDir, "gems/calabash-cucumber-stub/lib");
+        lib.mkdirs();
+        FileUtils.writeStringToFile(new File(lib, "calabash-cucumber.rb"), STUB_GEM);
+
+        for (int i = 0; i < SESSIONS; i++) {
+            CalabashConfiguration configuration = new CalabashConfiguration();
+            configuration.setDeviceEndPoint(new URI("http://device" + i + ":37265/"));
+            wrappers.add(new CalabashWrapper(scriptsDir, scriptsDir, configuration));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (CalabashWrapper wrapper : wrappers)
+            wrapper.dispose();
+        FileUtils.deleteDirectory(scriptsDir);
+    }
+
+    @Test
+    public void shouldIsolateSessionsDrivenFromManyThreads() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(SESSIONS * THREADS_PER_SESSION);
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int session = 0; session < SESSIONS; session++) {
+                for (int thread = 0; thread < THREADS_PER_SESSION; thread++) {
+                    futures.add(executor.submit(queries(session, thread)));
+                }
+            }
+
+            int total = 0;
+            for (Future<Integer> future : futures)
+                total += future.get();
+            assertEquals(SESSIONS * THREADS_PER_SESSION * QUERIES_PER_THREAD, total);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Callable<Integer> queries(final int session, final int thread) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                CalabashWrapper wrapper = wrappers.get(session);
+                for (int i = 0; i < QUERIES_PER_THREAD; i++) {
+                    String query = String.format("button marked:'%d-%d-%d'", session, thread, i);
+                    Map<?, ?> element = (Map<?, ?>) wrapper.query(query).get(0);
+                    assertEquals(query, element.get("label"));
+                    assertEquals("http://device" + session + ":37265/", element.get("endpoint"));
+                }
+                return QUERIES_PER_THREAD;
+            }
+        };
+    }
+}
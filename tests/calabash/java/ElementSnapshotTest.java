@@ -0,0 +1,49 @@
+package calabash.java;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ElementSnapshotTest {
+
+    @Test
+    public void shouldCaptureProperties() {
+        Map<String, Object> data = InMemoryTransport.element("UIButton", "Login", new Rect(10, 20, 100, 44, 60, 42));
+        data.put("id", "login");
+
+        ElementSnapshot snapshot = new ElementSnapshot(data);
+        data.clear();
+
+        assertEquals("UIButton", snapshot.getElementClass());
+        assertEquals("Login", snapshot.getLabel());
+        assertEquals("login", snapshot.getId());
+        assertEquals(new Rect(10, 20, 100, 44, 60, 42), snapshot.getRect());
+        assertEquals(new Rect(10, 20, 100, 44, null, null), snapshot.getFrame());
+    }
+
+    @Test
+    public void shouldHandleMissingGeometry() {
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put("class", "UIView");
+
+        ElementSnapshot snapshot = new ElementSnapshot(data);
+
+        assertNull(snapshot.getRect());
+        assertEquals(new Rect(null, null, null, null, null, null), snapshot.getFrame());
+    }
+
+    @Test
+    public void shouldCompareByValue() {
+        ElementSnapshot first = new ElementSnapshot(InMemoryTransport.element("UILabel", "Name", new Rect(0, 0, 10, 10, 5, 5)));
+        ElementSnapshot same = new ElementSnapshot(InMemoryTransport.element(new String("UILabel"), "Name", new Rect(0, 0, 10, 10, 5, 5)));
+        ElementSnapshot moved = new ElementSnapshot(InMemoryTransport.element("UILabel", "Name", new Rect(0, 1, 10, 10, 5, 6)));
+
+        assertEquals(first, same);
+        assertEquals(first.hashCode(), same.hashCode());
+        assertSame(first.getElementClass(), same.getElementClass());
+        assertFalse(first.equals(moved));
+    }
+}
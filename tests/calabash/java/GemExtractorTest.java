@@ -0,0 +1,173 @@
+package calabash.java;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class GemExtractorTest {
+
+    private File classPathDir;
+    private File baseDir;
+    private ClassLoader originalClassLoader;
+
+    @Before
+    public void setup() throws Exception {
+        classPathDir = createTempDir("gem-extractor-classpath");
+        baseDir = createTempDir("gem-extractor-base");
+        File scripts = new File(classPathDir, "scripts");
+        scripts.mkdir();
+        write(new File(scripts, "launcher.rb"), "puts 'launcher'");
+        createZip(new File(scripts, "gems.zip"), 200);
+
+        originalClassLoader = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(
+                new URLClassLoader(new URL[]{classPathDir.toURI().toURL()}, null));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Thread.currentThread().setContextClassLoader(originalClassLoader);
+        FileUtils.deleteDirectory(classPathDir);
+        FileUtils.deleteDirectory(baseDir);
+    }
+
+    @Test
+    public void shouldExtractIntoContentAddressedDirectory() throws Exception {
+        File gemsDir = new GemExtractor("scripts", baseDir).extract();
+
+        assertTrue(gemsDir.getName().matches("calabash-ios-gems-[0-9a-f]{40}"));
+        assertTrue(new File(gemsDir, "launcher.rb").isFile());
+        assertFalse(new File(gemsDir, "gems.zip").exists());
+        assertEquals(200, new File(gemsDir, "gems/calabash/lib").list().length);
+        assertTrue(new File(gemsDir, "gems/calabash/bin/calabash-ios").canExecute());
+        assertTrue(new File(gemsDir, "gems/run_loop/scripts/udidetect").canExecute());
+        assertTrue(new File(gemsDir, "gems/run_loop/scripts/sim_launcher").canExecute());
+        assertFalse(new File(gemsDir, "gems/run_loop/scripts/run_loop.js").canExecute());
+        assertEquals(1, baseDir.list().length);
+    }
+
+    @Test
+    public void shouldReuseExtractedDirectoryForSameBundle() throws Exception {
+        File gemsDir = new GemExtractor("scripts", baseDir).extract();
+        File marker = new File(gemsDir, "marker");
+        marker.createNewFile();
+
+        assertEquals(gemsDir, new GemExtractor("scripts", baseDir).extract());
+        assertTrue(marker.exists());
+
+        write(new File(classPathDir, "scripts/launcher.rb"), "puts 'changed'");
+        assertFalse(gemsDir.equals(new GemExtractor("scripts", baseDir).extract()));
+    }
+
+    @Test
+    public void shouldKeyJarBundlesByCentralDirectory() throws Exception {
+        File jar = new File(classPathDir, "bundle.jar");
+        createJar(jar, "puts 'launcher'");
+        Thread.currentThread().setContextClassLoader(new URLClassLoader(new URL[]{jar.toURI().toURL()}, null));
+        File gemsDir = new GemExtractor("scripts", baseDir).extract();
+        assertTrue(new File(gemsDir, "gems/calabash/bin/calabash-ios").isFile());
+        assertEquals(gemsDir, new GemExtractor("scripts", baseDir).extract());
+
+        File changedJar = new File(classPathDir, "changed.jar");
+        createJar(changedJar, "puts 'changed'");
+        Thread.currentThread().setContextClassLoader(new URLClassLoader(new URL[]{changedJar.toURI().toURL()}, null));
+        assertFalse(gemsDir.equals(new GemExtractor("scripts", baseDir).extract()));
+    }
+
+    @Test
+    public void shouldHandleConcurrentExtraction() throws Exception {
+        final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<File>> results = new ArrayList<Future<File>>();
+        for (int i = 0; i < 4; i++) {
+            results.add(executor.submit(new Callable<File>() {
+                @Override
+                public File call() throws Exception {
+                    Thread.currentThread().setContextClassLoader(loader);
+                    return new GemExtractor("scripts", baseDir).extract();
+                }
+            }));
+        }
+
+        File first = results.get(0).get();
+        for (Future<File> result : results)
+            assertEquals(first, result.get());
+        executor.shutdown();
+        assertEquals(1, baseDir.list().length);
+    }
+
+    @Test
+    public void shouldRejectEntriesOutsideDestination() throws Exception {
+        File zip = new File(baseDir, "evil.zip");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+        out.putNextEntry(new ZipEntry("../evil.txt"));
+        out.write(1);
+        out.close();
+        File destination = new File(baseDir, "out");
+        destination.mkdir();
+
+        try {
+            GemExtractor.unzip(zip, destination);
+            fail("Expected failure");
+        } catch (CalabashException e) {
+            assertFalse(new File(baseDir, "evil.txt").exists());
+        }
+    }
+
+    private void createJar(File jar, String launcher) throws Exception {
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        out.putNextEntry(new ZipEntry("scripts/launcher.rb"));
+        out.write(launcher.getBytes("UTF-8"));
+        out.putNextEntry(new ZipEntry("scripts/gems.zip"));
+        out.write(FileUtils.readFileToByteArray(new File(classPathDir, "scripts/gems.zip")));
+        out.close();
+    }
+
+    private static void createZip(File zip, int files) throws Exception {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+        out.putNextEntry(new ZipEntry("gems/calabash/bin/calabash-ios"));
+        out.write("#!/usr/bin/env ruby".getBytes("UTF-8"));
+        out.putNextEntry(new ZipEntry("gems/run_loop/scripts/udidetect"));
+        out.write(new byte[]{(byte) 0xcf, (byte) 0xfa, (byte) 0xed, (byte) 0xfe, 7, 0, 0, 1});
+        out.putNextEntry(new ZipEntry("gems/run_loop/scripts/sim_launcher"));
+        out.write("#!/bin/sh".getBytes("UTF-8"));
+        out.putNextEntry(new ZipEntry("gems/run_loop/scripts/run_loop.js"));
+        out.write("var target = UIATarget.localTarget();".getBytes("UTF-8"));
+        for (int i = 0; i < files; i++) {
+            out.putNextEntry(new ZipEntry("gems/calabash/lib/file" + i + ".rb"));
+            out.write(("# file " + i).getBytes("UTF-8"));
+        }
+        out.close();
+    }
+
+    private static File createTempDir(String prefix) throws Exception {
+        File dir = File.createTempFile(prefix, "");
+        dir.delete();
+        dir.mkdir();
+        return dir;
+    }
+
+    private static void write(File file, String content) throws Exception {
+        FileWriter writer = new FileWriter(file);
+        writer.write(content);
+        writer.close();
+    }
+}
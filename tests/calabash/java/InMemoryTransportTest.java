@@ -0,0 +1,104 @@
+package calabash.java;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class InMemoryTransportTest {
+
+    private InMemoryTransport transport;
+    private IOSApplication application;
+
+    @Before
+    public void setup() {
+        transport = new InMemoryTransport();
+        application = new IOSApplication(transport);
+    }
+
+    @Test
+    public void shouldServeScriptedQueries() throws Exception {
+        transport.setQueryResult("button",
+                InMemoryTransport.element("UIButton", "Login", new Rect(0, 0, 100, 40, 50, 20)),
+                InMemoryTransport.element("UIButton", "Cancel", new Rect(0, 50, 100, 40, 50, 70)));
+
+        UIElements buttons = application.query("button");
+
+        assertEquals(2, buttons.size());
+        assertEquals("Cancel", buttons.get(1).getLabel());
+        assertEquals("button index:1", buttons.get(1).getQuery());
+        assertTrue(application.query("label").isEmpty());
+    }
+
+    @Test
+    public void shouldServePropertySelectors() throws Exception {
+        transport.setQueryResult("textField", InMemoryTransport.element("UITextField", "Name", null));
+        transport.setQueryResult("textField index:0", "text", Arrays.asList("John"));
+
+        assertEquals("John", application.query("textField").first().getText());
+    }
+
+    @Test
+    public void shouldRecordActions() throws Exception {
+        transport.setQueryResult("button", InMemoryTransport.element("UIButton", "Login", null));
+
+        application.query("button").touch();
+        application.getKeyboard().enterText("hello");
+        application.rotateLeft();
+
+        assertEquals(Arrays.asList("touch button index:0", "enterText hello", "rotate left"),
+                transport.getInvocations());
+    }
+
+    @Test
+    public void shouldWaitForElements() throws Exception {
+        transport.setQueryResult("label", InMemoryTransport.element("UILabel", "Done", null));
+        application.waitForElementsExist(new String[]{"label"});
+
+        try {
+            application.waitForElementsExist(new String[]{"label", "button"},
+                    new WaitOptions(0, 0, 0, "no button", false));
+            fail("Expected timeout");
+        } catch (OperationTimedoutException e) {
+            assertEquals("no button", e.getMessage());
+        }
+    }
+
+    @Test
+    public void shouldWaitForAnyOfTheQueries() throws Exception {
+        transport.setQueryResult("alertView", InMemoryTransport.element("UIAlertView", "Failed", null));
+        transport.setQueryResult("label", InMemoryTransport.element("UILabel", "Welcome", null));
+
+        FirstMatch match = application.waitForAny(new String[]{"view marked:'Home'", "alertView", "label"});
+
+        assertEquals(1, match.getIndex());
+        assertEquals("alertView", match.getQuery());
+        assertEquals("Failed", match.getElements().first().getLabel());
+
+        try {
+            application.waitForAny(new String[]{"button", "textField"}, new WaitOptions(0, 0, 0, "nothing", false));
+            fail("Expected timeout");
+        } catch (OperationTimedoutException e) {
+            assertEquals("nothing", e.getMessage());
+        }
+    }
+
+    @Test
+    public void shouldRunQueryBatch() throws Exception {
+        transport.setQueryResult("button", InMemoryTransport.element("UIButton", "Login", null));
+        transport.setQueryResult("textField", "text", Arrays.asList("John", "Doe"));
+
+        QueryBatch batch = new QueryBatch();
+        int buttons = batch.add("button");
+        int labels = batch.add("label");
+        int names = batch.add("textField", "text");
+        QueryBatchResult result = application.query(batch);
+
+        assertEquals(3, result.size());
+        assertEquals("Login", result.getElements(buttons).first().getLabel());
+        assertTrue(result.getElements(labels).isEmpty());
+        assertArrayEquals(new Object[]{"John", "Doe"}, result.getValues(names));
+    }
+}
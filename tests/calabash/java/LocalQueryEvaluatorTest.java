@@ -0,0 +1,120 @@
+package calabash.java;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LocalQueryEvaluatorTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private TreeSnapshot snapshot;
+
+    @Before
+    public void setup() throws Exception {
+        // UIWindow
+        //   UIView (form)
+        //     UILabel "Name"
+        //     UITextField id name
+        //     UIButton "Save"
+        //   UIButton "Cancel"
+        InMemoryTransport transport = new InMemoryTransport();
+        transport.setQueryResult("*",
+                view("UIWindow", null, null, "0x1"),
+                view("UIView", "form", null, "0x2"),
+                view("UILabel", null, "Name", "0x3"),
+                view("UITextField", "name", null, "0x4"),
+                view("UIButton", null, "Save", "0x5"),
+                view("UIButton", null, "Cancel", "0x6"));
+        transport.setQueryResult("*", "superview",
+                Arrays.asList(null, "<UIWindow: 0x1>", "<UIView: 0x2>", "<UIView: 0x2>", "<UIView: 0x2>", "<UIWindow: 0x1>"));
+        snapshot = new IOSApplication(transport).getTreeSnapshot();
+    }
+
+    @Test
+    public void shouldMatchClassNames() throws Exception {
+        assertLabels("button", "Save", "Cancel");
+        assertLabels("UIButton", "Save", "Cancel");
+        assertLabels("view:'UILabel'", "Name");
+        assertEquals(6, snapshot.query("*").size());
+        assertEquals(6, snapshot.query("view").size());
+    }
+
+    @Test
+    public void shouldFilterByMarkAndIndex() throws Exception {
+        assertLabels("button marked:'Cancel'", "Cancel");
+        assertEquals("UITextField", snapshot.query("* marked:'name'").first().getElementClass());
+        assertLabels("button index:1", "Cancel");
+        assertTrue(snapshot.query("button index:2").isEmpty());
+        assertFalse(snapshot.elementExists("label marked:'Missing'"));
+    }
+
+    @Test
+    public void shouldFollowDirections() throws Exception {
+        assertLabels("view marked:'form' child button", "Save");
+        assertLabels("window descendant button", "Save", "Cancel");
+        assertLabels("view marked:'form' descendant *", "Name", null, "Save");
+        assertEquals(Arrays.asList("UIView", "UIWindow"),
+                Arrays.asList(classOf("button marked:'Save' parent *", 0), classOf("button marked:'Save' parent *", 1)));
+        assertLabels("label parent view marked:'form' child button", "Save");
+    }
+
+    @Test
+    public void shouldKeepQueriesUsableOnDevice() throws Exception {
+        UIElements buttons = snapshot.query("button");
+        assertEquals("* index:5", buttons.get(1).getQuery());
+        assertEquals("* index:5", snapshot.query("button index:1").first().getQuery());
+        assertEquals("* index:3", snapshot.query("* marked:'name'").first().getQuery());
+    }
+
+    @Test
+    public void shouldNotAddressSubclassesByLocalIndex() throws Exception {
+        // The server includes the subclass in 'button', the local evaluator doesn't
+        InMemoryTransport transport = new InMemoryTransport();
+        transport.setQueryResult("*",
+                view("UIWindow", null, null, "0x1"),
+                view("MyRoundButton", null, "Custom", "0x2"),
+                view("UIButton", null, "Save", "0x3"));
+        transport.setQueryResult("*", "superview",
+                Arrays.asList(null, "<UIWindow: 0x1>", "<UIWindow: 0x1>"));
+        TreeSnapshot snapshot = new IOSApplication(transport).getTreeSnapshot();
+
+        UIElement save = snapshot.query("button").first();
+        assertEquals("Save", save.getLabel());
+        save.touch();
+
+        assertEquals(Arrays.asList("touch * index:2"), transport.getInvocations());
+    }
+
+    @Test
+    public void shouldRejectUnsupportedFilters() throws Exception {
+        expectedException.expect(CalabashException.class);
+        expectedException.expectMessage("text:'Save'");
+        snapshot.query("button text:'Save'");
+    }
+
+    private void assertLabels(String query, String... labels) throws CalabashException {
+        UIElements elements = snapshot.query(query);
+        assertEquals(query, labels.length, elements.size());
+        for (int i = 0; i < labels.length; i++)
+            assertEquals(query, labels[i], elements.get(i).getLabel());
+    }
+
+    private String classOf(String query, int index) throws CalabashException {
+        return snapshot.query(query).get(index).getElementClass();
+    }
+
+    private static Map<String, Object> view(String elementClass, String id, String label, String address) {
+        Map<String, Object> element = InMemoryTransport.element(elementClass, label, new Rect(0, 0, 10, 10, 5, 5));
+        element.put("id", id);
+        element.put("description", String.format("<%s: %s>", elementClass, address));
+        return element;
+    }
+}
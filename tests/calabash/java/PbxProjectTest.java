@@ -0,0 +1,94 @@
+package calabash.java;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PbxProjectTest {
+
+    private static final String PROJECT = "// !$*UTF8*$!\n"
+            + "{\n"
+            + "\tarchiveVersion = 1;\n"
+            + "\tclasses = {\n"
+            + "\t};\n"
+            + "\tobjectVersion = 46;\n"
+            + "\tobjects = {\n"
+            + "\n"
+            + "/* Begin PBXFileReference section */\n"
+            + "\t\t1D6058910D05DD3D006BFB54 /* Sample.app */ = {isa = PBXFileReference; explicitFileType = wrapper.application; path = Sample.app; sourceTree = BUILT_PRODUCTS_DIR; };\n"
+            + "\t\t28AD733E0D9D9553002E5188 /* Main.xib */ = {isa = PBXFileReference; lastKnownFileType = file.xib; name = \"Main \\\"window\\\".xib\"; path = /tmp/Main.xib; sourceTree = \"<group>\"; };\n"
+            + "/* End PBXFileReference section */\n"
+            + "\n"
+            + "\t\t1D6058900D05DD3D006BFB54 /* Sample */ = {\n"
+            + "\t\t\tisa = PBXNativeTarget;\n"
+            + "\t\t\tbuildPhases = (\n"
+            + "\t\t\t);\n"
+            + "\t\t\tname = Sample;\n"
+            + "\t\t\tproductReference = 1D6058910D05DD3D006BFB54 /* Sample.app */;\n"
+            + "\t\t};\n"
+            + "\t\t1D6058920D05DD3D006BFB55 /* Sample Tests */ = {\n"
+            + "\t\t\tisa = PBXNativeTarget;\n"
+            + "\t\t\tname = \"Sample Tests\";\n"
+            + "\t\t};\n"
+            + "\t\t29B97313FDCFA39411CA2CEA /* Project object */ = {\n"
+            + "\t\t\tisa = PBXProject;\n"
+            + "\t\t\tbuildConfigurationList = C01FCF4E08A954540054247B /* Build configuration list for PBXProject \"Sample\" */;\n"
+            + "\t\t\ttargets = (\n"
+            + "\t\t\t\t1D6058900D05DD3D006BFB54 /* Sample */,\n"
+            + "\t\t\t\t1D6058920D05DD3D006BFB55 /* Sample Tests */,\n"
+            + "\t\t\t);\n"
+            + "\t\t};\n"
+            + "\t\tC01FCF4E08A954540054247B = {\n"
+            + "\t\t\tisa = XCConfigurationList;\n"
+            + "\t\t\tbuildConfigurations = (\n"
+            + "\t\t\t\tC01FCF4F08A954540054247B /* Debug */,\n"
+            + "\t\t\t\tC01FCF5008A954540054247B /* Release */,\n"
+            + "\t\t\t);\n"
+            + "\t\t};\n"
+            + "\t\tC01FCF4F08A954540054247B = {isa = XCBuildConfiguration; buildSettings = {SDKROOT = iphoneos; }; name = Debug; };\n"
+            + "\t\tC01FCF5008A954540054247B = {isa = XCBuildConfiguration; buildSettings = {}; name = Release; };\n"
+            + "\t};\n"
+            + "\trootObject = 29B97313FDCFA39411CA2CEA /* Project object */;\n"
+            + "}\n";
+
+    @Test
+    public void shouldReadTargetsAndBuildConfigurations() throws Exception {
+        PbxProject project = PbxProject.parse(new StringReader(PROJECT), "test");
+        assertEquals(Arrays.asList("Sample", "Sample Tests"), project.getTargets());
+        assertEquals(Arrays.asList("Debug", "Release"), project.getBuildConfigurations());
+        assertFalse(project.hasCalabashFramework());
+    }
+
+    @Test
+    public void shouldFindCalabashFrameworkReference() throws Exception {
+        String withCalabash = PROJECT.replace("/* End PBXFileReference section */",
+                "\t\t5B0E5EF0D8E4D0F4C0E1F2A3 /* calabash.framework */ = {isa = PBXFileReference; path = calabash.framework; sourceTree = \"<group>\"; };\n"
+                        + "/* End PBXFileReference section */");
+        File file = File.createTempFile("calabash", ".pbxproj");
+        try {
+            FileUtils.writeStringToFile(file, withCalabash, "UTF-8");
+            assertTrue(PbxProject.parse(file).hasCalabashFramework());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void shouldReportLineOfSyntaxErrors() throws Exception {
+        try {
+            PbxProject.parse(new StringReader("{\n\ta = b;\n\tc = ;\n}"), "broken");
+        } catch (CalabashException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("line 3"));
+            return;
+        }
+        fail("Expected a parse error");
+    }
+}
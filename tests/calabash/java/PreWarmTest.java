@@ -0,0 +1,114 @@
+package calabash.java;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PreWarmTest {
+
+    private static final String PROJECT = "// !$*UTF8*$!\n"
+            + "{\n"
+            + "\tobjects = {\n"
+            + "\t\t5B0E5EF0D8E4D0F4C0E1F2A3 /* calabash.framework */ = {isa = PBXFileReference; path = calabash.framework; sourceTree = \"<group>\"; };\n"
+            + "\t};\n"
+            + "}\n";
+
+    // Loading is slow so that start() gets to wait for the pre-warm thread.
+    // The first load fails while the marker file exists
+    private static final String STUB_GEM = "require 'java'\n"
+            + "if File.exist?('%1$s')\n"
+            + "  File.delete('%1$s')\n"
+            + "  raise 'simulated load failure'\n"
+            + "end\n"
+            + "sleep 0.5\n"
+            + "$cj_load_thread = java.lang.Thread.currentThread.getName\n"
+            + "module Calabash\n"
+            + "  module Cucumber\n"
+            + "    module Core\n"
+            + "      def query(q, *args)\n"
+            + "        [{'label' => q, 'thread' => $cj_load_thread}]\n"
+            + "      end\n"
+            + "    end\n"
+            + "    module Operations; end\n"
+            + "  end\n"
+            + "end\n";
+
+    private File tempDir;
+    private File failureMarker;
+    private ClassLoader contextClassLoader;
+    private CalabashRunner runner;
+
+    @Before
+    public void setup() throws Exception {
+        tempDir = File.createTempFile("calabash-prewarm", "");
+        tempDir.delete();
+        failureMarker = new File(tempDir, "fail-first-load");
+
+        File classes = new File(tempDir, "classes");
+        File lib = new File(classes, "scripts/bundle/gems/calabash-cucumber-stub/lib");
+        FileUtils.writeStringToFile(new File(classes, "scripts/bundle/launcher.rb"), "");
+        FileUtils.writeStringToFile(new File(lib, "calabash-cucumber/launcher.rb"), "");
+        FileUtils.writeStringToFile(new File(lib, "calabash-cucumber.rb"),
+                String.format(STUB_GEM, failureMarker.getAbsolutePath()));
+        FileUtils.writeStringToFile(new File(tempDir, "project/Sample.xcodeproj/project.pbxproj"), PROJECT);
+
+        contextClassLoader = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(
+                new URLClassLoader(new URL[]{classes.toURI().toURL()}, contextClassLoader));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Thread.currentThread().setContextClassLoader(contextClassLoader);
+        if (runner != null)
+            runner.getCalabashWrapper().dispose();
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void shouldLoadCalabashOnPreWarmThreadBeforeStarting() throws Exception {
+        runner = new CalabashRunner(new File(tempDir, "project").getAbsolutePath(), configuration());
+        runner.start();
+
+        assertEquals("calabash-prewarm", queriedElement().get("thread"));
+        assertEquals("calabash-prewarm",
+                runner.getStartupProfile().getPhase(StartupProfile.REQUIRE_CALABASH).getThreadName());
+    }
+
+    @Test
+    public void shouldLogFailedPreWarmAndLoadAgainWhenNeeded() throws Exception {
+        FileUtils.writeStringToFile(failureMarker, "");
+        CalabashConfiguration configuration = configuration();
+        configuration.setLogsDirectory(tempDir);
+        runner = new CalabashRunner(new File(tempDir, "project").getAbsolutePath(), configuration);
+        runner.start();
+
+        String log = FileUtils.readFileToString(new File(tempDir, "calabash-ios-java.log"));
+        assertTrue(log.contains("Pre-warming calabash failed"));
+        assertTrue(log.contains("simulated load failure"));
+
+        assertFalse(failureMarker.exists());
+        assertEquals(Thread.currentThread().getName(), queriedElement().get("thread"));
+    }
+
+    private CalabashConfiguration configuration() {
+        CalabashConfiguration configuration = new CalabashConfiguration();
+        configuration.setLoadGemsFromClasspath(true);
+        configuration.setPreWarm(true);
+        return configuration;
+    }
+
+    private Map<?, ?> queriedElement() throws Exception {
+        return (Map<?, ?>) runner.getCalabashWrapper().query("button").get(0);
+    }
+}
@@ -0,0 +1,98 @@
+package calabash.java;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class PrecompiledGemsTest {
+
+    private File tempDir;
+    private File scriptsDir;
+    private CalabashWrapper wrapper;
+
+    @Before
+    public void setup() throws Exception {
+        tempDir = File.createTempFile("calabash-precompiled", "");
+        tempDir.delete();
+        tempDir.mkdir();
+
+        scriptsDir = new File(tempDir, "scripts");
+        FileUtils.writeStringToFile(new File(scriptsDir, "gems/calabash-cucumber-stub/lib/calabash-cucumber.rb"),
+                stubGem("source"));
+        FileUtils.writeStringToFile(new File(scriptsDir, "gems/calabash-cucumber-stub/resources/version.txt"), "1.0");
+
+        // Compiled from a different source so that the test can tell which one was loaded
+        File compileDir = new File(tempDir, "compile");
+        FileUtils.writeStringToFile(new File(compileDir, "gems/calabash-cucumber-stub/lib/calabash-cucumber.rb"),
+                stubGem("compiled"));
+        File aotDir = new File(scriptsDir, "aot");
+        aotDir.mkdirs();
+
+        // Same as the -compile-gems target in build.xml, which compiles only the lib directory of each gem
+        Process jrubyc = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getAbsolutePath(),
+                "-cp", System.getProperty("java.class.path"), "org.jruby.Main", "-S", "jrubyc",
+                "-t", aotDir.getAbsolutePath(), "gems/calabash-cucumber-stub/lib")
+                .directory(compileDir).redirectErrorStream(true).start();
+        IOUtils.toString(jrubyc.getInputStream());
+        assertEquals(0, jrubyc.waitFor());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (wrapper != null)
+            wrapper.dispose();
+        FileUtils.deleteDirectory(tempDir);
+    }
+
+    @Test
+    public void shouldLoadCompiledGemsWhenEnabled() throws Exception {
+        CalabashConfiguration configuration = new CalabashConfiguration();
+        configuration.setPrecompiledGems(true);
+        configuration.setJRubyCompileMode(JRubyCompileMode.FORCE);
+        wrapper = new CalabashWrapper(scriptsDir, tempDir, configuration);
+
+        Map<?, ?> element = (Map<?, ?>) wrapper.query("button").get(0);
+        assertEquals("compiled", element.get("label"));
+    }
+
+    @Test
+    public void shouldResolveFileOfCompiledScriptsToSources() throws Exception {
+        CalabashConfiguration configuration = new CalabashConfiguration();
+        configuration.setPrecompiledGems(true);
+        wrapper = new CalabashWrapper(scriptsDir, tempDir, configuration);
+
+        Map<?, ?> element = (Map<?, ?>) wrapper.query("button").get(0);
+        assertEquals("compiled", element.get("label"));
+        assertEquals(new File(scriptsDir, "gems/calabash-cucumber-stub/lib").getAbsolutePath(), element.get("dir"));
+        assertEquals("1.0", element.get("version"));
+    }
+
+    @Test
+    public void shouldLoadSourceByDefault() throws Exception {
+        wrapper = new CalabashWrapper(scriptsDir, tempDir, new CalabashConfiguration());
+
+        Map<?, ?> element = (Map<?, ?>) wrapper.query("button").get(0);
+        assertEquals("source", element.get("label"));
+    }
+
+    private static String stubGem(String label) {
+        return "module Calabash\n"
+                + "  module Cucumber\n"
+                + "    module Core\n"
+                + "      def query(q, *args)\n"
+                + "        dir = File.dirname(__FILE__)\n"
+                + "        version = File.read(File.expand_path('../resources/version.txt', dir))\n"
+                + "        [{'label' => '" + label + "', 'dir' => dir, 'version' => version}]\n"
+                + "      end\n"
+                + "    end\n"
+                + "  end\n"
+                + "end\n";
+    }
+}
@@ -0,0 +1,60 @@
+package calabash.java;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class QueryConditionTest {
+
+    @Test
+    public void shouldCountMatchedViews() {
+        QueryCondition condition = QueryCondition.count("tableViewCell", 2);
+
+        assertEquals("isHidden", condition.getSelector());
+        assertTrue(condition.test(Arrays.asList(0, 0)));
+        assertFalse(condition.test(Arrays.asList(0, 0, 1)));
+        assertFalse(condition.test(null));
+        assertTrue(QueryCondition.notExists("button").test(Collections.emptyList()));
+        assertTrue(QueryCondition.exists("button").test(Arrays.asList(1)));
+    }
+
+    @Test
+    public void shouldCompareProperties() {
+        assertTrue(QueryCondition.propertyEquals("label", "text", "Done").test(Arrays.asList("Loading", "Done")));
+        assertFalse(QueryCondition.propertyEquals("label", "text", "Done").test(Arrays.asList("Done!")));
+        assertTrue(QueryCondition.propertyEquals("slider", "value", 5).test(Arrays.asList(5L)));
+        assertTrue(QueryCondition.propertyContains("label", "text", "items").test(Arrays.asList("20 items")));
+        assertFalse(QueryCondition.propertyContains("label", "text", "items").test(null));
+    }
+
+    @Test
+    public void shouldRequireAllMatchedViewsEnabled() {
+        QueryCondition condition = QueryCondition.enabled("button");
+
+        assertTrue(condition.test(Arrays.asList(1, true)));
+        assertFalse(condition.test(Arrays.asList(1, 0)));
+        assertFalse(condition.test(Arrays.asList("*****")));
+        assertFalse(condition.test(Collections.emptyList()));
+    }
+
+    @Test
+    public void shouldWaitUsingSelectorOnly() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        IOSApplication application = new IOSApplication(transport);
+        transport.setQueryResult("tableViewCell", "isHidden", Arrays.asList(0, 0, 0));
+        transport.setQueryResult("button", "isEnabled", Arrays.asList(1));
+
+        application.waitFor(QueryCondition.count("tableViewCell", 3));
+        application.waitFor(QueryCondition.enabled("button"));
+
+        try {
+            application.waitFor(QueryCondition.count("tableViewCell", 20), new WaitOptions(0, 0, 0, "not loaded", false));
+            fail("Expected timeout");
+        } catch (OperationTimedoutException e) {
+            assertEquals("not loaded", e.getMessage());
+        }
+    }
+}
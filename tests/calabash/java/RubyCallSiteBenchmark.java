@@ -0,0 +1,115 @@
+package calabash.java;
+
+import org.apache.commons.io.FileUtils;
+import org.jruby.embed.LocalContextScope;
+import org.jruby.embed.LocalVariableBehavior;
+import org.jruby.embed.ScriptingContainer;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures the per call overhead of the Ruby bridge for query and touch.
+ * waitFor is not measured as its polling loop runs in Java. A stub calabash-cucumber gem is used so that no simulator is
+ * required and only the cost of the JRuby call is measured.
+ * <p>
+ * "uncached" parses the snippet on every call like runScriptlet does.
+ * "cached" goes through CalabashWrapper which parses each snippet once.
+ */
+public class RubyCallSiteBenchmark {
+
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 50000;
+
+    private static final String STUB_GEM = "module Calabash\n"
+            + "  module Cucumber\n"
+            + "    module Core\n"
+            + "      def query(q, *args)\n"
+            + "        [{'class' => 'UIButton', 'label' => q}]\n"
+            + "      end\n"
+            + "      def touch(q)\n"
+            + "        nil\n"
+            + "      end\n"
+            + "    end\n"
+            + "    module Operations\n"
+            + "    end\n"
+            + "  end\n"
+            + "end\n";
+
+    public static void main(String[] args) throws Exception {
+        File scriptsDir = createStubGems();
+        try {
+            CalabashConfiguration configuration = new CalabashConfiguration();
+            configuration.setPauseTime(0);
+            final CalabashWrapper wrapper = new CalabashWrapper(scriptsDir, scriptsDir, configuration);
+            final ScriptingContainer container = createUncachedContainer(scriptsDir);
+
+            report("query", new Operation() {
+                public void run(int i) throws Exception {
+                    container.put("cjQueryString", "button index:" + (i % 10));
+                    container.runScriptlet("query(cjQueryString)");
+                }
+            }, new Operation() {
+                public void run(int i) throws Exception {
+                    wrapper.query("button index:" + (i % 10));
+                }
+            });
+
+            report("touch", new Operation() {
+                public void run(int i) throws Exception {
+                    container.put("cjQueryString", "button index:" + (i % 10));
+                    container.runScriptlet("touch(cjQueryString)");
+                }
+            }, new Operation() {
+                public void run(int i) throws Exception {
+                    wrapper.touch("button index:" + (i % 10));
+                }
+            });
+
+            wrapper.dispose();
+            container.terminate();
+        } finally {
+            FileUtils.deleteDirectory(scriptsDir);
+        }
+    }
+
+    private static ScriptingContainer createUncachedContainer(File scriptsDir) {
+        ScriptingContainer container = new ScriptingContainer(LocalContextScope.SINGLETHREAD,
+                LocalVariableBehavior.PERSISTENT);
+        container.getLoadPaths().add(new File(scriptsDir, "gems/calabash-cucumber-stub/lib").getAbsolutePath());
+        container.runScriptlet("require 'calabash-cucumber'\n"
+                + "include Calabash::Cucumber::Core\n"
+                + "include Calabash::Cucumber::Operations\n");
+        return container;
+    }
+
+    private static File createStubGems() throws IOException {
+        File tempFile = File.createTempFile("calabash-benchmark", "");
+        tempFile.delete();
+        File lib = new File(tempFile, "gems/calabash-cucumber-stub/lib");
+        lib.mkdirs();
+        FileUtils.writeStringToFile(new File(lib, "calabash-cucumber.rb"), STUB_GEM);
+        return tempFile;
+    }
+
+    private static void report(String name, Operation uncached, Operation cached) throws Exception {
+        double before = measure(uncached);
+        double after = measure(cached);
+        System.out.println(String.format("%-8s uncached: %8.2f us/call, cached: %8.2f us/call", name, before, after));
+    }
+
+    private static double measure(Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            operation.run(i);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            operation.run(i);
+        }
+        return (System.nanoTime() - start) / 1000.0 / ITERATIONS;
+    }
+
+    private interface Operation {
+        void run(int i) throws Exception;
+    }
+}
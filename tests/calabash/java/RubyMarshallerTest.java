@@ -0,0 +1,63 @@
+package calabash.java;
+
+import calabash.java.SwipeOptions.Force;
+import calabash.java.SwipeOptions.SwipeDelta;
+import org.jruby.Ruby;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RubyMarshallerTest {
+
+    private static Ruby runtime;
+    private static RubyMarshaller marshaller;
+
+    @BeforeClass
+    public static void setup() {
+        runtime = Ruby.newInstance();
+        marshaller = new RubyMarshaller(runtime);
+    }
+
+    @Test
+    public void shouldMarshalSwipeOptionsWithQuery() {
+        SwipeOptions options = new SwipeOptions(Force.Strong, new SwipeDelta(new Offset(10, 20), new Offset(-5, 0)));
+
+        assertRubyEquals("{:force => :strong, 'swipe-delta' => {:horizontal => {:dx => 10, :dy => 20}, "
+                + ":vertical => {:dx => -5, :dy => 0}}, :query => 'view'}", marshaller.toHash(options, "view"));
+    }
+
+    @Test
+    public void shouldMarshalSameHashAsSwipeOptionsSource() {
+        SwipeOptions options = new SwipeOptions(Force.Light, new SwipeDelta(null, new Offset(1, 2)));
+
+        assertRubyEquals(options.toString(), marshaller.toHash(options, null));
+        assertRubyEquals("{:query => 'view'}", marshaller.toHash((SwipeOptions) null, "view"));
+    }
+
+    @Test
+    public void shouldMarshalScrollOptions() {
+        ScrollOptions options = new ScrollOptions(3, 1);
+        options.setDirection(Direction.UP);
+        options.setAnimate(false);
+
+        assertRubyEquals("{:query => 'tableView', :row => 3, :section => 1, :scroll_position => :up, :animate => false}",
+                marshaller.toHash("tableView", options));
+        assertRubyEquals("{:query => 'tableView'}", marshaller.toHash("tableView", (ScrollOptions) null));
+    }
+
+    @Test
+    public void shouldMarshalPlaybackOptions() {
+        assertRubyEquals("{:query => 'button', :offset => {:x => 4, :y => 5}}",
+                marshaller.toPlaybackHash("button", new Offset(4, 5)));
+        assertRubyEquals("{}", marshaller.toPlaybackHash(null, null));
+        assertRubyEquals("{}", marshaller.toSymbolHash("query", null));
+    }
+
+    private void assertRubyEquals(String expectedSource, IRubyObject actual) {
+        IRubyObject expected = runtime.evalScriptlet(expectedSource);
+        assertEquals(expected.inspect().toString(), actual.inspect().toString());
+        assertEquals(expected, actual);
+    }
+}
@@ -0,0 +1,42 @@
+package calabash.java;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SettleDetectorTest {
+
+    private InMemoryTransport transport;
+    private SettleDetector detector;
+
+    @Before
+    public void setup() {
+        transport = new InMemoryTransport();
+        transport.setQueryResult(SettleDetector.HIERARCHY_QUERY,
+                InMemoryTransport.element("UIButton", "Login", new Rect(0, 0, 100, 40, 50, 20)));
+        detector = new SettleDetector(transport, 10);
+    }
+
+    @Test
+    public void shouldReturnAsSoonAsHierarchyIsStable() {
+        long start = System.currentTimeMillis();
+        assertTrue(detector.awaitSettled(5000));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    @Test
+    public void shouldWaitTillUpperBoundWhileAnimating() {
+        transport.setQueryResult(SettleDetector.ANIMATING_QUERY, InMemoryTransport.element("UIView", null, null));
+
+        long start = System.nanoTime();
+        assertFalse(detector.awaitSettled(200));
+        assertTrue(System.nanoTime() - start >= 200 * 1000000L);
+    }
+
+    @Test
+    public void shouldNotWaitWhenUpperBoundIsZero() {
+        assertFalse(detector.awaitSettled(0));
+    }
+}
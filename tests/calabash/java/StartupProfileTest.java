@@ -0,0 +1,74 @@
+package calabash.java;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StartupProfileTest {
+
+    @Test
+    public void shouldRecordWallTimeAndAllocationsOfPhases() throws Exception {
+        StartupProfile profile = new StartupProfile();
+        StartupProfile.Measurement measurement = profile.begin(StartupProfile.EXTRACT_GEMS);
+        byte[][] garbage = new byte[64][];
+        for (int i = 0; i < garbage.length; i++)
+            garbage[i] = new byte[16 * 1024];
+        Thread.sleep(20);
+        measurement.end();
+
+        StartupProfile.Phase phase = profile.getPhase(StartupProfile.EXTRACT_GEMS);
+        assertNotNull(phase);
+        assertTrue(phase.getDurationInMs() >= 20);
+        assertTrue(phase.getAllocatedBytes() >= garbage.length * 16 * 1024);
+        assertEquals(Thread.currentThread().getName(), phase.getThreadName());
+        assertTrue(profile.getElapsedTimeInMs() >= phase.getDurationInMs());
+        assertNull(profile.getPhase(StartupProfile.LAUNCH));
+    }
+
+    @Test
+    public void shouldReportPhasesAsJson() throws Exception {
+        StartupProfile profile = new StartupProfile();
+        profile.begin(StartupProfile.CREATE_RUNTIME).end();
+        profile.begin(StartupProfile.BOOT_JRUBY).end();
+
+        List<?> report = (List<?>) Json.parse(profile.toJson());
+        assertEquals(2, report.size());
+        Map<?, ?> boot = (Map<?, ?>) report.get(1);
+        assertEquals(StartupProfile.BOOT_JRUBY, boot.get("name"));
+        assertTrue(boot.containsKey("durationInMs"));
+        assertTrue(boot.containsKey("allocatedBytes"));
+        assertTrue(profile.toString().contains(StartupProfile.BOOT_JRUBY));
+    }
+
+    @Test
+    public void shouldRecordRuntimePhasesOfWrapper() throws Exception {
+        File tempDir = File.createTempFile("calabash-startup", "");
+        tempDir.delete();
+        File scriptsDir = new File(tempDir, "scripts");
+        FileUtils.writeStringToFile(new File(scriptsDir, "gems/calabash-cucumber-stub/lib/calabash-cucumber.rb"),
+                "module Calabash; module Cucumber; module Core; end; module Operations; end; end; end\n");
+        CalabashWrapper wrapper = new CalabashWrapper(scriptsDir, tempDir, null);
+        try {
+            StartupProfile profile = new StartupProfile();
+            wrapper.setStartupProfile(profile);
+            wrapper.preload();
+            wrapper.preload();
+
+            List<StartupProfile.Phase> phases = profile.getPhases();
+            assertEquals(2, phases.size());
+            assertEquals(StartupProfile.BOOT_JRUBY, phases.get(0).getName());
+            assertEquals(StartupProfile.REQUIRE_CALABASH, phases.get(1).getName());
+        } finally {
+            wrapper.dispose();
+            FileUtils.deleteDirectory(tempDir);
+        }
+    }
+}
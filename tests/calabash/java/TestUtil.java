@@ -43,7 +43,7 @@ public class TestUtil {
     public static String extractApp(String appName) throws IOException, CalabashException {
         File tempDir = createTempDir("TestIOSApps");
         File iosApp = new File("tests/resources", appName + ".zip");
-        Utils.unzip(iosApp, tempDir);
+        GemExtractor.unzip(iosApp, tempDir);
         File conf = new File("tests/resources", "cal.xcconfig");
         FileUtils.copyFileToDirectory(conf, new File(tempDir, appName));
         return String.format("%s/%s", tempDir.getAbsolutePath(), appName);
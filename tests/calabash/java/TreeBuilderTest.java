@@ -0,0 +1,172 @@
+package calabash.java;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TreeBuilderTest {
+
+    private InMemoryTransport transport;
+
+    @Before
+    public void setup() {
+        transport = new InMemoryTransport();
+    }
+
+    @Test
+    public void shouldLinkSnapshotUsingSuperviews() throws Exception {
+        transport.setQueryResult("*",
+                view("UIWindow", "0x1", 0),
+                view("UIView", "0x2", 1),
+                view("UIButton", "0x3", 2),
+                view("UILabel", "0x4", 3),
+                view("UIWindow", "0x5", 4));
+        transport.setQueryResult("*", "superview",
+                Arrays.asList(null, "<UIWindow: 0x1; frame = (0 0; 320 480)>", "<UIView: 0x2>", "<UIView: 0x2>", null));
+
+        List<TreeNode> roots = new TreeBuilder(transport).createTreeFromRoot();
+
+        assertEquals(2, roots.size());
+        TreeNode window = roots.get(0);
+        assertEquals("* index:0", window.getData().getQuery());
+        assertEquals(1, window.getChildren().size());
+        TreeNode view = window.getChildren().get(0);
+        assertEquals("UIView", view.getData().getElementClass());
+        assertEquals(2, view.getChildren().size());
+        assertEquals("UIButton", view.getChildren().get(0).getData().getElementClass());
+        assertEquals("* index:3", view.getChildren().get(1).getData().getQuery());
+        assertEquals("* index:4", roots.get(1).getData().getQuery());
+    }
+
+    @Test
+    public void shouldQueryAncestorsWhenScreenChangedDuringSnapshot() throws Exception {
+        transport.setQueryResult("*",
+                view("UIWindow", "0x1", 0),
+                view("UIView", "0x2", 1),
+                view("UIButton", "0x3", 2));
+        transport.setQueryResult("*", "superview",
+                Arrays.asList(null, "<UIWindow: 0x1>", "<UIView: 0x2>"));
+        // Same number of elements, but a different view took the place of the button
+        transport.setQueryResult("*", "description",
+                Arrays.asList("<UIWindow: 0x1>", "<UIView: 0x2>", "<UILabel: 0x9>"));
+        transport.setQueryResult("* index:2 parent *", view("UIView", "0x2", 1), view("UIWindow", "0x1", 0));
+        transport.setQueryResult("* index:1 parent *", view("UIWindow", "0x1", 0));
+
+        List<TreeNode> roots = new TreeBuilder(transport).createTreeFromRoot();
+
+        assertEquals(1, roots.size());
+        TreeNode view = roots.get(0).getChildren().get(0);
+        assertEquals("* index:2 parent * index:0", view.getData().getQuery());
+        assertEquals("* index:2", view.getChildren().get(0).getData().getQuery());
+    }
+
+    @Test
+    public void shouldLinkDescendantsToRoot() throws Exception {
+        UIElement root = new UIElement(view("UIView", "0x2", 1), "view index:0", transport);
+        transport.setQueryResult("view index:0 descendant *",
+                view("UIButton", "0x3", 2),
+                view("UILabel", "0x4", 3));
+        transport.setQueryResult("view index:0 descendant *", "superview",
+                Arrays.asList("<UIView: 0x2>", "<UIButton: 0x3>"));
+
+        TreeNode tree = new TreeBuilder(transport).createTreeFrom(root);
+
+        assertSame(root, tree.getData());
+        assertEquals(1, tree.getChildren().size());
+        TreeNode button = tree.getChildren().get(0);
+        assertEquals("view index:0 descendant * index:0", button.getData().getQuery());
+        assertEquals("UILabel", button.getChildren().get(0).getData().getElementClass());
+    }
+
+    @Test
+    public void shouldMergeAncestorChains() throws Exception {
+        UIElement window = new UIElement(view("UIWindow", "0x1", 0), "window", transport);
+        UIElement view = new UIElement(view("UIView", "0x2", 1), "view", transport);
+        UIElement button = new UIElement(view("UIButton", "0x3", 2), "button", transport);
+        UIElement label = new UIElement(view("UILabel", "0x4", 3), "label", transport);
+        UIElement otherWindow = new UIElement(view("UIWindow", "0x5", 4), "other window", transport);
+
+        TreeBuilder builder = new TreeBuilder(transport);
+        builder.merge(new ArrayList<UIElement>(Arrays.asList(button, view, window)));
+        builder.merge(new ArrayList<UIElement>(Arrays.asList(label, view, window)));
+        builder.merge(new ArrayList<UIElement>(Arrays.asList(otherWindow)));
+
+        List<TreeNode> roots = builder.getRoots();
+        assertEquals(2, roots.size());
+        assertSame(otherWindow, roots.get(0).getData());
+        assertSame(window, roots.get(1).getData());
+        assertEquals(1, roots.get(1).getChildren().size());
+        TreeNode viewNode = roots.get(1).getChildren().get(0);
+        assertSame(view, viewNode.getData());
+        assertEquals(2, viewNode.getChildren().size());
+        assertSame(label, viewNode.getChildren().get(0).getData());
+        assertSame(button, viewNode.getChildren().get(1).getData());
+    }
+
+    @Test
+    public void shouldMergeIntoLinkedSnapshot() throws Exception {
+        transport.setQueryResult("*",
+                view("UIWindow", "0x1", 0),
+                view("UIView", "0x2", 1),
+                view("UIButton", "0x3", 2));
+        transport.setQueryResult("*", "superview",
+                Arrays.asList(null, "<UIWindow: 0x1>", "<UIView: 0x2>"));
+        TreeBuilder builder = new TreeBuilder(transport);
+        builder.createTreeFromRoot();
+
+        UIElement window = new UIElement(view("UIWindow", "0x1", 0), "window", transport);
+        UIElement view = new UIElement(view("UIView", "0x2", 1), "view", transport);
+        UIElement label = new UIElement(view("UILabel", "0x4", 3), "label", transport);
+        builder.merge(new ArrayList<UIElement>(Arrays.asList(label, view, window)));
+
+        List<TreeNode> roots = builder.getRoots();
+        assertEquals(1, roots.size());
+        assertEquals(1, roots.get(0).getChildren().size());
+        TreeNode viewNode = roots.get(0).getChildren().get(0);
+        assertEquals(2, viewNode.getChildren().size());
+        assertSame(label, viewNode.getChildren().get(0).getData());
+        assertEquals("UIButton", viewNode.getChildren().get(1).getData().getElementClass());
+    }
+
+    @Test
+    public void shouldKeepCompactSnapshot() throws Exception {
+        transport.setQueryResult("*",
+                view("UIWindow", "0x1", 0),
+                view("UIView", "0x2", 1),
+                view("UIButton", "0x3", 2),
+                view("UILabel", "0x4", 3));
+        transport.setQueryResult("*", "superview",
+                Arrays.asList(null, "<UIWindow: 0x1>", "<UIView: 0x2>", "<UIView: 0x2>"));
+        List<TreeNode> tree = new TreeBuilder(transport).createTreeFromRoot();
+
+        TreeSnapshot snapshot = new IOSApplication(transport).getTreeSnapshot();
+
+        assertEquals(4, snapshot.size());
+        assertEquals(-1, snapshot.getParent(0));
+        assertEquals(1, snapshot.getParent(2));
+        assertEquals(2, snapshot.getDepth(3));
+        assertArrayEquals(new int[]{2, 3}, snapshot.getChildren(1));
+        assertEquals("UIButton", snapshot.getElementClass(2));
+        assertEquals("* index:3", snapshot.getQuery(3));
+
+        TreeNode window = snapshot.getRoots().get(0);
+        TreeNode view = window.getChildren().get(0);
+        assertEquals(tree.get(0).getData(), window.getData());
+        assertEquals(tree.get(0).getChildren().get(0).getData(), view.getData());
+        assertEquals(new Rect(2, 2, 10, 10, 7, 7), view.getChildren().get(0).getData().getRect());
+        assertEquals("UILabel", view.getChildren().get(1).getData().getElementClass());
+    }
+
+    private static Map<String, Object> view(String elementClass, String address, int position) {
+        Map<String, Object> element = InMemoryTransport.element(elementClass, null,
+                new Rect(position, position, 10, 10, position + 5, position + 5));
+        element.put("description", String.format("<%s: %s; frame = (0 0; 10 10)>", elementClass, address));
+        return element;
+    }
+}
@@ -0,0 +1,144 @@
+package calabash.java;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Measures building a tree by merging ancestor chains for synthetic
+ * hierarchies of 1k, 10k and 50k nodes, with a narrow and a wide fan out.
+ * Chains are merged in the order TreeBuilder processes the query results,
+ * skipping the elements already merged.
+ * <p>
+ * "linear" is the sibling scan TreeBuilder used before elements were
+ * indexed. "indexed" is {@link TreeBuilder#merge(List)}.
+ */
+public class TreeMergeBenchmark {
+
+    private static final int[] SIZES = {1000, 10000, 50000};
+    private static final int[] FAN_OUTS = {4, 32};
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) {
+        for (int fanOut : FAN_OUTS) {
+            for (int size : SIZES) {
+                List<List<UIElement>> chains = createChains(size, fanOut);
+                double linear = Double.MAX_VALUE;
+                double indexed = Double.MAX_VALUE;
+                for (int run = 0; run < RUNS; run++) {
+                    linear = Math.min(linear, measureLinear(chains));
+                    indexed = Math.min(indexed, measureIndexed(chains));
+                }
+                System.out.println(String.format("%6d nodes, fan out %2d  linear: %9.2f ms, indexed: %9.2f ms",
+                        size, fanOut, linear, indexed));
+            }
+        }
+    }
+
+    private static double measureLinear(List<List<UIElement>> chains) {
+        long start = System.nanoTime();
+        LinearMerge merge = new LinearMerge();
+        Set<UIElement> inspected = new HashSet<UIElement>();
+        for (List<UIElement> chain : chains) {
+            if (inspected.contains(chain.get(0)))
+                continue;
+            List<UIElement> copy = new ArrayList<UIElement>(chain);
+            merge.merge(copy);
+            inspected.addAll(copy);
+        }
+        return (System.nanoTime() - start) / 1000000.0;
+    }
+
+    private static double measureIndexed(List<List<UIElement>> chains) {
+        long start = System.nanoTime();
+        TreeBuilder builder = new TreeBuilder(null);
+        Set<ElementSnapshot> inspected = new HashSet<ElementSnapshot>();
+        for (List<UIElement> chain : chains) {
+            if (inspected.contains(chain.get(0).getSnapshot()))
+                continue;
+            List<UIElement> copy = new ArrayList<UIElement>(chain);
+            builder.merge(copy);
+            for (UIElement element : copy)
+                inspected.add(element.getSnapshot());
+        }
+        return (System.nanoTime() - start) / 1000000.0;
+    }
+
+    /**
+     * Creates the ancestor chain, from the element to the root, for every
+     * node. Chains are ordered like TreeBuilder walks the query results,
+     * from the last element to the first.
+     */
+    private static List<List<UIElement>> createChains(int size, int fanOut) {
+        UIElement[] elements = new UIElement[size];
+        for (int i = 0; i < size; i++) {
+            Map<String, Object> data = InMemoryTransport.element("UIView" + (i % 7), "view " + i,
+                    new Rect(i % 320, i / 320, 10 + i % 50, 10 + i % 40, i % 320 + 5, i / 320 + 5));
+            elements[i] = new UIElement(data, "* index:" + i, null);
+        }
+
+        List<List<UIElement>> chains = new ArrayList<List<UIElement>>();
+        for (int i = size - 1; i >= 0; i--) {
+            List<UIElement> chain = new ArrayList<UIElement>();
+            for (int node = i; node > 0; node = (node - 1) / fanOut)
+                chain.add(elements[node]);
+            chain.add(elements[0]);
+            chains.add(chain);
+        }
+        return chains;
+    }
+
+    private static class LinearMerge {
+        private final List<TreeNode> roots = new ArrayList<TreeNode>();
+
+        void merge(List<UIElement> elements) {
+            Collections.reverse(elements);
+            for (TreeNode root : roots) {
+                if (tryMerge(root, elements))
+                    return;
+            }
+            roots.add(0, createBranch(elements));
+        }
+
+        private boolean tryMerge(TreeNode root, List<UIElement> elements) {
+            TreeNode current = root;
+            if (!current.getData().equals(elements.get(0)))
+                return false;
+
+            for (int i = 1; i < elements.size(); i++) {
+                int matched = matchWith(current.getChildren(), elements.get(i));
+                if (matched == -1) {
+                    current.addChild(createBranch(elements.subList(i, elements.size())));
+                    return true;
+                }
+                current = current.getChildren().get(matched);
+            }
+            return true;
+        }
+
+        private TreeNode createBranch(List<UIElement> elements) {
+            TreeNode startNode = new TreeNode();
+            TreeNode current = startNode;
+            for (int i = 0; i < elements.size(); i++) {
+                current.setData(elements.get(i));
+                if (i + 1 < elements.size()) {
+                    TreeNode childNode = new TreeNode(elements.get(i + 1));
+                    current.addChild(childNode);
+                    current = childNode;
+                }
+            }
+            return startNode;
+        }
+
+        private int matchWith(List<TreeNode> nodes, UIElement element) {
+            for (int i = 0; i < nodes.size(); i++) {
+                if (nodes.get(i).getData().equals(element))
+                    return i;
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package calabash.java;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class WaitMultiplexerTest {
+
+    private static final int WAITERS = 8;
+
+    private InMemoryTransport transport;
+    private WaitMultiplexer multiplexer;
+    private ExecutorService executor;
+
+    @Before
+    public void setup() {
+        transport = new InMemoryTransport();
+        multiplexer = new WaitMultiplexer(transport, 20, null);
+        executor = Executors.newFixedThreadPool(WAITERS);
+    }
+
+    @After
+    public void tearDown() {
+        multiplexer.shutdown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shouldServeAllWaitersWithSharedPolls() throws Exception {
+        List<Future<Long>> waits = new ArrayList<Future<Long>>();
+        for (int i = 0; i < WAITERS; i++) {
+            final String query = "label marked:'row " + i + "'";
+            waits.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    multiplexer.waitForElementsExist(new String[]{query}, options(5000));
+                    return System.nanoTime();
+                }
+            }));
+        }
+
+        Thread.sleep(200);
+        long shownAt = System.nanoTime();
+        for (int i = 0; i < WAITERS; i++)
+            transport.setQueryResult("label marked:'row " + i + "'", InMemoryTransport.element("UILabel", "row " + i, null));
+
+        for (Future<Long> wait : waits)
+            assertTrue(wait.get() >= shownAt);
+        // Every waiter polling on its own would take at least WAITERS times this
+        assertTrue(multiplexer.getPollCount() < 30);
+    }
+
+    @Test
+    public void shouldWaitForPropertyValue() throws Exception {
+        transport.setQueryResult("label", "text", Arrays.asList("Loading"));
+        Future<?> wait = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                multiplexer.waitForProperty("label", "text", "Done", options(5000));
+                return null;
+            }
+        });
+
+        Thread.sleep(60);
+        assertFalse(wait.isDone());
+        transport.setQueryResult("label", "text", Arrays.asList("Loading", "Done"));
+        wait.get();
+    }
+
+    @Test
+    public void shouldWaitForElementsToGoAway() throws Exception {
+        transport.setQueryResult("spinner", InMemoryTransport.element("UIActivityIndicatorView", null, null));
+        Future<?> wait = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                multiplexer.waitForElementsToNotExist(new String[]{"spinner"}, options(5000));
+                return null;
+            }
+        });
+
+        Thread.sleep(60);
+        assertFalse(wait.isDone());
+        transport.setQueryResult("spinner", null, Collections.emptyList());
+        wait.get();
+    }
+
+    @Test
+    public void shouldTimeoutIndependently() throws Exception {
+        transport.setQueryResult("button", InMemoryTransport.element("UIButton", "Login", null));
+        try {
+            multiplexer.waitForElementsExist(new String[]{"button", "label"},
+                    new WaitOptions(100L, 10, 10, 0, "no label", false));
+            fail("Expected timeout");
+        } catch (OperationTimedoutException e) {
+            assertEquals("no label", e.getMessage());
+        }
+
+        multiplexer.waitForElementsExist(new String[]{"button"}, options(1000));
+    }
+
+    @Test
+    public void shouldFailWaitsAndKeepPollingWhenPollThrows() throws Exception {
+        final AtomicBoolean broken = new AtomicBoolean(true);
+        ITransport failingOnce = (ITransport) Proxy.newProxyInstance(ITransport.class.getClassLoader(),
+                new Class<?>[]{ITransport.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("query") && args[0] instanceof QueryBatch
+                                && broken.getAndSet(false))
+                            throw new IllegalStateException("connection reset");
+                        try {
+                            return method.invoke(transport, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        multiplexer.shutdown();
+        multiplexer = new WaitMultiplexer(failingOnce, 20, null);
+        transport.setQueryResult("button", InMemoryTransport.element("UIButton", "Login", null));
+
+        try {
+            multiplexer.waitForElementsExist(new String[]{"button"}, options(5000));
+            fail("Expected the poll failure");
+        } catch (CalabashException e) {
+            assertTrue(e.getMessage().contains("connection reset"));
+        }
+
+        multiplexer.waitForElementsExist(new String[]{"button"}, options(1000));
+    }
+
+    @Test
+    public void shouldShutdownWhenApplicationIsDisposed() throws Exception {
+        transport.setQueryResult("button", InMemoryTransport.element("UIButton", "Login", null));
+        IOSApplication application = new IOSApplication(transport);
+        WaitMultiplexer applicationMultiplexer = application.getWaitMultiplexer();
+        applicationMultiplexer.waitForElementsExist(new String[]{"button"}, options(1000));
+
+        application.dispose();
+
+        try {
+            applicationMultiplexer.waitForElementsExist(new String[]{"button"}, options(1000));
+            fail("Expected the multiplexer to be shutdown");
+        } catch (CalabashException e) {
+            assertEquals("Wait multiplexer is shutdown", e.getMessage());
+        }
+    }
+
+    private static WaitOptions options(long timeoutInMs) {
+        return new WaitOptions(timeoutInMs, 10, 10, 0, null, false);
+    }
+}
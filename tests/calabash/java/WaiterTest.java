@@ -0,0 +1,122 @@
+package calabash.java;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WaiterTest {
+
+    private InMemoryTransport transport;
+    private Waiter waiter;
+
+    @Before
+    public void setup() {
+        transport = new InMemoryTransport();
+        waiter = new Waiter(transport, null);
+    }
+
+    @Test
+    public void shouldReturnSoonAfterConditionBecomesTrue() throws Exception {
+        final long start = System.currentTimeMillis();
+        waiter.waitFor(new ICondition() {
+            @Override
+            public boolean test() throws CalabashException {
+                return System.currentTimeMillis() - start >= 150;
+            }
+        }, new WaitOptions(5000L, 20, 200, 0, null, false));
+
+        assertTrue(System.currentTimeMillis() - start < 500);
+    }
+
+    @Test
+    public void shouldWrapFailuresOfTheCondition() throws Exception {
+        try {
+            waiter.waitFor(new ICondition() {
+                @Override
+                public boolean test() throws CalabashException {
+                    throw new IllegalStateException("broken condition");
+                }
+            }, new WaitOptions(1000L, 20, 200, 0, null, false));
+            fail("Expected the condition failure");
+        } catch (CalabashException e) {
+            assertEquals("Failed to wait for condition. broken condition", e.getMessage());
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void shouldBackOffTillMaximumRetryFrequency() throws Exception {
+        final List<Long> attempts = new ArrayList<Long>();
+        try {
+            waiter.waitFor(new ICondition() {
+                @Override
+                public boolean test() throws CalabashException {
+                    attempts.add(System.nanoTime());
+                    return false;
+                }
+            }, new WaitOptions(500L, 10, 80, 0, "not yet", false));
+            fail("Expected timeout");
+        } catch (OperationTimedoutException e) {
+            assertEquals("not yet", e.getMessage());
+        }
+
+        // 10, 20, 40, 80, 80... and one last attempt at the deadline
+        assertTrue(attempts.size() >= 6 && attempts.size() <= 10);
+        long lastInterval = (attempts.get(attempts.size() - 2) - attempts.get(attempts.size() - 3)) / 1000000L;
+        assertTrue(lastInterval >= 80 && lastInterval < 150);
+    }
+
+    @Test
+    public void shouldTestOnceMoreAtTheDeadline() throws Exception {
+        final int[] attempts = {0};
+        waiter.waitFor(new ICondition() {
+            @Override
+            public boolean test() throws CalabashException {
+                return ++attempts[0] == 2;
+            }
+        }, new WaitOptions(50L, 1000, 1000, 0, null, false));
+
+        assertEquals(2, attempts[0]);
+    }
+
+    @Test
+    public void shouldTakeScreenshotOnTimeout() throws Exception {
+        try {
+            waiter.waitForElementsExist(new String[]{"button"}, new WaitOptions(0, 0, 0, null, true));
+            fail("Expected timeout");
+        } catch (OperationTimedoutException e) {
+            assertEquals("Timed out waiting...", e.getMessage());
+        }
+
+        assertEquals(Arrays.asList("takeScreenShot null"), transport.getInvocations());
+    }
+
+    @Test
+    public void shouldWaitForElementsToGoAway() throws Exception {
+        transport.setQueryResult("spinner", InMemoryTransport.element("UIActivityIndicatorView", null, null));
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignored) {
+                }
+                transport.removeQueryResult("spinner");
+            }
+        }.start();
+
+        waiter.waitForElementsToNotExist(new String[]{"spinner"}, new WaitOptions(2000L, 10, 50, 0, null, false));
+        assertFalse(transport.elementExists("spinner"));
+    }
+
+    @Test
+    public void shouldWaitForKeyboard() throws Exception {
+        transport.setQueryResult(InMemoryTransport.KEYBOARD_QUERY, InMemoryTransport.element("UIKBKeyplaneView", null, null));
+        waiter.waitForKeyboard();
+    }
+}